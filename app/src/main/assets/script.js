@@ -1,3 +1,391 @@
 function ping() {
     Android.ping();
-}
\ No newline at end of file
+}
+
+var ANDROID_CHUNK_SIZE = 512 * 1024;
+var ANDROID_RANGE_CONCURRENCY = 4;
+
+var androidMessageQueue = [];
+
+function encodeAndroidField(value) {
+    return encodeURIComponent(value === null || value === undefined ? '' : String(value));
+}
+
+// Batches fire and forget calls into a single bridge crossing per task.
+function postAndroidMessage(type) {
+    var fields = [];
+    for (var i = 0; i < arguments.length; i++) {
+        fields.push(encodeAndroidField(arguments[i]));
+    }
+    androidMessageQueue.push(fields.join('\t'));
+    if (androidMessageQueue.length === 1) {
+        Promise.resolve().then(flushAndroidMessages);
+    }
+}
+
+function flushAndroidMessages() {
+    if (androidMessageQueue.length === 0) {
+        return;
+    }
+    var frame = androidMessageQueue.join('\n');
+    androidMessageQueue = [];
+    Android.postMessages(frame);
+}
+
+function readBlobAsBase64(blob) {
+    return new Promise(function (resolve, reject) {
+        var reader = new FileReader();
+        reader.onload = function () {
+            var result = reader.result;
+            resolve(result.substring(result.indexOf(',') + 1));
+        };
+        reader.onerror = function () {
+            reject(reader.error);
+        };
+        reader.readAsDataURL(blob);
+    });
+}
+
+// For peers without Android, e.g. a desktop browser receiving an encoded file.
+function decodeBlob(blob, encoding) {
+    return new Response(blob.stream().pipeThrough(new DecompressionStream(encoding))).blob();
+}
+
+// Lets Android decode an encoded blob while writing it, or decodes it here if it can't.
+async function prepareBlobForAndroid(refId, blob, encoding) {
+    if (!encoding) {
+        return blob;
+    }
+    flushAndroidMessages();
+    if (Android.setDownloadEncoding && Android.setDownloadEncoding(refId, encoding)) {
+        return blob;
+    }
+    return decodeBlob(blob, encoding);
+}
+
+// Large files go as fixed-size ranges, which Android decodes, writes and hashes on several
+// cores. Ranges can't be mixed with encodings, and a resume has to start on a range boundary.
+function useAndroidRanges(size, start, isEncoded) {
+    if (isEncoded || !Android.getTransferRangeSize || size < AndroidBridge.rangeMinFileBytes) {
+        return false;
+    }
+    return start % Android.getTransferRangeSize() === 0;
+}
+
+// Shared files that are pipes or bundles can only be read in order.
+function canReadAndroidRanges(handleId, size, isEncoded) {
+    return useAndroidRanges(size, 0, isEncoded) && Android.getRangeCount(handleId) >= 0;
+}
+
+// Runs task(0) ... task(count - 1) with at most `limit` at a time, until one returns false.
+async function runAndroidRanges(count, limit, task) {
+    var next = 0;
+    var isOk = true;
+    async function worker() {
+        while (isOk && next < count) {
+            if (!(await task(next++))) {
+                isOk = false;
+            }
+        }
+    }
+    var workers = [];
+    for (var i = 0; i < Math.min(limit, count); i++) {
+        workers.push(worker());
+    }
+    await Promise.all(workers);
+    return isOk;
+}
+
+async function sendRangesToAndroid(refId, blob, start) {
+    var rangeSize = Android.getTransferRangeSize();
+    var count = Math.ceil(blob.size / rangeSize);
+    var index = start / rangeSize;
+    // The next range is read while Android takes this one.
+    var next = readBlobAsBase64(blob.slice(start, start + rangeSize));
+    for (; index < count; index++) {
+        var range = await next;
+        if (index + 1 < count) {
+            next = readBlobAsBase64(blob.slice((index + 1) * rangeSize, (index + 2) * rangeSize));
+        }
+        flushAndroidMessages();
+        if (!Android.onFileRange(refId, String(index), range)) {
+            return false;
+        }
+    }
+    return true;
+}
+
+// Ask right after the download started and before fetching the bytes from the peer: when
+// Android already has a file with this content the download is complete and nothing has to
+// be sent. `digest` is the sender's digest of the plain content, e.g. "sha-256:<hex>".
+function androidHasContent(refId, digest) {
+    flushAndroidMessages();
+    return Boolean(digest && Android.hasContent && Android.hasContent(refId, digest));
+}
+
+async function sendBlobToAndroid(refId, blob, digest, encoding) {
+    if (androidHasContent(refId, digest)) {
+        return true;
+    }
+    var prepared = await prepareBlobForAndroid(refId, blob, encoding);
+    var isEncoded = Boolean(encoding) && prepared === blob;
+    blob = prepared;
+    flushAndroidMessages();
+    var start = Android.getResumeOffset ? Android.getResumeOffset(refId) : 0;
+    if (start < 0) {
+        return false;
+    }
+    if (useAndroidRanges(blob.size, start, isEncoded)) {
+        if (!(await sendRangesToAndroid(refId, blob, start))) {
+            return false;
+        }
+        postAndroidMessage('end', refId, digest || null);
+        return true;
+    }
+    var seq = 0;
+    var chunkSize;
+    for (var offset = start; offset < blob.size; offset += chunkSize) {
+        chunkSize = androidChunkSize();
+        var chunk = await readBlobAsBase64(blob.slice(offset, offset + chunkSize));
+        flushAndroidMessages();
+        if (!Android.onFileChunk(refId, String(seq), chunk)) {
+            return false;
+        }
+        seq++;
+    }
+    postAndroidMessage('end', refId, digest || null);
+    return true;
+}
+
+// Android asks for smaller chunks while the device is low on memory.
+function androidChunkSize() {
+    return Android.getMaxChunkSize ? Math.min(ANDROID_CHUNK_SIZE, Android.getMaxChunkSize()) : ANDROID_CHUNK_SIZE;
+}
+
+function base64ToBytes(base64) {
+    var binary = window.atob(base64);
+    var bytes = new Uint8Array(binary.length);
+    for (var i = 0; i < binary.length; i++) {
+        bytes[i] = binary.charCodeAt(i);
+    }
+    return bytes;
+}
+
+// Asks Android to encode a shared file before it is read. Encoded files have no known size,
+// so they are read until an empty chunk comes back.
+function requestAndroidEncoding(handleId, encoding) {
+    return Boolean(encoding && Android.encodeFile && Android.encodeFile(handleId, encoding));
+}
+
+// Opts in to large multi-file shares arriving as one bundle instead of separate files. Call
+// before Android.onWebAppMount(); pages that don't keep getting the files one by one.
+function acceptAndroidBundles() {
+    if (!Android.acceptBundles) {
+        return false;
+    }
+    Android.acceptBundles();
+    return true;
+}
+
+// The picked folder shows up in the next share manifest as a single bundle, a ZIP of unknown
+// size with the AndroidBridge.bundleMimeType. Receiving apps unpack bundles into a folder.
+function pickAndroidFolder() {
+    if (!Android.pickFolder) {
+        return false;
+    }
+    Android.pickFolder();
+    return true;
+}
+
+async function readAndroidFileHandle(handleId, size, onChunk, encoding) {
+    var parts = [];
+    var offset = 0;
+    var digest = null;
+    var isEncoded = requestAndroidEncoding(handleId, encoding);
+    if (isEncoded) {
+        size = -1;
+    }
+    // Every range but the last is full, so offsets stay on range boundaries.
+    var rangeSize = canReadAndroidRanges(handleId, size, isEncoded) ? Android.getTransferRangeSize() : 0;
+    try {
+        while (size < 0 || offset < size) {
+            flushAndroidMessages();
+            var chunk = rangeSize
+                ? Android.readRange(handleId, String(offset / rangeSize))
+                : Android.readChunk(handleId, String(offset), String(androidChunkSize()));
+            if (chunk === null) {
+                throw new Error('Failed to read shared file');
+            }
+            var bytes = base64ToBytes(chunk);
+            if (bytes.length === 0) {
+                break;
+            }
+            offset += bytes.length;
+            if (onChunk) {
+                await onChunk(bytes, offset);
+            } else {
+                parts.push(bytes);
+            }
+        }
+        digest = Android.getDigest(handleId);
+    } finally {
+        postAndroidMessage('close', handleId);
+    }
+    var blob = onChunk ? null : new Blob(parts);
+    if (blob) {
+        blob.androidDigest = digest;
+        blob.androidEncoding = isEncoded ? encoding : null;
+    }
+    return blob;
+}
+
+// Hands one shared file to the page. Pages that predate streamed shares only define
+// onReceiveFileFromAndroidShare(name, type, data), they get the whole file read here first.
+async function receiveAndroidShareHandle(handleId, base64Name, base64Type, size) {
+    if (window.onReceiveFileHandleFromAndroidShare) {
+        window.onReceiveFileHandleFromAndroidShare(handleId, base64Name, base64Type, size);
+        return;
+    }
+    if (!window.onReceiveFileFromAndroidShare) {
+        postAndroidMessage('close', handleId);
+        return;
+    }
+    // Read until an empty chunk, the chunks are re-encoded as one since they don't end on
+    // Base64 boundaries.
+    var blob = await readAndroidFileHandle(handleId, -1, null, null);
+    window.onReceiveFileFromAndroidShare(base64Name, base64Type, await readBlobAsBase64(blob));
+}
+
+function getAndroidFileServerUrl() {
+    return Android.getFileServerUrl ? Android.getFileServerUrl() : null;
+}
+
+// URL of a small JPEG preview of a received image or video, made on the first request.
+// Null without the local server; the request fails with 404 for other files.
+function getAndroidPreviewUrl(refId) {
+    var baseUrl = getAndroidFileServerUrl();
+    return baseUrl ? baseUrl + 'previews/' + encodeURIComponent(refId) : null;
+}
+
+async function fetchAndroidFileHandle(handleId, size, encoding) {
+    var baseUrl = getAndroidFileServerUrl();
+    if (!baseUrl) {
+        return readAndroidFileHandle(handleId, size, null, encoding);
+    }
+    var isEncoded = requestAndroidEncoding(handleId, encoding);
+    try {
+        if (canReadAndroidRanges(handleId, size, isEncoded)) {
+            var blob = await fetchAndroidRanges(baseUrl, handleId, size);
+            blob.androidDigest = Android.getDigest(handleId);
+            blob.androidEncoding = null;
+            return blob;
+        }
+        var response = await fetch(baseUrl + 'files/' + encodeURIComponent(handleId));
+        if (!response.ok) {
+            throw new Error('Failed to read shared file: ' + response.status);
+        }
+        var blob = await response.blob();
+        blob.androidDigest = Android.getDigest(handleId);
+        blob.androidEncoding = isEncoded ? encoding : null;
+        return blob;
+    } finally {
+        postAndroidMessage('close', handleId);
+    }
+}
+
+// Ranges come over parallel connections, so the server reads them on several cores.
+async function fetchAndroidRanges(baseUrl, handleId, size) {
+    var rangeSize = Android.getTransferRangeSize();
+    var parts = [];
+    var isOk = await runAndroidRanges(Math.ceil(size / rangeSize), ANDROID_RANGE_CONCURRENCY, async function (index) {
+        var response = await fetch(baseUrl + 'files/' + encodeURIComponent(handleId) + '?range=' + index);
+        if (!response.ok) {
+            return false;
+        }
+        parts[index] = await response.blob();
+        return true;
+    });
+    if (!isOk) {
+        throw new Error('Failed to read shared file');
+    }
+    return new Blob(parts);
+}
+
+async function uploadRangesToAndroid(baseUrl, refId, blob, start) {
+    var rangeSize = Android.getTransferRangeSize();
+    var first = start / rangeSize;
+    return runAndroidRanges(Math.ceil(blob.size / rangeSize) - first, ANDROID_RANGE_CONCURRENCY, async function (i) {
+        var offset = (first + i) * rangeSize;
+        var response = await fetch(baseUrl + 'files/' + encodeURIComponent(refId) + '?range=' + (first + i), {
+            method: 'PUT',
+            headers: {'Content-Type': 'application/octet-stream'},
+            body: blob.slice(offset, offset + rangeSize)
+        });
+        return response.ok;
+    });
+}
+
+async function uploadBlobToAndroid(refId, blob, digest, encoding) {
+    var baseUrl = getAndroidFileServerUrl();
+    if (!baseUrl) {
+        return sendBlobToAndroid(refId, blob, digest, encoding);
+    }
+    if (androidHasContent(refId, digest)) {
+        return true;
+    }
+    var prepared = await prepareBlobForAndroid(refId, blob, encoding);
+    var isEncoded = Boolean(encoding) && prepared === blob;
+    blob = prepared;
+    flushAndroidMessages();
+    var start = Android.getResumeOffset(refId);
+    if (start < 0) {
+        return false;
+    }
+    if (useAndroidRanges(blob.size, start, isEncoded)) {
+        if (!(await uploadRangesToAndroid(baseUrl, refId, blob, start))) {
+            return false;
+        }
+        postAndroidMessage('end', refId, digest || null);
+        return true;
+    }
+    var response = await fetch(baseUrl + 'files/' + encodeURIComponent(refId), {
+        method: 'POST',
+        headers: {'Content-Type': 'application/octet-stream'},
+        body: blob.slice(start)
+    });
+    if (!response.ok) {
+        return false;
+    }
+    postAndroidMessage('end', refId, digest || null);
+    return true;
+}
+
+function utf8ToBase64(text) {
+    return window.btoa(unescape(encodeURIComponent(text)));
+}
+
+// Pages that predate the manifest get the files one call each, through
+// receiveAndroidShareHandle, so pages with only the original callback still get the data.
+if (!window.onReceiveShareManifestFromAndroid) {
+    window.onReceiveShareManifestFromAndroid = function (manifest) {
+        manifest.files.forEach(function (file) {
+            receiveAndroidShareHandle(
+                file.handleId,
+                utf8ToBase64(file.name),
+                utf8ToBase64(file.mimeType),
+                file.size
+            );
+        });
+    };
+}
+
+// Injected before the page's own scripts where supported, so the page can check for
+// window.AndroidBridge on startup and only wait for the event on older WebViews.
+window.AndroidBridge = {
+    version: __BRIDGE_VERSION__,
+    bundleMimeType: '__BUNDLE_MIME_TYPE__',
+    rangeMinFileBytes: __RANGE_MIN_FILE_BYTES__,
+    previewUrl: getAndroidPreviewUrl,
+    acceptBundles: acceptAndroidBundles
+};
+window.dispatchEvent(new Event('androidbridgeready'));
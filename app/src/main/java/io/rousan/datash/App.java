@@ -1,13 +1,26 @@
 package io.rousan.datash;
 
 import android.app.Application;
+import android.content.ComponentCallbacks2;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.os.Build;
 
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
 import timber.log.Timber;
 
 public class App extends Application {
+    private String bridgeScript;
+    private AppShellCache appShellCache;
+    private final BufferPool bufferPool = new BufferPool(Constants.BUFFER_POOL_MAX_BYTES);
+
     @Override
     public void onCreate() {
         super.onCreate();
@@ -18,6 +31,65 @@ public class App extends Application {
         }
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (isMemoryLow(level)) {
+            bufferPool.trim(0);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        bufferPool.trim(0);
+    }
+
+    /**
+     * Whether {@code level} from {@link #onTrimMemory} means memory is getting short, rather
+     * than just the UI going to the background.
+     */
+    public static boolean isMemoryLow(int level) {
+        return level != ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN && level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW;
+    }
+
+    /**
+     * Transfer buffers shared by every sender and receiver in the process.
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * The bridge script from assets, read once per process and stamped with the bridge version.
+     */
+    public synchronized String getBridgeScript() throws IOException {
+        if (bridgeScript == null) {
+            InputStream inputStream = getAssets().open("script.js");
+            try {
+                bridgeScript = IOUtils.toString(inputStream, StandardCharsets.UTF_8)
+                        .replace("__BRIDGE_VERSION__", String.valueOf(Constants.BRIDGE_VERSION))
+                        .replace("__BUNDLE_MIME_TYPE__", Constants.BUNDLE_MIME_TYPE)
+                        .replace("__RANGE_MIN_FILE_BYTES__", String.valueOf(Constants.TRANSFER_RANGE_MIN_FILE_BYTES));
+            } finally {
+                inputStream.close();
+            }
+        }
+        return bridgeScript;
+    }
+
+    public synchronized AppShellCache getAppShellCache() {
+        if (appShellCache == null) {
+            appShellCache = new AppShellCache(
+                    new File(getCacheDir(), "app-shell"),
+                    Constants.APP_SHELL_CACHE_MAX_BYTES,
+                    Constants.APP_SHELL_REVALIDATE_INTERVAL_MS,
+                    Executors.newSingleThreadExecutor()
+            );
+        }
+        return appShellCache;
+    }
+
     private void createNotificationChannels() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             NotificationChannel channel = new NotificationChannel(Constants.NOTIF_CHANNEL_DOWNLOAD_FILE, "Download File", NotificationManager.IMPORTANCE_DEFAULT);
@@ -27,4 +99,4 @@ public class App extends Application {
             notificationManager.createNotificationChannel(channel);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,396 @@
+package io.rousan.datash;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import timber.log.Timber;
+
+/**
+ * Disk cache for the web app's shell (HTML, scripts, styles and fonts). A cached response is
+ * served straight away and revalidated in the background with its ETag, so the next launch
+ * picks up a new deploy (stale-while-revalidate). Bodies are stored under a hash of URL and
+ * ETag and evicted least recently used first once the cache grows past its size cap.
+ */
+public class AppShellCache {
+    public static class Response {
+        private final String contentType;
+        private final long size;
+        private final InputStream body;
+
+        Response(String contentType, long size, InputStream body) {
+            this.contentType = contentType;
+            this.size = size;
+            this.body = body;
+        }
+
+        public String getMimeType() {
+            int semicolon = contentType.indexOf(';');
+            return (semicolon < 0 ? contentType : contentType.substring(0, semicolon)).trim();
+        }
+
+        /**
+         * The charset parameter of the content type, or null when there is none.
+         */
+        public String getEncoding() {
+            for (String param : contentType.split(";")) {
+                String[] pair = param.trim().split("=", 2);
+                if (pair.length == 2 && pair[0].trim().equalsIgnoreCase("charset")) {
+                    return pair[1].trim().replace("\"", "");
+                }
+            }
+            return null;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Opened when the response was looked up, so a revalidation or eviction that replaces
+         * the file afterwards can't pull it away from under the reader.
+         */
+        public InputStream getBody() {
+            return body;
+        }
+    }
+
+    private static class Entry {
+        final String url;
+        final String etag;
+        final String contentType;
+        final String fileName;
+        final long size;
+
+        Entry(String url, String etag, String contentType, String fileName, long size) {
+            this.url = url;
+            this.etag = etag;
+            this.contentType = contentType;
+            this.fileName = fileName;
+            this.size = size;
+        }
+    }
+
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int READ_TIMEOUT_MS = 10000;
+
+    private final File dir;
+    private final File indexFile;
+    private final long maxBytes;
+    private final long revalidateIntervalMillis;
+    private final Executor executor;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Long> revalidatedAt = new ConcurrentHashMap<>();
+    private final Set<String> revalidating = ConcurrentHashMap.newKeySet();
+    private long totalBytes = 0;
+
+    public AppShellCache(File dir, long maxBytes, long revalidateIntervalMillis, Executor executor) {
+        this.dir = dir;
+        this.indexFile = new File(dir, "index");
+        this.maxBytes = maxBytes;
+        this.revalidateIntervalMillis = revalidateIntervalMillis;
+        this.executor = executor;
+        load();
+    }
+
+    /**
+     * Only the web app's own text assets and fonts are worth keeping, media and API responses
+     * go to the network as usual.
+     */
+    public static boolean isCacheableType(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+
+        String type = contentType.toLowerCase(Locale.ENGLISH);
+        return type.startsWith("text/html")
+                || type.startsWith("text/css")
+                || type.startsWith("text/javascript")
+                || type.startsWith("application/javascript")
+                || type.startsWith("application/x-javascript")
+                || type.startsWith("font/")
+                || type.startsWith("application/font-")
+                || type.startsWith("application/x-font-");
+    }
+
+    /**
+     * Whether a path looks like part of the shell. Checked before anything is fetched, so API
+     * calls never go through the cache.
+     */
+    public static boolean isCacheablePath(String path) {
+        if (path == null || path.isEmpty() || path.endsWith("/")) {
+            return true;
+        }
+
+        String lower = path.toLowerCase(Locale.ENGLISH);
+        for (String extension : new String[]{".html", ".js", ".css", ".woff", ".woff2", ".ttf", ".otf"}) {
+            if (lower.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the cached response, scheduling a background revalidation, or fetches and
+     * stores it on a miss. Returns null when the response isn't cacheable or the network
+     * fails, in which case the caller should load it itself.
+     */
+    public Response get(String url) {
+        Response response = open(url);
+        if (response != null) {
+            revalidateInBackground(url);
+            return response;
+        }
+
+        try {
+            fetch(url, null);
+        } catch (IOException exp) {
+            Timber.d(exp);
+            return null;
+        }
+        return open(url);
+    }
+
+    public synchronized long getSize() {
+        return totalBytes;
+    }
+
+    public synchronized boolean contains(String url) {
+        return entries.containsKey(url);
+    }
+
+    private synchronized Response open(String url) {
+        Entry entry = entries.get(url);
+        if (entry == null) {
+            return null;
+        }
+
+        try {
+            return new Response(entry.contentType, entry.size, new FileInputStream(new File(dir, entry.fileName)));
+        } catch (FileNotFoundException exp) {
+            remove(url);
+            return null;
+        }
+    }
+
+    private void revalidateInBackground(final String url) {
+        Long last = revalidatedAt.get(url);
+        long now = System.currentTimeMillis();
+        if (last != null && now - last < revalidateIntervalMillis) {
+            return;
+        }
+        if (!revalidating.add(url)) {
+            return;
+        }
+
+        revalidatedAt.put(url, now);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Entry entry;
+                    synchronized (AppShellCache.this) {
+                        entry = entries.get(url);
+                    }
+                    fetch(url, entry == null ? null : entry.etag);
+                } catch (IOException exp) {
+                    Timber.d(exp);
+                } finally {
+                    revalidating.remove(url);
+                }
+            }
+        });
+    }
+
+    /**
+     * Fetches a URL, conditionally when an ETag is given, and stores a cacheable response.
+     * Returns the entry that is now cached for it, or null if there is none.
+     */
+    private Entry fetch(String url, String etag) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        if (etag != null && !etag.isEmpty()) {
+            connection.setRequestProperty("If-None-Match", etag);
+        }
+
+        try {
+            int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                synchronized (this) {
+                    return entries.get(url);
+                }
+            }
+
+            if (status != HttpURLConnection.HTTP_OK) {
+                // Keep serving what we have through outages, the next revalidation retries.
+                synchronized (this) {
+                    return entries.get(url);
+                }
+            }
+
+            String contentType = connection.getContentType();
+            String cacheControl = connection.getHeaderField("Cache-Control");
+            if (!isCacheableType(contentType)
+                    || (cacheControl != null && cacheControl.toLowerCase(Locale.ENGLISH).contains("no-store"))) {
+                remove(url);
+                return null;
+            }
+
+            String newEtag = connection.getHeaderField("ETag");
+            if (newEtag == null) {
+                newEtag = "";
+            }
+            String fileName = fileNameOf(url, newEtag);
+            File tmpFile = File.createTempFile("fetch", ".tmp", dir);
+            long size;
+            InputStream inputStream = connection.getInputStream();
+            try {
+                OutputStream outputStream = new FileOutputStream(tmpFile);
+                try {
+                    size = IOUtils.copyLarge(inputStream, outputStream);
+                } finally {
+                    outputStream.close();
+                }
+            } catch (IOException exp) {
+                tmpFile.delete();
+                throw exp;
+            } finally {
+                inputStream.close();
+            }
+
+            Entry entry = new Entry(url, newEtag, contentType, fileName, size);
+            put(entry, tmpFile);
+            return entry;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private synchronized void put(Entry entry, File tmpFile) throws IOException {
+        File file = new File(dir, entry.fileName);
+        // Readers may still be streaming the old body, so it is replaced with a rename.
+        if (!tmpFile.renameTo(file)) {
+            tmpFile.delete();
+            throw new IOException("Failed to store " + entry.url);
+        }
+
+        Entry old = entries.put(entry.url, entry);
+        if (old != null) {
+            totalBytes -= old.size;
+            if (!old.fileName.equals(entry.fileName)) {
+                new File(dir, old.fileName).delete();
+            }
+        }
+        totalBytes += entry.size;
+
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            if (eldest == entry) {
+                continue;
+            }
+            iterator.remove();
+            totalBytes -= eldest.size;
+            new File(dir, eldest.fileName).delete();
+        }
+        save();
+    }
+
+    private synchronized void remove(String url) {
+        Entry entry = entries.remove(url);
+        if (entry == null) {
+            return;
+        }
+
+        totalBytes -= entry.size;
+        new File(dir, entry.fileName).delete();
+        try {
+            save();
+        } catch (IOException exp) {
+            Timber.d(exp);
+        }
+    }
+
+    private void load() {
+        try {
+            FileUtils.forceMkdir(dir);
+            if (!indexFile.exists()) {
+                return;
+            }
+
+            // Written least recently used first, so replaying it restores the access order.
+            for (String line : FileUtils.readLines(indexFile, StandardCharsets.UTF_8)) {
+                String[] fields = line.split("\t");
+                if (fields.length != 5) {
+                    continue;
+                }
+                Entry entry = new Entry(decode(fields[0]), decode(fields[1]), decode(fields[2]), fields[3], Long.parseLong(fields[4]));
+                if (new File(dir, entry.fileName).exists()) {
+                    entries.put(entry.url, entry);
+                    totalBytes += entry.size;
+                }
+            }
+        } catch (IOException | RuntimeException exp) {
+            // A broken index only costs a refetch.
+            Timber.d(exp);
+            entries.clear();
+            totalBytes = 0;
+        }
+    }
+
+    private void save() throws IOException {
+        StringBuilder builder = new StringBuilder();
+        for (Entry entry : entries.values()) {
+            builder.append(encode(entry.url))
+                    .append('\t').append(encode(entry.etag))
+                    .append('\t').append(encode(entry.contentType))
+                    .append('\t').append(entry.fileName)
+                    .append('\t').append(entry.size)
+                    .append('\n');
+        }
+
+        File tmpFile = new File(dir, "index.tmp");
+        FileUtils.writeStringToFile(tmpFile, builder.toString(), StandardCharsets.UTF_8);
+        if (!tmpFile.renameTo(indexFile)) {
+            throw new IOException("Failed to write " + indexFile);
+        }
+    }
+
+    private static String fileNameOf(String url, String etag) {
+        TransferDigest digest = TransferDigest.create(TransferDigest.SHA_256);
+        byte[] bytes = (url + "\n" + etag).getBytes(StandardCharsets.UTF_8);
+        digest.update(bytes, 0, bytes.length);
+        String hex = digest.finish();
+        return hex.substring(hex.indexOf(':') + 1);
+    }
+
+    private static String encode(String value) throws UnsupportedEncodingException {
+        return URLEncoder.encode(value == null ? "" : value, "UTF-8");
+    }
+
+    private static String decode(String value) throws UnsupportedEncodingException {
+        return URLDecoder.decode(value, "UTF-8");
+    }
+}
@@ -0,0 +1,109 @@
+package io.rousan.datash;
+
+/**
+ * Base64 codec that works on caller supplied buffers, so the transfer paths can reuse one
+ * array per transfer instead of allocating fresh ones for every chunk.
+ */
+public class Base64Codec {
+    private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final byte[] DECODE_TABLE = new byte[128];
+
+    static {
+        for (int i = 0; i < DECODE_TABLE.length; i++) {
+            DECODE_TABLE[i] = -1;
+        }
+        for (int i = 0; i < ALPHABET.length; i++) {
+            DECODE_TABLE[ALPHABET[i]] = (byte) i;
+        }
+    }
+
+    public static int encodedLength(int length) {
+        return ((length + 2) / 3) * 4;
+    }
+
+    /**
+     * Encodes {@code length} bytes of {@code src} into {@code dst} without line breaks and
+     * returns the number of chars written.
+     */
+    public static int encode(byte[] src, int offset, int length, char[] dst) {
+        int out = 0;
+        int end = offset + length;
+        int i = offset;
+
+        for (; i + 2 < end; i += 3) {
+            int bits = (src[i] & 0xff) << 16 | (src[i + 1] & 0xff) << 8 | (src[i + 2] & 0xff);
+            dst[out++] = ALPHABET[bits >>> 18];
+            dst[out++] = ALPHABET[(bits >>> 12) & 0x3f];
+            dst[out++] = ALPHABET[(bits >>> 6) & 0x3f];
+            dst[out++] = ALPHABET[bits & 0x3f];
+        }
+
+        int remaining = end - i;
+        if (remaining == 1) {
+            int bits = (src[i] & 0xff) << 16;
+            dst[out++] = ALPHABET[bits >>> 18];
+            dst[out++] = ALPHABET[(bits >>> 12) & 0x3f];
+            dst[out++] = '=';
+            dst[out++] = '=';
+        } else if (remaining == 2) {
+            int bits = (src[i] & 0xff) << 16 | (src[i + 1] & 0xff) << 8;
+            dst[out++] = ALPHABET[bits >>> 18];
+            dst[out++] = ALPHABET[(bits >>> 12) & 0x3f];
+            dst[out++] = ALPHABET[(bits >>> 6) & 0x3f];
+            dst[out++] = '=';
+        }
+
+        return out;
+    }
+
+    public static int maxDecodedLength(int encodedLength) {
+        return (encodedLength / 4) * 3 + 3;
+    }
+
+    /**
+     * Decodes {@code src} into {@code dst} and returns the number of bytes written. Line breaks
+     * and other whitespace are skipped, decoding stops at the first padding character.
+     */
+    public static int decode(CharSequence src, byte[] dst) {
+        int len = src.length();
+        int out = 0;
+        int bits = 0;
+        int count = 0;
+
+        for (int i = 0; i < len; i++) {
+            char c = src.charAt(i);
+            if (c == '=') {
+                break;
+            }
+            if (c == '\n' || c == '\r' || c == ' ' || c == '\t') {
+                continue;
+            }
+
+            int value = c < 128 ? DECODE_TABLE[c] : -1;
+            if (value < 0) {
+                throw new IllegalArgumentException("Invalid base64 character at index " + i);
+            }
+
+            bits = (bits << 6) | value;
+            count++;
+            if (count == 4) {
+                dst[out++] = (byte) (bits >> 16);
+                dst[out++] = (byte) (bits >> 8);
+                dst[out++] = (byte) bits;
+                bits = 0;
+                count = 0;
+            }
+        }
+
+        if (count == 2) {
+            dst[out++] = (byte) (bits >> 4);
+        } else if (count == 3) {
+            dst[out++] = (byte) (bits >> 10);
+            dst[out++] = (byte) (bits >> 2);
+        } else if (count == 1) {
+            throw new IllegalArgumentException("Truncated base64 input");
+        }
+
+        return out;
+    }
+}
@@ -0,0 +1,240 @@
+package io.rousan.datash;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import timber.log.Timber;
+
+/**
+ * Routes messages from the page on a dedicated background thread, so the JavaBridge thread
+ * only hands off a string and the main thread never sees bridge traffic.
+ *
+ * <p>A frame holds one message per line, each line being tab separated, URL encoded fields
+ * of which the first is the message type. The queue is bounded: once it is full the page's
+ * bridge call blocks until the dispatcher catches up.
+ */
+public class BridgeDispatcher {
+    public interface Route {
+        void handle(String[] args) throws Exception;
+    }
+
+    private static final class Frame {
+        final String text;
+        final String[] message;
+        final CountDownLatch barrier;
+        final long enqueuedAt;
+
+        Frame(String text, String[] message, CountDownLatch barrier) {
+            this.text = text;
+            this.message = message;
+            this.barrier = barrier;
+            this.enqueuedAt = System.nanoTime();
+        }
+    }
+
+    private final ConcurrentHashMap<String, Route> routes = new ConcurrentHashMap<>();
+    private final BlockingQueue<Frame> queue;
+    private final Thread thread;
+    private final AtomicLong pending = new AtomicLong();
+    private final AtomicLong maxQueueDepth = new AtomicLong();
+    private final AtomicLong messageCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+    private volatile boolean shutdown = false;
+    private volatile TransferMetrics metrics = TransferMetrics.DISABLED;
+
+    public BridgeDispatcher(int capacity) {
+        queue = new ArrayBlockingQueue<>(capacity);
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "BridgeDispatcher");
+        thread.setDaemon(true);
+    }
+
+    public void setMetrics(TransferMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void register(String type, Route route) {
+        routes.put(type, route);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Queues a frame of one or more messages. Parsing happens on the dispatcher thread.
+     */
+    public void postFrame(String frame) {
+        enqueue(new Frame(frame, null, null));
+    }
+
+    /**
+     * Queues a single, already split message.
+     */
+    public void post(String type, String... args) {
+        String[] message = new String[args.length + 1];
+        message[0] = type;
+        System.arraycopy(args, 0, message, 1, args.length);
+        enqueue(new Frame(null, message, null));
+    }
+
+    /**
+     * Blocks until every message queued before this call has been handled. Bridge calls that
+     * answer synchronously use it to stay ordered behind the messages the page sent earlier.
+     */
+    public void awaitIdle() throws InterruptedException {
+        if (pending.get() == 0 || Thread.currentThread() == thread) {
+            return;
+        }
+
+        CountDownLatch barrier = new CountDownLatch(1);
+        if (enqueue(new Frame(null, null, barrier))) {
+            barrier.await();
+        }
+    }
+
+    public void shutdown() {
+        shutdown = true;
+        thread.interrupt();
+    }
+
+    public long getQueueDepth() {
+        return pending.get();
+    }
+
+    public long getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    public long getMessageCount() {
+        return messageCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    public long getAverageLatencyNanos() {
+        long count = messageCount.get();
+        return count == 0 ? 0 : totalLatencyNanos.get() / count;
+    }
+
+    public long getMaxLatencyNanos() {
+        return maxLatencyNanos.get();
+    }
+
+    private boolean enqueue(Frame frame) {
+        if (shutdown) {
+            return false;
+        }
+
+        long depth = pending.incrementAndGet();
+        updateMax(maxQueueDepth, depth);
+        try {
+            queue.put(frame);
+            return true;
+        } catch (InterruptedException exp) {
+            pending.decrementAndGet();
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void loop() {
+        while (!shutdown) {
+            Frame frame;
+            try {
+                frame = queue.take();
+            } catch (InterruptedException exp) {
+                break;
+            }
+
+            if (frame.barrier != null) {
+                pending.decrementAndGet();
+                frame.barrier.countDown();
+                continue;
+            }
+
+            try {
+                if (frame.message != null) {
+                    dispatch(frame.message, frame.enqueuedAt);
+                } else {
+                    for (String[] message : parse(frame.text)) {
+                        dispatch(message, frame.enqueuedAt);
+                    }
+                }
+            } catch (Exception exp) {
+                failedCount.incrementAndGet();
+                Timber.d(exp);
+            } finally {
+                pending.decrementAndGet();
+            }
+        }
+
+        // Nobody will drain the queue any more, don't leave callers waiting on a barrier.
+        Frame frame;
+        while ((frame = queue.poll()) != null) {
+            if (frame.barrier != null) {
+                frame.barrier.countDown();
+            }
+        }
+    }
+
+    private void dispatch(String[] message, long enqueuedAt) {
+        Route route = routes.get(message[0]);
+        try {
+            if (route == null) {
+                throw new IllegalArgumentException("Unknown bridge message: " + message[0]);
+            }
+            String[] args = new String[message.length - 1];
+            System.arraycopy(message, 1, args, 0, args.length);
+            route.handle(args);
+        } catch (Exception exp) {
+            failedCount.incrementAndGet();
+            Timber.d(exp);
+        }
+
+        long latency = System.nanoTime() - enqueuedAt;
+        messageCount.incrementAndGet();
+        totalLatencyNanos.addAndGet(latency);
+        updateMax(maxLatencyNanos, latency);
+        metrics.recordNanos(TransferMetrics.Stage.BRIDGE_QUEUE, latency, 0);
+    }
+
+    static List<String[]> parse(String frame) throws UnsupportedEncodingException {
+        List<String[]> messages = new ArrayList<>();
+        for (String line : frame.split("\n")) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] fields = line.split("\t", -1);
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = URLDecoder.decode(fields[i], "UTF-8");
+            }
+            messages.add(fields);
+        }
+        return messages;
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package io.rousan.datash;
+
+import java.util.ArrayDeque;
+
+/**
+ * Reusable transfer buffers, shared by every file in the process. Sizes are rounded up to a
+ * quarter step between powers of two (1MB, 1.25MB, 1.5MB, ...), so a buffer fits the next
+ * chunk of about the same size and a Base64 chunk slightly over 1MB doesn't take 2MB. At most
+ * {@code maxPooledBytes} are kept around between uses; everything else is left to the GC.
+ * {@link #trim} drops them all when the system runs low on memory.
+ * <p>
+ * The buffers are plain arrays rather than direct buffers: Base64 and the digests work on
+ * arrays, and on Android file channels write arrays without an extra copy.
+ */
+public class BufferPool {
+    private final static int MIN_SIZE = 4 * 1024;
+    private final static int CLASSES = 4 * 31;
+    // Larger buffers are allocated as asked and never pooled.
+    private final static int MAX_SIZE = sizeOf(CLASSES - 1);
+
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<byte[]>[] bytes = (ArrayDeque<byte[]>[]) new ArrayDeque<?>[CLASSES];
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<char[]>[] chars = (ArrayDeque<char[]>[]) new ArrayDeque<?>[CLASSES];
+    private long maxPooledBytes;
+    private long pooledBytes = 0;
+    private long outstandingBytes = 0;
+    private long maxOutstandingBytes = 0;
+    private long reuseCount = 0;
+    private long allocationCount = 0;
+
+    public BufferPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+        for (int i = 0; i < CLASSES; i++) {
+            bytes[i] = new ArrayDeque<>();
+            chars[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * Returns an array of at least {@code size} bytes. Its content is undefined.
+     */
+    public byte[] acquireBytes(int size) {
+        if (size > MAX_SIZE) {
+            synchronized (this) {
+                take(0, size);
+            }
+            return new byte[size];
+        }
+
+        int index = classOf(size);
+        byte[] buffer;
+        synchronized (this) {
+            buffer = bytes[index].pollFirst();
+            take(buffer == null ? 0 : buffer.length, sizeOf(index));
+        }
+        return buffer != null ? buffer : new byte[sizeOf(index)];
+    }
+
+    public void releaseBytes(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        synchronized (this) {
+            if (give(buffer.length, buffer.length)) {
+                bytes[classOf(buffer.length)].addFirst(buffer);
+            }
+        }
+    }
+
+    /**
+     * Returns an array of at least {@code size} chars, e.g. for Base64 text.
+     */
+    public char[] acquireChars(int size) {
+        if (size > MAX_SIZE) {
+            synchronized (this) {
+                take(0, size * 2L);
+            }
+            return new char[size];
+        }
+
+        int index = classOf(size);
+        char[] buffer;
+        synchronized (this) {
+            buffer = chars[index].pollFirst();
+            take(buffer == null ? 0 : buffer.length * 2L, sizeOf(index) * 2L);
+        }
+        return buffer != null ? buffer : new char[sizeOf(index)];
+    }
+
+    public void releaseChars(char[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        synchronized (this) {
+            if (give(buffer.length * 2L, buffer.length)) {
+                chars[classOf(buffer.length)].addFirst(buffer);
+            }
+        }
+    }
+
+    /**
+     * Drops every pooled buffer and keeps at most {@code maxPooledBytes} from now on, 0 to
+     * stop pooling. Buffers in use aren't affected.
+     */
+    public synchronized void trim(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+        for (int i = 0; i < CLASSES; i++) {
+            bytes[i].clear();
+            chars[i].clear();
+        }
+        pooledBytes = 0;
+    }
+
+    public synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    /**
+     * Bytes handed out and not released yet.
+     */
+    public synchronized long getOutstandingBytes() {
+        return outstandingBytes;
+    }
+
+    /**
+     * Most bytes handed out at the same time so far.
+     */
+    public synchronized long getMaxOutstandingBytes() {
+        return maxOutstandingBytes;
+    }
+
+    public synchronized long getReuseCount() {
+        return reuseCount;
+    }
+
+    public synchronized long getAllocationCount() {
+        return allocationCount;
+    }
+
+    private void take(long pooled, long allocated) {
+        if (pooled > 0) {
+            pooledBytes -= pooled;
+            outstandingBytes += pooled;
+            reuseCount++;
+        } else {
+            outstandingBytes += allocated;
+            allocationCount++;
+        }
+        maxOutstandingBytes = Math.max(maxOutstandingBytes, outstandingBytes);
+    }
+
+    /**
+     * Accounts for a returned buffer, returns whether it should be kept.
+     */
+    private boolean give(long size, int length) {
+        outstandingBytes -= size;
+        // Arrays the pool didn't hand out may have any length.
+        if (length < MIN_SIZE || length > MAX_SIZE || sizeOf(classOf(length)) != length || pooledBytes + size > maxPooledBytes) {
+            return false;
+        }
+        pooledBytes += size;
+        return true;
+    }
+
+    /**
+     * Index of the smallest size class that fits {@code size}: 4 classes per power of two.
+     */
+    private static int classOf(int size) {
+        int rounded = Math.max(MIN_SIZE, size);
+        int power = 31 - Integer.numberOfLeadingZeros(rounded - 1);
+        int step = 1 << (power - 2);
+        return power * 4 + (rounded - (1 << power) + step - 1) / step;
+    }
+
+    private static int sizeOf(int index) {
+        int power = index / 4;
+        return (1 << power) + (index % 4) * (1 << (power - 2));
+    }
+}
@@ -0,0 +1,233 @@
+package io.rousan.datash;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Unpacks a ZIP into a folder while it is still arriving. Bytes written here are queued for
+ * a background thread that reads them with {@link ZipInputStream}. The queue is bounded, so
+ * a slow disk holds up the writer instead of piling chunks up in memory. Entries that would
+ * land outside the folder are rejected.
+ */
+public class BundleExtractor extends OutputStream {
+    private final static byte[] END = new byte[0];
+    private final static int BLOCK_SIZE = 64 * 1024;
+
+    private final File folder;
+    private final File root;
+    private final BlockingQueue<byte[]> queue;
+    private final FileNameAllocator fileNameAllocator = new FileNameAllocator(16);
+    private final Thread thread;
+    private volatile IOException failure;
+    private volatile boolean isAborted = false;
+    private volatile boolean isFinished = false;
+    private volatile int fileCount = 0;
+    private boolean isClosed = false;
+
+    /**
+     * @param capacity how many written chunks may wait for the extractor
+     */
+    public BundleExtractor(File folder, int capacity) throws IOException {
+        FileUtils.forceMkdir(folder);
+        this.folder = folder;
+        this.root = folder.getCanonicalFile();
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                extract();
+            }
+        }, "BundleExtractor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public File getFolder() {
+        return folder;
+    }
+
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (isClosed) {
+            throw new IOException("Bundle extractor is closed");
+        }
+        if (len > 0) {
+            enqueue(Arrays.copyOfRange(b, off, off + len));
+        }
+    }
+
+    /**
+     * Waits for the rest of the bundle to be unpacked. Throws if it was cut short or broken.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+
+        enqueue(END);
+        try {
+            thread.join();
+        } catch (InterruptedException exp) {
+            throw new InterruptedIOException();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        isFinished = true;
+    }
+
+    /**
+     * Stops extracting and deletes everything unpacked so far. Does nothing once the bundle
+     * was unpacked completely.
+     */
+    public void abort() {
+        if (isFinished) {
+            return;
+        }
+
+        isAborted = true;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException exp) {
+            Thread.currentThread().interrupt();
+        }
+        FileUtils.deleteQuietly(folder);
+    }
+
+    private void enqueue(byte[] chunk) throws IOException {
+        try {
+            // Polls so a failed or aborted extraction can't leave the writer blocked forever.
+            while (!queue.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+                checkState();
+            }
+        } catch (InterruptedException exp) {
+            throw new InterruptedIOException();
+        }
+        checkState();
+    }
+
+    private void checkState() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (isAborted) {
+            throw new IOException("Bundle extraction aborted");
+        }
+    }
+
+    private void extract() {
+        QueueInputStream input = new QueueInputStream();
+        byte[] buffer = new byte[BLOCK_SIZE];
+        try {
+            ZipInputStream zip = new ZipInputStream(input);
+            ZipEntry entry;
+            while (!isAborted && (entry = zip.getNextEntry()) != null) {
+                File target = resolve(root, entry.getName());
+                if (entry.isDirectory()) {
+                    FileUtils.forceMkdir(target);
+                    continue;
+                }
+
+                FileUtils.forceMkdir(target.getParentFile());
+                // The folder starts out empty, so names only clash if the bundle repeats one.
+                File file = target;
+                if (!file.createNewFile()) {
+                    file = fileNameAllocator.allocate(target.getParentFile(), target.getName());
+                }
+                OutputStream outputStream = new FileOutputStream(file);
+                try {
+                    int read;
+                    while ((read = zip.read(buffer)) >= 0) {
+                        outputStream.write(buffer, 0, read);
+                    }
+                } finally {
+                    outputStream.close();
+                }
+                if (entry.getTime() > 0) {
+                    file.setLastModified(entry.getTime());
+                }
+                fileCount++;
+            }
+
+            // The central directory follows the last entry, the writer still has to get rid of it.
+            while (!isAborted && input.read(buffer) >= 0) {
+            }
+        } catch (IOException exp) {
+            failure = exp;
+        } catch (RuntimeException exp) {
+            // E.g. an entry name that isn't valid UTF-8. Has to be kept, or the writer would
+            // wait on the full queue forever.
+            failure = new IOException("Broken bundle: " + exp.getMessage(), exp);
+        }
+    }
+
+    /**
+     * Resolves a ZIP entry name inside {@code root}, which has to be canonical.
+     */
+    static File resolve(File root, String name) throws IOException {
+        File file = new File(root, name).getCanonicalFile();
+        if (!file.getPath().startsWith(root.getPath() + File.separator)) {
+            throw new IOException("Bundle entry outside of its folder: " + name);
+        }
+        return file;
+    }
+
+    private class QueueInputStream extends InputStream {
+        private byte[] chunk = new byte[0];
+        private int position = 0;
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            while (position == chunk.length) {
+                if (chunk == END) {
+                    return -1;
+                }
+                try {
+                    chunk = queue.take();
+                } catch (InterruptedException exp) {
+                    throw new InterruptedIOException("Bundle extraction aborted");
+                }
+                position = 0;
+            }
+
+            int count = Math.min(len, chunk.length - position);
+            System.arraycopy(chunk, position, b, off, count);
+            position += count;
+            return count;
+        }
+    }
+}
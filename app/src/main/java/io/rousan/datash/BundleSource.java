@@ -0,0 +1,175 @@
+package io.rousan.datash;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Streams a set of files as one ZIP, built on the fly as it is read. Nothing is staged on
+ * disk and at most one block of one file is in memory, however many files there are. Entries
+ * are opened one at a time, only once the reader gets to them.
+ * <p>
+ * Every entry is deflated, at level 0 for types that are already compressed. Stored entries
+ * would need their size and CRC before the first byte, i.e. reading each file twice, and
+ * {@link java.util.zip.ZipInputStream} can't unpack them when they are streamed anyway.
+ */
+public class BundleSource extends InputStream {
+    private final static int BLOCK_SIZE = 64 * 1024;
+
+    public interface Entry {
+        /**
+         * Path inside the bundle, with {@code /} between folders.
+         */
+        String getPath() throws IOException;
+
+        String getMimeType();
+
+        /**
+         * Modification time in milliseconds, or -1 if unknown.
+         */
+        long getLastModified();
+
+        InputStream open() throws IOException;
+    }
+
+    private final Iterator<? extends Entry> entries;
+    private final Sink sink = new Sink();
+    private final ZipOutputStream zip = new ZipOutputStream(sink);
+    private final Set<String> paths = new HashSet<>();
+    private final byte[] block = new byte[BLOCK_SIZE];
+    private InputStream current;
+    private int readPosition = 0;
+    private boolean isFinished = false;
+    private int entryCount = 0;
+    private long contentBytes = 0;
+
+    public BundleSource(Iterator<? extends Entry> entries) {
+        this.entries = entries;
+    }
+
+    public synchronized int getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Uncompressed bytes read from the entries so far.
+     */
+    public synchronized long getContentBytes() {
+        return contentBytes;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        while (readPosition == sink.size()) {
+            if (!fill()) {
+                return -1;
+            }
+        }
+
+        int count = Math.min(len, sink.size() - readPosition);
+        System.arraycopy(sink.getBuffer(), readPosition, b, off, count);
+        readPosition += count;
+        return count;
+    }
+
+    /**
+     * Feeds the next block into the ZIP. Returns false once everything has been read.
+     */
+    private boolean fill() throws IOException {
+        sink.reset();
+        readPosition = 0;
+        if (isFinished) {
+            return false;
+        }
+
+        if (current == null) {
+            if (!entries.hasNext()) {
+                zip.finish();
+                isFinished = true;
+                return true;
+            }
+
+            Entry entry = entries.next();
+            ZipEntry zipEntry = new ZipEntry(uniquePath(entry.getPath()));
+            if (entry.getLastModified() > 0) {
+                zipEntry.setTime(entry.getLastModified());
+            }
+            zip.setLevel(CompressionPolicy.isCompressedType(entry.getMimeType()) ? Deflater.NO_COMPRESSION : Deflater.BEST_SPEED);
+            current = entry.open();
+            zip.putNextEntry(zipEntry);
+            entryCount++;
+            return true;
+        }
+
+        int read = current.read(block);
+        if (read < 0) {
+            current.close();
+            current = null;
+            zip.closeEntry();
+        } else {
+            zip.write(block, 0, read);
+            contentBytes += read;
+        }
+        return true;
+    }
+
+    /**
+     * Cleans up {@code path} and makes it unique within the bundle, {@code a.txt} becomes
+     * {@code a1.txt} when it is already taken.
+     */
+    private String uniquePath(String path) {
+        String cleaned = path.replace('\\', '/');
+        while (cleaned.startsWith("/")) {
+            cleaned = cleaned.substring(1);
+        }
+        if (cleaned.isEmpty()) {
+            cleaned = "file";
+        }
+
+        String unique = cleaned;
+        for (int suffix = 1; !paths.add(unique); suffix++) {
+            unique = FileNameAllocator.nameWithSuffix(cleaned, suffix);
+        }
+        return unique;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+        } finally {
+            // Also releases the deflater.
+            isFinished = true;
+            zip.close();
+        }
+    }
+
+    private static class Sink extends ByteArrayOutputStream {
+        Sink() {
+            super(BLOCK_SIZE + 1024);
+        }
+
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+}
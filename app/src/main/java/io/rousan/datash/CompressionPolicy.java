@@ -0,0 +1,80 @@
+package io.rousan.datash;
+
+import java.util.Locale;
+
+/**
+ * Decides whether a file is worth compressing on the way out. Media and archive types are
+ * skipped outright, everything else by the byte entropy of its first block: text, JSON, logs
+ * and CSV sit around 4-6 bits per byte, anything already compressed close to 8.
+ */
+public class CompressionPolicy {
+    private final static String[] COMPRESSED_TYPE_PREFIXES = {
+            "image/jpeg", "image/png", "image/gif", "image/webp", "image/heic", "image/heif",
+            "video/", "audio/",
+            "application/zip", "application/gzip", "application/x-gzip", "application/x-7z-compressed",
+            "application/x-rar-compressed", "application/x-bzip2", "application/x-xz", "application/zstd",
+            "application/vnd.android.package-archive", "application/epub+zip",
+            "application/vnd.openxmlformats-officedocument.", "application/vnd.oasis.opendocument.",
+    };
+
+    private CompressionPolicy() {
+    }
+
+    /**
+     * Returns the encoding to use, or null to send the file as is.
+     *
+     * @param probe the first bytes of the file, {@code length} of them are valid
+     */
+    public static String choose(String mimeType, long size, byte[] probe, int length) {
+        if (isCompressedType(mimeType)) {
+            return null;
+        }
+        if (size >= 0 && size < Constants.COMPRESSION_MIN_BYTES) {
+            return null;
+        }
+        if (length <= 0 || entropy(probe, 0, length) > Constants.COMPRESSION_MAX_ENTROPY_BITS) {
+            return null;
+        }
+        return TransferCodec.DEFLATE;
+    }
+
+    public static boolean isCompressedType(String mimeType) {
+        if (mimeType == null) {
+            return false;
+        }
+
+        String type = mimeType.toLowerCase(Locale.ENGLISH);
+        if (type.equals("image/svg+xml") || type.equals("image/bmp") || type.equals("audio/wav") || type.equals("audio/x-wav")) {
+            return false;
+        }
+        for (String prefix : COMPRESSED_TYPE_PREFIXES) {
+            if (type.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Shannon entropy of the bytes in bits per byte, from 0 to 8.
+     */
+    public static double entropy(byte[] bytes, int offset, int length) {
+        if (length == 0) {
+            return 0;
+        }
+
+        int[] counts = new int[256];
+        for (int i = offset; i < offset + length; i++) {
+            counts[bytes[i] & 0xff]++;
+        }
+
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / length;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2);
+    }
+}
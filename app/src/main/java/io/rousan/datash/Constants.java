@@ -2,7 +2,47 @@ package io.rousan.datash;
 
 public class Constants {
     public final static String NOTIF_CHANNEL_DOWNLOAD_FILE = "DOWNLOAD_FILE";
+    public final static int NOTIF_ID_TRANSFER_SERVICE = 1;
+    public final static long PROGRESS_NOTIFICATION_INTERVAL_MS = 250;
+
+    public final static int TRANSFER_IO_CONCURRENCY = 2;
+    public final static long TRANSFER_MAX_IN_FLIGHT_BYTES = 64 * 1024 * 1024;
+    public final static int TRANSFER_REGISTRY_MAX_FINISHED = 200;
+    public final static long TRANSFER_REGISTRY_MAX_FINISHED_AGE_MS = 30 * 60 * 1000;
+    public final static long JOURNAL_COMMIT_INTERVAL_BYTES = 8 * 1024 * 1024;
+    public final static int FILE_NAME_CACHE_SIZE = 256;
+    public final static String TRANSFER_DIGEST_ALGORITHM = TransferDigest.SHA_256;
+    public final static long JOURNAL_MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+    public final static int BRIDGE_QUEUE_CAPACITY = 256;
+    public final static int BRIDGE_VERSION = 2;
+    public final static long APP_SHELL_CACHE_MAX_BYTES = 16 * 1024 * 1024;
+    public final static long APP_SHELL_REVALIDATE_INTERVAL_MS = 60 * 1000;
+    public final static long COMPRESSION_MIN_BYTES = 16 * 1024;
+    public final static int COMPRESSION_PROBE_BYTES = 64 * 1024;
+    public final static double COMPRESSION_MAX_ENTROPY_BITS = 7.0;
+    public final static long METRICS_LARGE_TRANSFER_BYTES = 32 * 1024 * 1024;
+    public final static String BUNDLE_MIME_TYPE = "application/vnd.datash.bundle+zip";
+    public final static int BUNDLE_MIN_FILES = 20;
+    public final static int BUNDLE_QUEUE_CHUNKS = 4;
+    public final static int REQUEST_CODE_PICK_FOLDER = 1001;
+    public final static int TRANSFER_RANGE_SIZE = 1024 * 1024;
+    public final static long TRANSFER_RANGE_MIN_FILE_BYTES = 16 * 1024 * 1024;
+    public final static int TRANSFER_RANGE_READ_AHEAD = 3;
+    public final static int TRANSFER_MAX_PENDING_RANGES = 8;
+    public final static long BUFFER_POOL_MAX_BYTES = 16 * 1024 * 1024;
+    public final static int LOW_MEMORY_MAX_CHUNK_SIZE = 256 * 1024;
+    public final static int LOW_MEMORY_MAX_PENDING_RANGES = 2;
+    public final static long LOW_MEMORY_MAX_IN_FLIGHT_BYTES = 8 * 1024 * 1024;
+    public final static long LOW_MEMORY_HOLD_MS = 60 * 1000;
+    public final static int PREVIEW_MAX_SIZE = 512;
+    public final static int PREVIEW_JPEG_QUALITY = 80;
+    public final static long PREVIEW_MEMORY_CACHE_MAX_BYTES = 4 * 1024 * 1024;
+    public final static long PREVIEW_DISK_CACHE_MAX_BYTES = 32 * 1024 * 1024;
+    public final static long SHARE_IDLE_TIMEOUT_MS = 10 * 60 * 1000;
+    public final static long SHARE_IDLE_CHECK_INTERVAL_MS = 60 * 1000;
 
     // public final static String DATASH_BASE_URL = "http://10.0.2.2:3000/";
+    // public final static String DATASH_ORIGIN = "http://10.0.2.2:3000";
     public final static String DATASH_BASE_URL = "https://datash.co/";
+    public final static String DATASH_ORIGIN = "https://datash.co";
 }
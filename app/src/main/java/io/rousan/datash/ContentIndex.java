@@ -0,0 +1,201 @@
+package io.rousan.datash;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * Files received so far by the digest of their content, so the same content doesn't have to
+ * be received twice. Kept as an append-only log like {@link TransferJournal}:
+ * <pre>
+ * A digest path size lastModified
+ * R digest
+ * </pre>
+ * A file that was deleted or changed since it was added no longer matches and is dropped
+ * when it is looked up. The log is compacted every time it is loaded.
+ */
+public class ContentIndex {
+    public static class Entry {
+        public final String digest;
+        public final File file;
+        public final long size;
+        public final long lastModified;
+
+        Entry(String digest, File file, long size, long lastModified) {
+            this.digest = digest;
+            this.file = file;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Whether the file still looks like it did when it was added. Cheap enough for every
+         * lookup; reading the whole file again would cost as much as receiving it.
+         */
+        boolean isCurrent() {
+            return file.isFile() && file.length() == size && file.lastModified() == lastModified;
+        }
+    }
+
+    private final File file;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private FileOutputStream outputStream;
+
+    public ContentIndex(File file) throws IOException {
+        this.file = file;
+        load();
+        compact();
+    }
+
+    /**
+     * Returns a file with the content {@code digest} of {@code size} bytes, or null if there
+     * is none. Digests are only compared as a whole, {@code "<algorithm>:<hex>"}.
+     */
+    public synchronized File find(String digest, long size) {
+        Entry entry = digest == null ? null : entries.get(digest.toLowerCase(Locale.ENGLISH));
+        if (entry == null) {
+            return null;
+        }
+        if (!entry.isCurrent()) {
+            remove(entry.digest);
+            return null;
+        }
+        return entry.size == size ? entry.file : null;
+    }
+
+    /**
+     * Records that {@code file} has the content {@code digest}, replacing any earlier file
+     * with the same content.
+     */
+    public synchronized void add(String digest, File file) throws IOException {
+        Entry entry = new Entry(digest.toLowerCase(Locale.ENGLISH), file, file.length(), file.lastModified());
+        entries.put(entry.digest, entry);
+        append(addLine(entry));
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void close() {
+        if (outputStream != null) {
+            try {
+                outputStream.close();
+            } catch (IOException ignored) {
+            }
+            outputStream = null;
+        }
+    }
+
+    private void remove(String digest) {
+        if (entries.remove(digest) == null) {
+            return;
+        }
+
+        try {
+            append("R\t" + encode(digest));
+        } catch (IOException exp) {
+            // The entry comes back on the next load and is dropped again on lookup.
+            Timber.d(exp);
+        }
+    }
+
+    private void append(String line) throws IOException {
+        if (outputStream == null) {
+            outputStream = new FileOutputStream(file, true);
+        }
+        // Unlike the journal nothing is lost if the last lines don't make it, so no sync.
+        outputStream.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void load() throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+
+        String content = FileUtils.readFileToString(file, StandardCharsets.UTF_8);
+        int end = content.lastIndexOf('\n');
+        if (end < 0) {
+            return;
+        }
+
+        for (String line : content.substring(0, end).split("\n")) {
+            try {
+                apply(line.split("\t"));
+            } catch (RuntimeException exp) {
+                Timber.d("Skipping content index line: %s", line);
+            }
+        }
+    }
+
+    private void apply(String[] fields) throws UnsupportedEncodingException {
+        switch (fields[0]) {
+            case "A":
+                Entry entry = new Entry(
+                        decode(fields[1]),
+                        new File(decode(fields[2])),
+                        Long.parseLong(fields[3]),
+                        Long.parseLong(fields[4])
+                );
+                entries.put(entry.digest, entry);
+                break;
+            case "R":
+                entries.remove(decode(fields[1]));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown content index record " + fields[0]);
+        }
+    }
+
+    private void compact() throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        FileOutputStream tmpStream = new FileOutputStream(tmpFile);
+        try {
+            StringBuilder builder = new StringBuilder();
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                if (entry.isCurrent()) {
+                    builder.append(addLine(entry)).append('\n');
+                } else {
+                    iterator.remove();
+                }
+            }
+            tmpStream.write(builder.toString().getBytes(StandardCharsets.UTF_8));
+            tmpStream.getFD().sync();
+        } finally {
+            tmpStream.close();
+        }
+
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException("Failed to compact " + file);
+        }
+    }
+
+    private static String addLine(Entry entry) throws UnsupportedEncodingException {
+        return "A\t" + encode(entry.digest)
+                + "\t" + encode(entry.file.getPath())
+                + "\t" + entry.size
+                + "\t" + entry.lastModified;
+    }
+
+    private static String encode(String value) throws UnsupportedEncodingException {
+        return URLEncoder.encode(value, "UTF-8");
+    }
+
+    private static String decode(String value) throws UnsupportedEncodingException {
+        return URLDecoder.decode(value, "UTF-8");
+    }
+}
@@ -0,0 +1,117 @@
+package io.rousan.datash;
+
+import org.apache.commons.io.FilenameUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Creates files with unique names in a folder: {@code IMG.jpg}, then {@code IMG1.jpg},
+ * {@code IMG2.jpg} and so on. The next free suffix is cached per name, so receiving the same
+ * name over and over costs one {@link File#createNewFile} instead of a probe per existing
+ * copy. Creation is atomic, so two concurrent writers never get the same file.
+ */
+public class FileNameAllocator {
+    private final int maxCachedNames;
+    private final Map<String, Integer> nextSuffixes;
+
+    public FileNameAllocator(final int maxCachedNames) {
+        this.maxCachedNames = maxCachedNames;
+        this.nextSuffixes = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                return size() > FileNameAllocator.this.maxCachedNames;
+            }
+        };
+    }
+
+    public File allocate(File folder, String fileName) throws IOException {
+        return allocate(folder, fileName, false);
+    }
+
+    /**
+     * Like {@link #allocate}, but creates an empty folder under the name.
+     */
+    public File allocateFolder(File folder, String name) throws IOException {
+        return allocate(folder, name, true);
+    }
+
+    private synchronized File allocate(File folder, String fileName, boolean isFolder) throws IOException {
+        String key = folder.getPath() + File.separator + fileName;
+        Integer cached = nextSuffixes.get(key);
+        int suffix = cached != null ? cached : firstFreeSuffix(folder, fileName);
+
+        while (true) {
+            File file = new File(folder, nameWithSuffix(fileName, suffix));
+            if (isFolder ? file.mkdir() : file.createNewFile()) {
+                nextSuffixes.put(key, suffix + 1);
+                return file;
+            }
+            if (isFolder && !file.exists()) {
+                throw new IOException("Failed to create " + file);
+            }
+            // Someone else took it since we last looked.
+            suffix++;
+        }
+    }
+
+    static String nameWithSuffix(String fileName, int suffix) {
+        if (suffix == 0) {
+            return fileName;
+        }
+
+        String ext = FilenameUtils.getExtension(fileName);
+        if (ext.isEmpty()) {
+            return fileName + suffix;
+        }
+        String base = fileName.substring(0, fileName.length() - ext.length() - 1);
+        return base + suffix + "." + ext;
+    }
+
+    /**
+     * Finds the suffix to start from with a single directory listing: the plain name when it's
+     * free, otherwise one past the highest suffix in use.
+     */
+    private static int firstFreeSuffix(File folder, String fileName) {
+        String[] names = folder.list();
+        if (names == null) {
+            return 0;
+        }
+
+        Set<String> existing = new HashSet<>();
+        for (String name : names) {
+            existing.add(name);
+        }
+        if (!existing.contains(fileName)) {
+            return 0;
+        }
+
+        String ext = FilenameUtils.getExtension(fileName);
+        String base = ext.isEmpty() ? fileName : fileName.substring(0, fileName.length() - ext.length() - 1);
+        String tail = ext.isEmpty() ? "" : "." + ext;
+
+        int highest = 0;
+        for (String name : existing) {
+            if (name.length() <= base.length() + tail.length() || !name.startsWith(base) || !name.endsWith(tail)) {
+                continue;
+            }
+
+            String digits = name.substring(base.length(), name.length() - tail.length());
+            if (digits.charAt(0) == '0' || digits.length() > 9) {
+                continue;
+            }
+
+            int value = 0;
+            for (int i = 0; i < digits.length() && value >= 0; i++) {
+                char c = digits.charAt(i);
+                value = c >= '0' && c <= '9' ? value * 10 + (c - '0') : -1;
+            }
+            highest = Math.max(highest, value);
+        }
+        return highest + 1;
+    }
+}
@@ -0,0 +1,227 @@
+package io.rousan.datash;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import timber.log.Timber;
+
+/**
+ * Appends incoming data to {@code .part} files in arrival order. Peak memory per transfer is
+ * bounded by the chunk size, not by the file size. When a journal is set, progress is
+ * committed to it periodically so the transfer can be resumed later.
+ */
+public class FileReceiver {
+    public interface ProgressListener {
+        void onProgress(String refId, long bytesWritten);
+    }
+
+    private final ConcurrentHashMap<String, IncomingFile> incomingFiles = new ConcurrentHashMap<>();
+    private final TransferJournal journal;
+    private final String digestAlgorithm;
+    private volatile ProgressListener progressListener;
+    private volatile TransferMetrics metrics = TransferMetrics.DISABLED;
+    private volatile BufferPool bufferPool = new BufferPool(Constants.BUFFER_POOL_MAX_BYTES);
+
+    /**
+     * @param journal         where progress is committed for resuming, or null
+     * @param digestAlgorithm digest computed while receiving, or null to skip verification
+     */
+    public FileReceiver(TransferJournal journal, String digestAlgorithm) {
+        this.journal = journal;
+        this.digestAlgorithm = TransferDigest.negotiate(digestAlgorithm);
+    }
+
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    public void setMetrics(TransferMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Where files opened from now on take their buffers from.
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    public boolean isOpen(String refId) {
+        return incomingFiles.containsKey(refId);
+    }
+
+    public IncomingFile open(TransferJournal.Entry entry) throws IOException {
+        if (journal != null) {
+            journal.begin(entry);
+        }
+        return put(new IncomingFile(entry.refId, entry.partFile, entry.size, 0, new CRC32(), createDigest(), progressListener, journal, metrics, bufferPool));
+    }
+
+    /**
+     * Reopens a journaled transfer at its committed offset. Returns null when the partial file
+     * is gone or doesn't match the checksum any more, the caller should start over then.
+     */
+    public IncomingFile resume(TransferJournal.Entry entry) throws IOException {
+        long offset = entry.getCommittedOffset();
+        if (!entry.partFile.isFile() || entry.partFile.length() < offset) {
+            return null;
+        }
+
+        CRC32 checksum = new CRC32();
+        TransferDigest digest = createDigest();
+        hashFile(entry.partFile, offset, checksum, digest);
+        if (checksum.getValue() != entry.getChecksum()) {
+            return null;
+        }
+        return put(new IncomingFile(entry.refId, entry.partFile, entry.size, offset, checksum, digest, progressListener, journal, metrics, bufferPool));
+    }
+
+    public void setEncoding(String refId, String encoding) throws IOException {
+        get(refId).setCodec(TransferCodec.create(encoding));
+    }
+
+    public void setExtractor(String refId, BundleExtractor extractor) throws IOException {
+        get(refId).setExtractor(extractor);
+    }
+
+    public long writeChunk(String refId, long seq, String base64Chunk) throws IOException {
+        return get(refId).write(seq, base64Chunk);
+    }
+
+    /**
+     * Writes one range of the file, see {@link IncomingFile#writeRange}. Safe to call from
+     * several threads at once.
+     */
+    public long writeRange(String refId, int index, String base64Range) throws IOException {
+        return get(refId).writeRange(index, base64Range);
+    }
+
+    /**
+     * Closes the file and checks it against {@code expectedDigest} from the sender. Throws if
+     * they don't match; the partial file is left for the caller to abort.
+     */
+    public IncomingFile finish(String refId, String expectedDigest) throws IOException {
+        IncomingFile incomingFile = incomingFiles.remove(refId);
+        if (incomingFile == null) {
+            throw new IOException("No open file for " + refId);
+        }
+        long startedAt = metrics.start();
+        try {
+            incomingFile.finishDecoding();
+        } finally {
+            incomingFile.close();
+        }
+
+        // Finished once here, it's needed for verification and for the content index.
+        TransferDigest digest = incomingFile.getDigest();
+        String contentDigest = digest == null ? null : digest.finish();
+        if (expectedDigest != null) {
+            String actualDigest = digestOf(incomingFile, contentDigest, TransferDigest.algorithmOf(expectedDigest));
+            if (actualDigest == null) {
+                Timber.d("Can't verify %s, unsupported digest %s", refId, expectedDigest);
+            } else if (!actualDigest.equalsIgnoreCase(expectedDigest)) {
+                throw new IOException(String.format("Checksum mismatch for %s", incomingFile.getFile().getName()));
+            }
+        }
+        incomingFile.setContentDigest(contentDigest);
+        metrics.record(TransferMetrics.Stage.FINISH, startedAt, incomingFile.getBytesWritten());
+        return incomingFile;
+    }
+
+    private String digestOf(IncomingFile incomingFile, String contentDigest, String algorithm) throws IOException {
+        if (contentDigest != null && TransferDigest.algorithmOf(contentDigest).equals(algorithm)) {
+            return contentDigest;
+        }
+        if (algorithm == null || !TransferDigest.isSupported(algorithm)) {
+            return null;
+        }
+
+        // The sender picked a different algorithm than we computed on the fly, so it takes
+        // another pass over the file.
+        TransferDigest digest = TransferDigest.create(algorithm);
+        hashFile(incomingFile.getFile(), incomingFile.getBytesWritten(), null, digest);
+        return digest.finish();
+    }
+
+    private TransferDigest createDigest() {
+        return digestAlgorithm == null ? null : TransferDigest.create(digestAlgorithm);
+    }
+
+    public void abort(String refId) {
+        IncomingFile incomingFile = incomingFiles.remove(refId);
+        if (incomingFile != null) {
+            try {
+                incomingFile.close();
+            } catch (IOException ignored) {
+            }
+            incomingFile.getFile().delete();
+        }
+
+        if (journal != null) {
+            TransferJournal.Entry entry = journal.get(refId);
+            if (entry != null) {
+                entry.partFile.delete();
+                journal.end(refId);
+            }
+        }
+    }
+
+    /**
+     * Closes every open file but keeps the partial data and journal entries around for a
+     * later resume.
+     */
+    public void closeAll() {
+        for (String refId : incomingFiles.keySet()) {
+            IncomingFile incomingFile = incomingFiles.remove(refId);
+            if (incomingFile != null) {
+                try {
+                    incomingFile.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    public IncomingFile get(String refId) throws IOException {
+        IncomingFile incomingFile = incomingFiles.get(refId);
+        if (incomingFile == null) {
+            throw new IOException("No open file for " + refId);
+        }
+        return incomingFile;
+    }
+
+    private IncomingFile put(IncomingFile incomingFile) throws IOException {
+        IncomingFile previous = incomingFiles.put(incomingFile.getRefId(), incomingFile);
+        if (previous != null) {
+            previous.close();
+        }
+        return incomingFile;
+    }
+
+    private static void hashFile(File file, long length, CRC32 checksum, TransferDigest digest) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            long remaining = length;
+            while (remaining > 0) {
+                int read = inputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    break;
+                }
+                if (checksum != null) {
+                    checksum.update(buffer, 0, read);
+                }
+                if (digest != null) {
+                    digest.update(buffer, 0, read);
+                }
+                remaining -= read;
+            }
+        } finally {
+            inputStream.close();
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package io.rousan.datash;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves open files to the web app chunk by chunk. The page pulls the next chunk when it is
+ * ready for it, so only one chunk per file is ever held in memory.
+ */
+public class FileSender {
+    public final static int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private final ConcurrentHashMap<String, OutgoingFile> outgoingFiles = new ConcurrentHashMap<>();
+    private final AtomicLong nextHandleId = new AtomicLong();
+    private final String digestAlgorithm;
+    private volatile TransferMetrics metrics = TransferMetrics.DISABLED;
+    private volatile Executor executor;
+    private volatile BufferPool bufferPool = new BufferPool(Constants.BUFFER_POOL_MAX_BYTES);
+    private volatile int maxChunkSize = MAX_CHUNK_SIZE;
+    private volatile int readAhead = Constants.TRANSFER_RANGE_READ_AHEAD;
+
+    /**
+     * @param digestAlgorithm digest computed while sending, or null for none
+     */
+    public FileSender(String digestAlgorithm) {
+        this.digestAlgorithm = TransferDigest.negotiate(digestAlgorithm);
+    }
+
+    public void setMetrics(TransferMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Where ranges are read ahead, see {@link #readRange}. Without one, ranges are only read
+     * when asked for.
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * The digest actually computed, which can differ from the one asked for on old devices.
+     */
+    public String getDigestAlgorithm() {
+        return digestAlgorithm;
+    }
+
+    /**
+     * Where files opened from now on take their buffers from.
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Caps chunks below {@link #MAX_CHUNK_SIZE}, e.g. while memory is low.
+     */
+    public void setMaxChunkSize(int maxChunkSize) {
+        this.maxChunkSize = Math.min(maxChunkSize, MAX_CHUNK_SIZE);
+    }
+
+    public int getMaxChunkSize() {
+        return maxChunkSize;
+    }
+
+    /**
+     * How many ranges are read ahead of the one asked for, 0 for none.
+     */
+    public void setReadAhead(int readAhead) {
+        this.readAhead = readAhead;
+    }
+
+    public OutgoingFile open(FileChannel channel, Closeable owner, long size) {
+        String handleId = "h" + nextHandleId.incrementAndGet();
+        TransferDigest digest = digestAlgorithm == null ? null : TransferDigest.create(digestAlgorithm);
+        OutgoingFile outgoingFile = new OutgoingFile(handleId, channel, owner, size, digest, metrics, bufferPool);
+        outgoingFiles.put(handleId, outgoingFile);
+        return outgoingFile;
+    }
+
+    /**
+     * Serves a stream that can only be read once, in order.
+     *
+     * @param size total length, or -1 if unknown
+     */
+    public OutgoingFile openStream(InputStream source, long size) {
+        String handleId = "h" + nextHandleId.incrementAndGet();
+        TransferDigest digest = digestAlgorithm == null ? null : TransferDigest.create(digestAlgorithm);
+        OutgoingFile outgoingFile = new OutgoingFile(handleId, source, size, digest, metrics, bufferPool);
+        outgoingFiles.put(handleId, outgoingFile);
+        return outgoingFile;
+    }
+
+    public OutgoingFile get(String handleId) {
+        return outgoingFiles.get(handleId);
+    }
+
+    public String getDigest(String handleId) {
+        OutgoingFile outgoingFile = outgoingFiles.get(handleId);
+        return outgoingFile == null ? null : outgoingFile.getDigest();
+    }
+
+    /**
+     * Switches a file to an encoded stream before its first read, see
+     * {@link OutgoingFile#setCodec}. Returns false when that's no longer possible or the
+     * encoding isn't supported.
+     */
+    public boolean setEncoding(String handleId, String encoding) {
+        OutgoingFile outgoingFile = outgoingFiles.get(handleId);
+        return outgoingFile != null && encoding != null && TransferCodec.isSupported(encoding)
+                && outgoingFile.setCodec(TransferCodec.create(encoding));
+    }
+
+    public String readChunk(String handleId, long offset, int length) throws IOException {
+        OutgoingFile outgoingFile = outgoingFiles.get(handleId);
+        if (outgoingFile == null) {
+            throw new IOException("No open file for handle " + handleId);
+        }
+        if (offset < 0 || length < 0) {
+            throw new IOException(String.format("Invalid range %d+%d for handle %s", offset, length, handleId));
+        }
+        outgoingFile.beginRead();
+        try {
+            return outgoingFile.read(offset, Math.min(length, maxChunkSize));
+        } finally {
+            outgoingFile.endRead();
+        }
+    }
+
+    /**
+     * Returns range {@code index} of a file as Base64 and starts reading the next few on the
+     * executor, so reading and encoding use several cores while the page handles this one.
+     */
+    public String readRange(String handleId, int index) throws IOException {
+        OutgoingFile outgoingFile = outgoingFiles.get(handleId);
+        if (outgoingFile == null) {
+            throw new IOException("No open file for handle " + handleId);
+        }
+
+        String range;
+        outgoingFile.beginRead();
+        try {
+            range = outgoingFile.takeReadAhead(index);
+            if (range == null) {
+                range = outgoingFile.readRange(index);
+            }
+        } finally {
+            outgoingFile.endRead();
+        }
+
+        Executor executor = this.executor;
+        if (executor != null) {
+            for (int next = index + 1; next <= index + readAhead; next++) {
+                outgoingFile.readAhead(next, executor);
+            }
+        }
+        return range;
+    }
+
+    public List<String> getHandleIds() {
+        return new ArrayList<>(outgoingFiles.keySet());
+    }
+
+    /**
+     * Handles of the files nothing was read from since {@code idleSince}.
+     */
+    public List<String> getIdleHandleIds(long idleSince) {
+        List<String> handleIds = new ArrayList<>();
+        for (OutgoingFile outgoingFile : outgoingFiles.values()) {
+            if (outgoingFile.isIdleSince(idleSince)) {
+                handleIds.add(outgoingFile.getHandleId());
+            }
+        }
+        return handleIds;
+    }
+
+    public void close(String handleId) {
+        OutgoingFile outgoingFile = outgoingFiles.remove(handleId);
+        if (outgoingFile == null) {
+            return;
+        }
+
+        try {
+            outgoingFile.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public void closeAll() {
+        for (String handleId : outgoingFiles.keySet()) {
+            close(handleId);
+        }
+    }
+}
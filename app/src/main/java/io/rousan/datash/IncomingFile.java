@@ -0,0 +1,406 @@
+package io.rousan.datash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.IOUtils;
+
+public class IncomingFile {
+    private final static int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
+    private final String refId;
+    private final File file;
+    private final long size;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final FileReceiver.ProgressListener progressListener;
+    private final TransferJournal journal;
+    private final CRC32 checksum;
+    private final TransferDigest digest;
+    private final TransferMetrics metrics;
+    private final BufferPool bufferPool;
+    private long nextSeq = 0;
+    private volatile long bytesWritten;
+    private long committedOffset;
+    private OutputStream decoder;
+    private BundleExtractor extractor;
+    private boolean isEncoded = false;
+    private volatile RangeTracker ranges;
+    private final AtomicLong rangeBytesWritten = new AtomicLong();
+    private int pendingRanges = 0;
+    private volatile String contentDigest;
+
+    /**
+     * Opens {@code file} for writing at {@code offset}. Anything past the offset is dropped,
+     * and {@code checksum} and {@code digest} have to already cover the bytes before it.
+     *
+     * @param size expected length of the file, or -1 if unknown
+     */
+    IncomingFile(String refId, File file, long size, long offset, CRC32 checksum, TransferDigest digest, FileReceiver.ProgressListener progressListener, TransferJournal journal, TransferMetrics metrics, BufferPool bufferPool) throws IOException {
+        this.refId = refId;
+        this.file = file;
+        this.size = size;
+        this.progressListener = progressListener;
+        this.journal = journal;
+        this.checksum = checksum;
+        this.digest = digest;
+        this.metrics = metrics;
+        this.bufferPool = bufferPool;
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        this.channel = randomAccessFile.getChannel();
+        this.bytesWritten = offset;
+        this.committedOffset = offset;
+
+        channel.truncate(offset);
+        channel.position(offset);
+    }
+
+    public String getRefId() {
+        return refId;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getBytesWritten() {
+        return ranges == null ? bytesWritten : rangeBytesWritten.get();
+    }
+
+    TransferDigest getDigest() {
+        return digest;
+    }
+
+    /**
+     * Digest of the received content, set once the file was finished and verified. Null if
+     * no digest was computed.
+     */
+    public String getContentDigest() {
+        return contentDigest;
+    }
+
+    void setContentDigest(String contentDigest) {
+        this.contentDigest = contentDigest;
+    }
+
+    /**
+     * Decodes everything written from now on with {@code codec}. Must be set before the first
+     * byte arrives. Offsets of encoded data don't map onto the file, so such a transfer isn't
+     * committed to the journal and can't be resumed.
+     */
+    synchronized void setCodec(TransferCodec codec) throws IOException {
+        if (bytesWritten != 0 || nextSeq != 0 || ranges != null) {
+            throw new IOException("Encoding for " + refId + " set after data arrived");
+        }
+
+        isEncoded = true;
+        decoder = codec.decode(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                writeBytes(b, off, len);
+            }
+        });
+    }
+
+    /**
+     * Unpacks the (decoded) data with {@code extractor} instead of writing it to the file.
+     * The digest still covers the data as received. Like encoding, this rules out resuming.
+     */
+    synchronized void setExtractor(BundleExtractor extractor) throws IOException {
+        if (bytesWritten != 0 || nextSeq != 0 || ranges != null) {
+            throw new IOException("Extractor for " + refId + " set after data arrived");
+        }
+
+        isEncoded = true;
+        this.extractor = extractor;
+    }
+
+    synchronized BundleExtractor getExtractor() {
+        return extractor;
+    }
+
+    /**
+     * Flushes whatever the decoder still holds and waits for the extractor to finish, or for
+     * the ranges still being written. Fails if the encoded stream, the bundle or the ranges
+     * were incomplete.
+     */
+    synchronized void finishDecoding() throws IOException {
+        if (ranges != null) {
+            finishRanges();
+        }
+        if (decoder != null) {
+            OutputStream decoder = this.decoder;
+            this.decoder = null;
+            decoder.close();
+        }
+        if (extractor != null) {
+            extractor.close();
+        }
+    }
+
+    synchronized long write(long seq, String base64Chunk) throws IOException {
+        checkNotRanged();
+        if (seq != nextSeq) {
+            throw new IOException(String.format("Out of order chunk for %s: expected %d, got %d", refId, nextSeq, seq));
+        }
+
+        byte[] buffer = bufferPool.acquireBytes(Base64Codec.maxDecodedLength(base64Chunk.length()));
+        try {
+            long startedAt = metrics.start();
+            int length = Base64Codec.decode(base64Chunk, buffer);
+            metrics.record(TransferMetrics.Stage.BASE64_DECODE, startedAt, length);
+            append(buffer, length);
+        } finally {
+            bufferPool.releaseBytes(buffer);
+        }
+
+        nextSeq++;
+        return bytesWritten;
+    }
+
+    synchronized long writeFrom(InputStream inputStream, long length) throws IOException {
+        checkNotRanged();
+        byte[] buffer = bufferPool.acquireBytes(TRANSFER_BUFFER_SIZE);
+        try {
+            long remaining = length;
+            while (remaining > 0) {
+                int read = inputStream.read(buffer, 0, (int) Math.min(TRANSFER_BUFFER_SIZE, remaining));
+                if (read < 0) {
+                    throw new IOException(String.format("Unexpected end of stream for %s, %d bytes missing", refId, remaining));
+                }
+
+                append(buffer, read);
+                remaining -= read;
+            }
+        } finally {
+            bufferPool.releaseBytes(buffer);
+        }
+        return bytesWritten;
+    }
+
+    private void append(byte[] src, int length) throws IOException {
+        if (decoder != null) {
+            decoder.write(src, 0, length);
+        } else {
+            writeBytes(src, 0, length);
+        }
+    }
+
+    private void writeBytes(byte[] src, int offset, int length) throws IOException {
+        long startedAt = metrics.start();
+        if (extractor != null) {
+            extractor.write(src, offset, length);
+        } else {
+            ByteBuffer byteBuffer = ByteBuffer.wrap(src, offset, length);
+            while (byteBuffer.hasRemaining()) {
+                channel.write(byteBuffer);
+            }
+        }
+        metrics.record(TransferMetrics.Stage.DISK_WRITE, startedAt, length);
+
+        startedAt = metrics.start();
+        checksum.update(src, offset, length);
+        if (digest != null) {
+            digest.update(src, offset, length);
+        }
+        metrics.record(TransferMetrics.Stage.DIGEST, startedAt, length);
+        bytesWritten += length;
+
+        if (journal != null && !isEncoded && bytesWritten - committedOffset >= Constants.JOURNAL_COMMIT_INTERVAL_BYTES) {
+            commit();
+        }
+        if (progressListener != null) {
+            progressListener.onProgress(refId, bytesWritten);
+        }
+    }
+
+    /**
+     * Waits until fewer than {@code maxPending} ranges are being written, then counts one
+     * more. Call {@link #releaseRange} once it has been written, successfully or not.
+     */
+    synchronized void reserveRange(int maxPending) throws IOException {
+        try {
+            while (pendingRanges >= maxPending) {
+                wait();
+            }
+        } catch (InterruptedException exp) {
+            throw new InterruptedIOException();
+        }
+        pendingRanges++;
+    }
+
+    synchronized void releaseRange() {
+        pendingRanges--;
+        notifyAll();
+    }
+
+    /**
+     * Writes range {@code index} of the file, see {@link RangeTracker}. Unlike chunks, ranges
+     * may arrive in any order and can be written from several threads at once. A range that
+     * was already written is ignored, so a failed one can simply be sent again.
+     */
+    long writeRange(int index, String base64Range) throws IOException {
+        RangeTracker ranges = startRanges();
+        int length = ranges.getRangeLength(index);
+        int maxLength = Base64Codec.maxDecodedLength(base64Range.length());
+        if (maxLength > length + 5) {
+            throw new IOException(String.format("Range %d of %s is too long", index, refId));
+        }
+
+        byte[] buffer = bufferPool.acquireBytes(maxLength);
+        try {
+            long startedAt = metrics.start();
+            int decoded = Base64Codec.decode(base64Range, buffer);
+            metrics.record(TransferMetrics.Stage.BASE64_DECODE, startedAt, decoded);
+            if (decoded != length) {
+                throw new IOException(String.format("Range %d of %s has %d bytes, expected %d", index, refId, decoded, length));
+            }
+            return writeRangeBytes(ranges, index, buffer, length);
+        } finally {
+            bufferPool.releaseBytes(buffer);
+        }
+    }
+
+    long writeRangeFrom(int index, InputStream inputStream, long length) throws IOException {
+        RangeTracker ranges = startRanges();
+        int expected = ranges.getRangeLength(index);
+        if (length != expected) {
+            throw new IOException(String.format("Range %d of %s has %d bytes, expected %d", index, refId, length, expected));
+        }
+
+        byte[] buffer = bufferPool.acquireBytes(expected);
+        try {
+            IOUtils.readFully(inputStream, buffer, 0, expected);
+            return writeRangeBytes(ranges, index, buffer, expected);
+        } finally {
+            bufferPool.releaseBytes(buffer);
+        }
+    }
+
+    private long writeRangeBytes(RangeTracker ranges, int index, byte[] src, int length) throws IOException {
+        if (ranges.isDone(index)) {
+            return rangeBytesWritten.get();
+        }
+
+        long startedAt = metrics.start();
+        ByteBuffer byteBuffer = ByteBuffer.wrap(src, 0, length);
+        long position = ranges.getRangeOffset(index);
+        while (byteBuffer.hasRemaining()) {
+            position += channel.write(byteBuffer, position);
+        }
+        metrics.record(TransferMetrics.Stage.DISK_WRITE, startedAt, length);
+
+        long written = rangeBytesWritten.get();
+        if (ranges.complete(index)) {
+            written = rangeBytesWritten.addAndGet(length);
+            if (progressListener != null) {
+                progressListener.onProgress(refId, written);
+            }
+        }
+        return written;
+    }
+
+    private synchronized RangeTracker startRanges() throws IOException {
+        if (ranges != null) {
+            return ranges;
+        }
+        if (isEncoded) {
+            throw new IOException("Encoded transfer " + refId + " can't be sent in ranges");
+        }
+        if (size < 0) {
+            throw new IOException("Size of " + refId + " is unknown, it can't be sent in ranges");
+        }
+        if (nextSeq != 0) {
+            throw new IOException("Transfer " + refId + " already gets chunks in order");
+        }
+
+        // Reserves the whole file up front, so positional writes past the end don't have to
+        // grow it piece by piece.
+        randomAccessFile.setLength(size);
+        RangeTracker ranges = new RangeTracker(channel, size, Constants.TRANSFER_RANGE_SIZE, bytesWritten, checksum, digest, metrics, new RangeTracker.Listener() {
+            @Override
+            public void onHashed(long offset) throws IOException {
+                onRangesHashed(offset);
+            }
+        });
+        rangeBytesWritten.set(bytesWritten);
+        this.ranges = ranges;
+        return ranges;
+    }
+
+    /**
+     * Runs on the hashing thread, so the checksum matches {@code offset} exactly.
+     */
+    private void onRangesHashed(long offset) throws IOException {
+        if (journal != null && offset - committedOffset >= Constants.JOURNAL_COMMIT_INTERVAL_BYTES) {
+            long startedAt = metrics.start();
+            channel.force(false);
+            journal.commit(refId, offset, checksum.getValue());
+            metrics.record(TransferMetrics.Stage.JOURNAL_COMMIT, startedAt, offset - committedOffset);
+            committedOffset = offset;
+        }
+    }
+
+    private void finishRanges() throws IOException {
+        try {
+            while (pendingRanges > 0) {
+                wait();
+            }
+        } catch (InterruptedException exp) {
+            throw new InterruptedIOException();
+        }
+
+        long hashedOffset = ranges.awaitHashed();
+        if (hashedOffset != size) {
+            throw new IOException(String.format("Ranges of %s incomplete, only %d of %d bytes arrived in order", refId, ranges.getContiguousOffset(), size));
+        }
+    }
+
+    private void checkNotRanged() throws IOException {
+        if (ranges != null) {
+            throw new IOException("Transfer " + refId + " already gets ranges");
+        }
+    }
+
+    /**
+     * Makes everything written so far durable, then records it in the journal. The order
+     * matters: a committed offset must never point past data that isn't on disk.
+     */
+    private void commit() throws IOException {
+        long startedAt = metrics.start();
+        channel.force(false);
+        journal.commit(refId, bytesWritten, checksum.getValue());
+        metrics.record(TransferMetrics.Stage.JOURNAL_COMMIT, startedAt, bytesWritten - committedOffset);
+        committedOffset = bytesWritten;
+    }
+
+    /**
+     * Closes the file. An extraction that hasn't been finished with {@link #finishDecoding}
+     * is aborted and its files are deleted.
+     */
+    synchronized void close() throws IOException {
+        if (extractor != null) {
+            extractor.abort();
+        }
+        channel.force(false);
+        channel.close();
+        randomAccessFile.close();
+    }
+}
@@ -2,46 +2,282 @@ package io.rousan.datash;
 
 import android.webkit.JavascriptInterface;
 
+import java.io.File;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
 import timber.log.Timber;
 
+/**
+ * Fire and forget calls are queued on the {@link BridgeDispatcher} and return immediately.
+ * Calls that answer the page wait for the dispatcher to drain first, so they observe every
+ * message sent before them.
+ */
 public class JavaScriptInterface {
     MainActivity mainActivity;
+    TransferService transferService;
+    private final BridgeDispatcher dispatcher = new BridgeDispatcher(Constants.BRIDGE_QUEUE_CAPACITY);
 
-    public JavaScriptInterface(MainActivity mainActivity) {
+    public JavaScriptInterface(MainActivity mainActivity, TransferService transferService) {
         this.mainActivity = mainActivity;
+        this.transferService = transferService;
+        registerRoutes();
+        dispatcher.setMetrics(transferService.getMetrics());
+        dispatcher.start();
+    }
+
+    public BridgeDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    public void shutdown() {
+        dispatcher.shutdown();
+    }
+
+    private void registerRoutes() {
+        dispatcher.register("start", new BridgeDispatcher.Route() {
+            @Override
+            public void handle(String[] args) {
+                transferService.onStartFileDownload(args[0], args[1], args[2], Long.parseLong(args[3]), args[4]);
+            }
+        });
+        dispatcher.register("progress", new BridgeDispatcher.Route() {
+            @Override
+            public void handle(String[] args) {
+                transferService.onFileProgress(args[0], Long.parseLong(args[1]));
+            }
+        });
+        dispatcher.register("end", new BridgeDispatcher.Route() {
+            @Override
+            public void handle(final String[] args) {
+                // Verifying and moving the file can take a while, keep the queue moving.
+                transferService.getScheduler().execute(TransferScheduler.Pool.IO, new Runnable() {
+                    @Override
+                    public void run() {
+                        transferService.onFileEnd(args[0], args.length > 1 && !args[1].isEmpty() ? args[1] : null);
+                    }
+                });
+            }
+        });
+        dispatcher.register("complete", new BridgeDispatcher.Route() {
+            @Override
+            public void handle(String[] args) {
+                transferService.onCompleteFileDownload(args[0], args[1]);
+            }
+        });
+        dispatcher.register("cancel", new BridgeDispatcher.Route() {
+            @Override
+            public void handle(String[] args) {
+                transferService.cancelTransfer(args[0]);
+            }
+        });
+        dispatcher.register("close", new BridgeDispatcher.Route() {
+            @Override
+            public void handle(String[] args) {
+                transferService.closeFile(args[0]);
+            }
+        });
+        dispatcher.register("mount", new BridgeDispatcher.Route() {
+            @Override
+            public void handle(String[] args) {
+                mainActivity.onWebAppMount();
+            }
+        });
+    }
+
+    private void awaitDispatcher() {
+        try {
+            dispatcher.awaitIdle();
+        } catch (InterruptedException exp) {
+            Timber.d(exp);
+            Thread.currentThread().interrupt();
+        }
     }
 
     @JavascriptInterface
     public void ping() {
     }
 
+    @JavascriptInterface
+    public int getBridgeVersion() {
+        return Constants.BRIDGE_VERSION;
+    }
+
+    /**
+     * Takes a batch of messages in one bridge crossing, see {@link BridgeDispatcher}.
+     */
+    @JavascriptInterface
+    public void postMessages(String frame) {
+        dispatcher.postFrame(frame);
+    }
+
+    @JavascriptInterface
+    public String getBridgeStats() {
+        return String.format(Locale.ENGLISH,
+                "{\"queueDepth\":%d,\"maxQueueDepth\":%d,\"messages\":%d,\"failed\":%d,\"avgLatencyNanos\":%d,\"maxLatencyNanos\":%d}",
+                dispatcher.getQueueDepth(),
+                dispatcher.getMaxQueueDepth(),
+                dispatcher.getMessageCount(),
+                dispatcher.getFailedCount(),
+                dispatcher.getAverageLatencyNanos(),
+                dispatcher.getMaxLatencyNanos()
+        );
+    }
+
+    /**
+     * Transfer metrics as JSON, for the web app's debug screen.
+     */
+    @JavascriptInterface
+    public String getTransferMetrics() {
+        Map<String, Object> gauges = new HashMap<>();
+        gauges.put("bridge.queueDepth", dispatcher.getQueueDepth());
+        gauges.put("bridge.maxQueueDepth", dispatcher.getMaxQueueDepth());
+        return transferService.exportMetrics(gauges);
+    }
+
+    @JavascriptInterface
+    public String dumpTransferMetrics() {
+        File file = transferService.dumpMetrics();
+        return file == null ? null : file.getPath();
+    }
+
+    /**
+     * The page can unpack bundles, so large multi-file shares may be sent as one. Has to be
+     * called before {@link #onWebAppMount}; pages that never call it get separate files.
+     */
+    @JavascriptInterface
+    public void acceptBundles() {
+        mainActivity.setBundlesAccepted(true);
+    }
+
+    /**
+     * Opens the system folder picker. The chosen folder arrives in the share manifest as one
+     * bundle.
+     */
+    @JavascriptInterface
+    public void pickFolder() {
+        mainActivity.pickFolderToSend();
+    }
+
     @JavascriptInterface
     public void onStartFileDownload(final String refId, final String fromId, final String fileName, final String size, final String mimeType) {
-        mainActivity.runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                mainActivity.onStartFileDownload(refId, fromId, fileName, Long.parseLong(size), mimeType);
-            }
-        });
+        dispatcher.post("start", refId, fromId, fileName, size, mimeType);
+    }
+
+    @JavascriptInterface
+    public boolean setDownloadEncoding(String refId, String encoding) {
+        awaitDispatcher();
+        return transferService.setDownloadEncoding(refId, encoding);
+    }
+
+    @JavascriptInterface
+    public boolean hasContent(String refId, String digest) {
+        awaitDispatcher();
+        return transferService.hasContent(refId, digest);
+    }
+
+    @JavascriptInterface
+    public long getResumeOffset(String refId) {
+        awaitDispatcher();
+        return transferService.getResumeOffset(refId);
+    }
+
+    @JavascriptInterface
+    public boolean onFileChunk(String refId, String seq, String base64Chunk) {
+        awaitDispatcher();
+        // Written synchronously: the page can't queue up more chunks than the disk keeps up with.
+        return transferService.onFileChunk(refId, Long.parseLong(seq), base64Chunk);
+    }
+
+    @JavascriptInterface
+    public int getTransferRangeSize() {
+        return Constants.TRANSFER_RANGE_SIZE;
+    }
+
+    @JavascriptInterface
+    public int getMaxChunkSize() {
+        // Drops while the device is low on memory.
+        return transferService.getMaxChunkSize();
+    }
+
+    @JavascriptInterface
+    public boolean onFileRange(String refId, String index, String base64Range) {
+        awaitDispatcher();
+        // Decoded and written on the CPU pool; only blocks once too many ranges are pending.
+        return transferService.onFileRange(refId, Integer.parseInt(index), base64Range);
+    }
+
+    @JavascriptInterface
+    public void onFileProgress(String refId, String bytes) {
+        dispatcher.post("progress", refId, bytes);
+    }
+
+    @JavascriptInterface
+    public void onFileEnd(String refId, String digest) {
+        dispatcher.post("end", refId, digest == null ? "" : digest);
     }
 
     @JavascriptInterface
     public void onCompleteFileDownload(final String refId, final String base64Data) {
-        mainActivity.runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                mainActivity.onCompleteFileDownload(refId, base64Data);
-            }
-        });
+        dispatcher.post("complete", refId, base64Data);
+    }
+
+    @JavascriptInterface
+    public String readChunk(String handleId, String offset, String length) {
+        awaitDispatcher();
+        return transferService.readChunk(handleId, Long.parseLong(offset), Integer.parseInt(length));
+    }
+
+    @JavascriptInterface
+    public int getRangeCount(String handleId) {
+        awaitDispatcher();
+        return transferService.getRangeCount(handleId);
+    }
+
+    @JavascriptInterface
+    public String readRange(String handleId, String index) {
+        awaitDispatcher();
+        return transferService.readRange(handleId, Integer.parseInt(index));
+    }
+
+    @JavascriptInterface
+    public boolean encodeFile(String handleId, String encoding) {
+        return transferService.encodeFile(handleId, encoding);
+    }
+
+    @JavascriptInterface
+    public String getContentEncoding(String handleId) {
+        return transferService.getContentEncoding(handleId);
+    }
+
+    @JavascriptInterface
+    public String getDigest(String handleId) {
+        return transferService.getDigest(handleId);
+    }
+
+    @JavascriptInterface
+    public String getDigestAlgorithm() {
+        return transferService.getDigestAlgorithm();
+    }
+
+    @JavascriptInterface
+    public void cancelTransfer(String refId) {
+        dispatcher.post("cancel", refId);
+    }
+
+    @JavascriptInterface
+    public void closeFile(String handleId) {
+        dispatcher.post("close", handleId);
+    }
+
+    @JavascriptInterface
+    public String getFileServerUrl() {
+        return transferService.getFileServerUrl();
     }
 
     @JavascriptInterface
     public void onWebAppMount() {
-        mainActivity.runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                mainActivity.onWebAppMount();
-            }
-        });
+        dispatcher.post("mount");
     }
 }
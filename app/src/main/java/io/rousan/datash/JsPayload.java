@@ -0,0 +1,79 @@
+package io.rousan.datash;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Builds the scripts handed to {@code evaluateJavascript}. Values are written as JSON
+ * literals, which are valid JavaScript as long as U+2028 and U+2029 are escaped too.
+ */
+public class JsPayload {
+    private JsPayload() {
+    }
+
+    public static String textShare(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        char[] encoded = new char[Base64Codec.encodedLength(bytes.length)];
+        int length = Base64Codec.encode(bytes, 0, bytes.length, encoded);
+
+        StringBuilder builder = new StringBuilder(length + 64);
+        builder.append("(function() { window.onReceiveTextFromAndroidShare(\"")
+                .append(encoded, 0, length)
+                .append("\"); })();");
+        return builder.toString();
+    }
+
+    /**
+     * Collects shared files into one {@code window.onReceiveShareManifestFromAndroid} call.
+     */
+    public static class ShareManifest {
+        private final StringBuilder builder = new StringBuilder("window.onReceiveShareManifestFromAndroid({\"files\":[");
+        private boolean isEmpty = true;
+
+        public ShareManifest add(String handleId, String name, String mimeType, long size, String suggestedEncoding) {
+            if (!isEmpty) {
+                builder.append(',');
+            }
+            isEmpty = false;
+
+            builder.append("{\"handleId\":");
+            appendString(builder, handleId);
+            builder.append(",\"name\":");
+            appendString(builder, name);
+            builder.append(",\"mimeType\":");
+            appendString(builder, mimeType);
+            builder.append(",\"size\":").append(size);
+            builder.append(",\"suggestedEncoding\":");
+            appendString(builder, suggestedEncoding);
+            builder.append('}');
+            return this;
+        }
+
+        public String toScript() {
+            return builder.toString() + "]});";
+        }
+    }
+
+    /**
+     * Appends {@code value} as a JSON string, or {@code null} when it is null.
+     */
+    public static void appendString(StringBuilder builder, String value) {
+        if (value == null) {
+            builder.append("null");
+            return;
+        }
+
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            } else if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+                builder.append(String.format(Locale.ENGLISH, "\\u%04x", (int) c));
+            } else {
+                builder.append(c);
+            }
+        }
+        builder.append('"');
+    }
+}
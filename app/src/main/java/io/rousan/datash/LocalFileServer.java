@@ -0,0 +1,437 @@
+package io.rousan.datash;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import timber.log.Timber;
+
+/**
+ * Minimal HTTP server on 127.0.0.1 that lets the web app move raw bytes with fetch() instead
+ * of passing Base64 strings through the JavaScript bridge.
+ * <p>
+ * {@code GET /<token>/files/<handleId>} streams a shared file and
+ * {@code POST /<token>/files/<refId>} appends the request body to an incoming file.
+ * {@code GET /<token>/previews/<refId>} returns a JPEG preview of a received image or video.
+ * {@code GET /<token>/diagnostics} returns the transfer metrics as JSON. Every
+ * path has to start with the per-session token, so other apps on the device can't use it.
+ */
+public class LocalFileServer {
+    private final static int MAX_HEADER_SIZE = 16 * 1024;
+    // What a streamed body holds at once, the buffer OutgoingFile and IncomingFile copy with.
+    private final static int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    public interface Delegate {
+        OutgoingFile getOutgoingFile(String handleId);
+
+        IncomingFile getIncomingFile(String refId) throws IOException;
+
+        /**
+         * Writing a request body into an incoming file failed, e.g. the body was cut short or
+         * the disk is full. The transfer can't continue.
+         */
+        void onIncomingFileFailed(String refId, IOException exp);
+
+        /**
+         * Bodies are only copied once their bytes are booked here, like the bridge's chunks.
+         */
+        TransferScheduler getScheduler();
+
+        String getDiagnostics();
+
+        /**
+         * JPEG preview of a received file, or null if there is none.
+         */
+        byte[] getPreview(String refId) throws IOException;
+    }
+
+    private final Delegate delegate;
+    private final String allowedOrigin;
+    private final String token;
+    private final ExecutorService connectionWorker = Executors.newFixedThreadPool(
+            // Ranges of one file are fetched over parallel connections, one per core.
+            Math.max(4, Runtime.getRuntime().availableProcessors()));
+    private ServerSocketChannel serverChannel;
+    private Thread acceptThread;
+
+    public LocalFileServer(Delegate delegate, String allowedOrigin) {
+        this.delegate = delegate;
+        this.allowedOrigin = allowedOrigin;
+        this.token = generateToken();
+    }
+
+    public synchronized void start() throws IOException {
+        if (serverChannel != null) {
+            return;
+        }
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "LocalFileServer");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public synchronized void stop() {
+        if (serverChannel == null) {
+            return;
+        }
+
+        try {
+            serverChannel.close();
+        } catch (IOException ignored) {
+        }
+        serverChannel = null;
+        connectionWorker.shutdownNow();
+    }
+
+    public synchronized String getBaseUrl() {
+        if (serverChannel == null) {
+            return null;
+        }
+        return String.format(Locale.ENGLISH, "http://127.0.0.1:%d/%s/", serverChannel.socket().getLocalPort(), token);
+    }
+
+    private void acceptLoop() {
+        ServerSocketChannel channel = serverChannel;
+        while (channel != null && channel.isOpen()) {
+            try {
+                final SocketChannel socket = channel.accept();
+                connectionWorker.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handleConnection(socket);
+                    }
+                });
+            } catch (IOException exp) {
+                if (channel.isOpen()) {
+                    Timber.d(exp);
+                }
+            }
+        }
+    }
+
+    private void handleConnection(SocketChannel socket) {
+        try {
+            InputStream inputStream = new BufferedInputStream(Channels.newInputStream(socket));
+            String requestLine = readLine(inputStream);
+            Map<String, String> headers = readHeaders(inputStream);
+            if (requestLine == null || headers == null) {
+                writeStatus(socket, 400, "Bad Request", null);
+                return;
+            }
+
+            String[] parts = requestLine.split(" ");
+            if (parts.length < 2) {
+                writeStatus(socket, 400, "Bad Request", null);
+                return;
+            }
+
+            String method = parts[0];
+            if ("OPTIONS".equals(method)) {
+                writeStatus(socket, 204, "No Content", headers);
+                return;
+            }
+
+            // Expected layout: /<token>/files/<id>[?range=<index>], /<token>/previews/<refId>
+            // or /<token>/diagnostics
+            String[] target = parts[1].split("\\?", 2);
+            String[] segments = target[0].split("/");
+            if (segments.length < 3 || !isValidToken(segments[1])) {
+                writeStatus(socket, 403, "Forbidden", headers);
+                return;
+            }
+            if (segments.length == 3 && "diagnostics".equals(segments[2]) && "GET".equals(method)) {
+                serveDiagnostics(socket, headers);
+                return;
+            }
+            if (segments.length == 4 && "previews".equals(segments[2]) && "GET".equals(method)) {
+                servePreview(socket, segments[3], headers);
+                return;
+            }
+            if (segments.length != 4 || !"files".equals(segments[2])) {
+                writeStatus(socket, 404, "Not Found", headers);
+                return;
+            }
+
+            int range = target.length < 2 ? -1 : parseRange(target[1]);
+            if (target.length == 2 && range < 0) {
+                writeStatus(socket, 400, "Bad Request", headers);
+                return;
+            }
+
+            if ("GET".equals(method)) {
+                serveOutgoingFile(socket, segments[3], range, headers);
+            } else if ("POST".equals(method) || "PUT".equals(method)) {
+                receiveIncomingFile(socket, inputStream, segments[3], range, headers);
+            } else {
+                writeStatus(socket, 405, "Method Not Allowed", headers);
+            }
+        } catch (Exception exp) {
+            Timber.d(exp);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Returns the index from a {@code range=<index>} query, or -1 if there is none.
+     */
+    static int parseRange(String query) {
+        for (String parameter : query.split("&")) {
+            if (parameter.startsWith("range=")) {
+                try {
+                    return Integer.parseInt(parameter.substring("range=".length()));
+                } catch (NumberFormatException exp) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private void serveOutgoingFile(SocketChannel socket, String handleId, int range, Map<String, String> requestHeaders) throws IOException {
+        OutgoingFile outgoingFile = delegate.getOutgoingFile(handleId);
+        if (outgoingFile == null) {
+            writeStatus(socket, 404, "Not Found", requestHeaders);
+            return;
+        }
+        if (range >= 0) {
+            serveOutgoingRange(socket, outgoingFile, range, requestHeaders);
+            return;
+        }
+
+        StringBuilder header = statusLine(200, "OK", requestHeaders);
+        header.append("Content-Type: application/octet-stream\r\n");
+        // The encoded length isn't known up front, the closed connection ends the body then.
+        if (outgoingFile.getSize() >= 0 && outgoingFile.getEncoding() == null) {
+            header.append("Content-Length: ").append(outgoingFile.getSize()).append("\r\n");
+        }
+        header.append("\r\n");
+        writeFully(socket, header.toString());
+
+        long size = outgoingFile.getSize();
+        Transfer booking = delegate.getScheduler().acquire(size < 0 ? STREAM_BUFFER_SIZE : Math.min(size, STREAM_BUFFER_SIZE), TransferScheduler.priorityOf(size));
+        outgoingFile.beginRead();
+        try {
+            outgoingFile.transferTo(socket);
+        } finally {
+            outgoingFile.endRead();
+            delegate.getScheduler().release(booking);
+        }
+    }
+
+    private void serveOutgoingRange(SocketChannel socket, OutgoingFile outgoingFile, int range, Map<String, String> requestHeaders) throws IOException {
+        int rangeCount = outgoingFile.getRangeCount();
+        if (range >= rangeCount) {
+            writeStatus(socket, 416, "Range Not Satisfiable", requestHeaders);
+            return;
+        }
+
+        long offset = (long) range * Constants.TRANSFER_RANGE_SIZE;
+        long length = Math.min(Constants.TRANSFER_RANGE_SIZE, outgoingFile.getSize() - offset);
+        StringBuilder header = statusLine(200, "OK", requestHeaders);
+        header.append("Content-Type: application/octet-stream\r\n");
+        header.append("Content-Length: ").append(length).append("\r\n\r\n");
+        writeFully(socket, header.toString());
+
+        // Copied by the kernel, so only its turn is booked, not its bytes.
+        Transfer booking = delegate.getScheduler().acquire(0, TransferScheduler.priorityOf(outgoingFile.getSize()));
+        outgoingFile.beginRead();
+        try {
+            outgoingFile.transferRange(range, socket);
+        } finally {
+            outgoingFile.endRead();
+            delegate.getScheduler().release(booking);
+        }
+    }
+
+    private void serveDiagnostics(SocketChannel socket, Map<String, String> requestHeaders) throws IOException {
+        writeBody(socket, "application/json; charset=utf-8", delegate.getDiagnostics().getBytes(StandardCharsets.UTF_8), requestHeaders);
+    }
+
+    private void servePreview(SocketChannel socket, String refId, Map<String, String> requestHeaders) throws IOException {
+        byte[] preview;
+        try {
+            // Made here on the connection's worker the first time, never on the UI thread.
+            preview = delegate.getPreview(refId);
+        } catch (IOException exp) {
+            Timber.d(exp);
+            preview = null;
+        }
+        if (preview == null) {
+            writeStatus(socket, 404, "Not Found", requestHeaders);
+            return;
+        }
+        writeBody(socket, "image/jpeg", preview, requestHeaders);
+    }
+
+    private void writeBody(SocketChannel socket, String contentType, byte[] body, Map<String, String> requestHeaders) throws IOException {
+        StringBuilder header = statusLine(200, "OK", requestHeaders);
+        header.append("Content-Type: ").append(contentType).append("\r\n");
+        header.append("Content-Length: ").append(body.length).append("\r\n\r\n");
+        writeFully(socket, header.toString());
+
+        ByteBuffer buffer = ByteBuffer.wrap(body);
+        while (buffer.hasRemaining()) {
+            socket.write(buffer);
+        }
+    }
+
+    private void receiveIncomingFile(SocketChannel socket, InputStream inputStream, String refId, int range, Map<String, String> requestHeaders) throws IOException {
+        String contentLength = requestHeaders.get("content-length");
+        if (contentLength == null) {
+            writeStatus(socket, 411, "Length Required", requestHeaders);
+            return;
+        }
+
+        // Checked before the file is opened and before the length is booked with the scheduler.
+        long length;
+        try {
+            length = Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException exp) {
+            length = -1;
+        }
+        if (length < 0 || (range >= 0 && length > Constants.TRANSFER_RANGE_SIZE)) {
+            writeStatus(socket, 400, "Bad Request", requestHeaders);
+            return;
+        }
+
+        IncomingFile incomingFile;
+        try {
+            incomingFile = delegate.getIncomingFile(refId);
+        } catch (IOException exp) {
+            Timber.d(exp);
+            writeStatus(socket, 404, "Not Found", requestHeaders);
+            return;
+        }
+
+        // A range is read into memory whole, a whole file goes through one buffer.
+        Transfer booking = delegate.getScheduler().acquire(range >= 0 ? length : Math.min(length, STREAM_BUFFER_SIZE), TransferScheduler.priorityOf(incomingFile.getSize()));
+        try {
+            if (range >= 0) {
+                incomingFile.writeRangeFrom(range, inputStream, length);
+            } else {
+                incomingFile.writeFrom(inputStream, length);
+            }
+        } catch (IOException exp) {
+            delegate.onIncomingFileFailed(refId, exp);
+            writeStatus(socket, 500, "Internal Server Error", requestHeaders);
+            return;
+        } finally {
+            delegate.getScheduler().release(booking);
+        }
+        writeStatus(socket, 204, "No Content", requestHeaders);
+    }
+
+    private void writeStatus(SocketChannel socket, int code, String reason, Map<String, String> requestHeaders) throws IOException {
+        writeFully(socket, statusLine(code, reason, requestHeaders).append("Content-Length: 0\r\n\r\n").toString());
+    }
+
+    private StringBuilder statusLine(int code, String reason, Map<String, String> requestHeaders) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("HTTP/1.1 ").append(code).append(' ').append(reason).append("\r\n");
+        builder.append("Connection: close\r\n");
+        builder.append("Cache-Control: no-store\r\n");
+
+        String origin = requestHeaders == null ? null : requestHeaders.get("origin");
+        if (origin != null && origin.equals(allowedOrigin)) {
+            builder.append("Access-Control-Allow-Origin: ").append(origin).append("\r\n");
+            builder.append("Access-Control-Allow-Methods: GET, POST, PUT, OPTIONS\r\n");
+            builder.append("Access-Control-Allow-Headers: Content-Type\r\n");
+            // Chrome asks before letting a public origin talk to a loopback address.
+            builder.append("Access-Control-Allow-Private-Network: true\r\n");
+            builder.append("Vary: Origin\r\n");
+        }
+        return builder;
+    }
+
+    private boolean isValidToken(String candidate) {
+        return MessageDigest.isEqual(candidate.getBytes(StandardCharsets.US_ASCII), token.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static void writeFully(SocketChannel socket, String text) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+        while (buffer.hasRemaining()) {
+            socket.write(buffer);
+        }
+    }
+
+    private static Map<String, String> readHeaders(InputStream inputStream) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        int total = 0;
+        while (true) {
+            String line = readLine(inputStream);
+            if (line == null) {
+                return null;
+            }
+            if (line.isEmpty()) {
+                return headers;
+            }
+
+            total += line.length();
+            if (total > MAX_HEADER_SIZE) {
+                return null;
+            }
+
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH), line.substring(colon + 1).trim());
+            }
+        }
+    }
+
+    private static String readLine(InputStream inputStream) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        while (true) {
+            int c = inputStream.read();
+            if (c < 0) {
+                return null;
+            }
+            if (c == '\n') {
+                break;
+            }
+            if (c != '\r') {
+                builder.append((char) c);
+            }
+            if (builder.length() > MAX_HEADER_SIZE) {
+                return null;
+            }
+        }
+        return builder.toString();
+    }
+
+    private static String generateToken() {
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+
+        StringBuilder builder = new StringBuilder();
+        for (byte b : bytes) {
+            builder.append(String.format("%02x", b));
+        }
+        return builder.toString();
+    }
+}
@@ -1,14 +1,13 @@
 package io.rousan.datash;
 
 import androidx.appcompat.app.AppCompatActivity;
-import androidx.core.app.NotificationCompat;
-import androidx.core.app.NotificationManagerCompat;
 import androidx.core.content.FileProvider;
+import androidx.webkit.WebViewCompat;
+import androidx.webkit.WebViewFeature;
 import im.delight.android.webview.AdvancedWebView;
 import timber.log.Timber;
 
 import com.google.android.material.snackbar.Snackbar;
-import com.google.common.io.ByteStreams;
 import com.karumi.dexter.Dexter;
 import com.karumi.dexter.listener.DexterError;
 import com.karumi.dexter.listener.PermissionRequestErrorListener;
@@ -17,42 +16,59 @@ import com.karumi.dexter.listener.multi.MultiplePermissionsListener;
 
 import android.Manifest;
 import android.annotation.SuppressLint;
-import android.app.PendingIntent;
-import android.content.ContentResolver;
+import android.content.ActivityNotFoundException;
+import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
+import android.content.ServiceConnection;
 import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Bundle;
-import android.os.Environment;
-import android.os.Handler;
-import android.os.Looper;
-import android.provider.OpenableColumns;
-import android.util.Base64;
+import android.os.IBinder;
 import android.view.View;
 import android.webkit.WebChromeClient;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
 import android.webkit.WebSettings;
 import android.webkit.WebView;
+import android.webkit.WebViewClient;
 import android.widget.FrameLayout;
 import android.widget.TextView;
 
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.FilenameUtils;
-
 import java.io.File;
-import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 
-public class MainActivity extends AppCompatActivity implements AdvancedWebView.Listener {
+public class MainActivity extends AppCompatActivity implements AdvancedWebView.Listener, TransferService.Listener {
     private AdvancedWebView webView;
-    private HashMap<String, HashMap<String, String>> fileDownloadsMap = new HashMap<>();
-    private ExecutorService worker;
+    private TransferService transferService;
+    private JavaScriptInterface javaScriptInterface;
+    private boolean isBridgeInjectedAtDocumentStart = false;
+    private volatile boolean isBundlesAccepted = false;
+
+    private final ServiceConnection transferServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            boolean isFirstConnection = transferService == null;
+            transferService = ((TransferService.LocalBinder) service).getService();
+            transferService.setListener(MainActivity.this);
+
+            // The page is only loaded once the bridge has somewhere to send transfers.
+            if (isFirstConnection) {
+                javaScriptInterface = new JavaScriptInterface(MainActivity.this, transferService);
+                webView.addJavascriptInterface(javaScriptInterface, "Android");
+                injectBridgeAtDocumentStart();
+                webView.loadUrl(Constants.DATASH_BASE_URL, false);
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+        }
+    };
 
     @SuppressLint("SetJavaScriptEnabled")
     @Override
@@ -62,11 +78,8 @@ public class MainActivity extends AppCompatActivity implements AdvancedWebView.L
 
         requestPermissions();
 
-        worker = Executors.newFixedThreadPool(2);
-
         webView = findViewById(R.id.webview);
         webView.addPermittedHostname("datash.co");
-        webView.addJavascriptInterface(new JavaScriptInterface(this), "Android");
 
         final TextView progress_tv = findViewById(R.id.tv_progress);
         final FrameLayout root = findViewById(R.id.root);
@@ -86,13 +99,33 @@ public class MainActivity extends AppCompatActivity implements AdvancedWebView.L
             }
         });
 
+        final AppShellCache appShellCache = ((App) getApplication()).getAppShellCache();
+        webView.setWebViewClient(new WebViewClient() {
+            @Override
+            public WebResourceResponse shouldInterceptRequest(WebView view, WebResourceRequest request) {
+                Uri url = request.getUrl();
+                if (!"GET".equalsIgnoreCase(request.getMethod())
+                        || !url.toString().startsWith(Constants.DATASH_ORIGIN + "/")
+                        || !(request.isForMainFrame() || AppShellCache.isCacheablePath(url.getPath()))) {
+                    return null;
+                }
+
+                AppShellCache.Response response = appShellCache.get(url.toString());
+                if (response == null) {
+                    return null;
+                }
+                return new WebResourceResponse(response.getMimeType(), response.getEncoding(), response.getBody());
+            }
+        });
+
         WebSettings settings = webView.getSettings();
         settings.setJavaScriptEnabled(true);
         settings.setAllowContentAccess(true);
         settings.setAllowFileAccess(true);
 
         webView.setListener(this, this);
-        webView.loadUrl(Constants.DATASH_BASE_URL, false);
+
+        bindService(new Intent(this, TransferService.class), transferServiceConnection, Context.BIND_AUTO_CREATE);
     }
 
     @Override
@@ -110,17 +143,46 @@ public class MainActivity extends AppCompatActivity implements AdvancedWebView.L
     @Override
     protected void onDestroy() {
         webView.removeJavascriptInterface("Android");
+        if (javaScriptInterface != null) {
+            javaScriptInterface.shutdown();
+        }
         webView.onDestroy();
         super.onDestroy();
-        worker.shutdown();
+        if (transferService != null) {
+            transferService.clearListener(this);
+        }
+        unbindService(transferServiceConnection);
     }
 
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent intent) {
         super.onActivityResult(requestCode, resultCode, intent);
+        if (requestCode == Constants.REQUEST_CODE_PICK_FOLDER) {
+            if (resultCode == RESULT_OK && intent != null && intent.getData() != null && transferService != null) {
+                transferService.submitTree(intent.getData());
+            }
+            return;
+        }
         webView.onActivityResult(requestCode, resultCode, intent);
     }
 
+    /**
+     * Lets the user pick a folder, which is then sent as one bundle.
+     */
+    public void pickFolderToSend() {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    startActivityForResult(new Intent(Intent.ACTION_OPEN_DOCUMENT_TREE), Constants.REQUEST_CODE_PICK_FOLDER);
+                } catch (ActivityNotFoundException exp) {
+                    Timber.d(exp);
+                    showSnackbar("No app to pick a folder with", false);
+                }
+            }
+        });
+    }
+
     @Override
     public void onBackPressed() {
         if (!webView.onBackPressed()) {
@@ -170,235 +232,136 @@ public class MainActivity extends AppCompatActivity implements AdvancedWebView.L
                 .check();
     }
 
+    public void setBundlesAccepted(boolean isBundlesAccepted) {
+        this.isBundlesAccepted = isBundlesAccepted;
+    }
+
+    /**
+     * Called once the page has mounted and registered its share handlers, which is the signal
+     * that it is ready for the share manifest. A page that mounts again lost the handles of
+     * earlier shares, they are closed before the manifest goes out again.
+     */
     public void onWebAppMount() {
         final Intent intent = getIntent();
 
-        worker.execute(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    if (Intent.ACTION_SEND.equals(intent.getAction())) {
-                        if ("text/plain".equals(intent.getType())) {
-                            final String sharedText = intent.getStringExtra(Intent.EXTRA_TEXT);
-                            runOnUiThread(new Runnable() {
-                                @Override
-                                public void run() {
-                                    if (sharedText != null) {
-                                        webView.evaluateJavascript(String.format(
-                                                "(function() { window.onReceiveTextFromAndroidShare(`%s`); })();",
-                                                Base64.encodeToString(sharedText.getBytes(StandardCharsets.UTF_8), Base64.DEFAULT)
-                                        ), null);
-                                    } else {
-                                        showSnackbar("No text to share", false);
-                                    }
-                                }
-                            });
-                        } else {
-                            Uri fileUri = (Uri) intent.getParcelableExtra(Intent.EXTRA_STREAM);
-                            if (fileUri != null) {
-                                Timber.d("URI: %s", fileUri.toString());
-                                shareFileUriToWebView(fileUri);
-                            } else {
-                                runOnUiThread(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        showSnackbar("No file to share", false);
-                                    }
-                                });
-                            }
-                        }
-                    } else if (Intent.ACTION_SEND_MULTIPLE.equals(intent.getAction())) {
-                        ArrayList<Uri> fileUris = intent.getParcelableArrayListExtra(Intent.EXTRA_STREAM);
-                        if (fileUris != null) {
-                            Timber.d("URI: %s", fileUris.toString());
-                            for (Uri fileUri : fileUris) {
-                                shareFileUriToWebView(fileUri);
-                            }
-                        } else {
-                            runOnUiThread(new Runnable() {
-                                @Override
-                                public void run() {
-                                    showSnackbar("No file to share", false);
-                                }
-                            });
-                        }
-                    }
-                } catch (final Exception exp) {
-                    Timber.d(exp);
+        try {
+            transferService.closeShares();
+            if (Intent.ACTION_SEND.equals(intent.getAction())) {
+                if ("text/plain".equals(intent.getType())) {
+                    final String sharedText = intent.getStringExtra(Intent.EXTRA_TEXT);
                     runOnUiThread(new Runnable() {
                         @Override
                         public void run() {
-                            showSnackbar(exp.getMessage(), false);
+                            if (sharedText != null) {
+                                webView.evaluateJavascript(JsPayload.textShare(sharedText), null);
+                            } else {
+                                showSnackbar("No text to share", false);
+                            }
                         }
                     });
+                } else {
+                    Uri fileUri = (Uri) intent.getParcelableExtra(Intent.EXTRA_STREAM);
+                    if (fileUri != null) {
+                        Timber.d("URI: %s", fileUri.toString());
+                        transferService.submitShares(Collections.singletonList(fileUri));
+                    } else {
+                        onTransferError("No file to share");
+                    }
                 }
-            }
-        });
-    }
-
-    private void shareFileUriToWebView(Uri file) {
-        try {
-            ContentResolver contentResolver = getContentResolver();
-            String mimeType = contentResolver.getType(file);
-
-            Cursor returnCursor = contentResolver.query(file, null, null, null, null);
-            int nameIndex = returnCursor.getColumnIndex(OpenableColumns.DISPLAY_NAME);
-            returnCursor.moveToFirst();
-            String fileName = returnCursor.getString(nameIndex);
-            returnCursor.close();
-
-            InputStream inputStream = contentResolver.openInputStream(file);
-            byte[] data = ByteStreams.toByteArray(inputStream);
-            inputStream.close();
-
-            final String base64Name = Base64.encodeToString(fileName.getBytes(StandardCharsets.UTF_8), Base64.DEFAULT);
-            final String base64Type = Base64.encodeToString(mimeType.getBytes(StandardCharsets.UTF_8), Base64.DEFAULT);
-            final String base64Data = Base64.encodeToString(data, Base64.DEFAULT);
-
-            Timber.d("File: %s", fileName);
-
-            new Handler(Looper.getMainLooper()).postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    webView.evaluateJavascript(String.format(
-                            "(function() { window.onReceiveFileFromAndroidShare(`%s`, `%s`, `%s`); })();",
-                            base64Name,
-                            base64Type,
-                            base64Data
-                    ), null);
+            } else if (Intent.ACTION_SEND_MULTIPLE.equals(intent.getAction())) {
+                ArrayList<Uri> fileUris = intent.getParcelableArrayListExtra(Intent.EXTRA_STREAM);
+                if (fileUris != null && !fileUris.isEmpty()) {
+                    Timber.d("URI: %s", fileUris.toString());
+                    // Only pages that said they unpack bundles get one, everyone else gets
+                    // the files they were shared.
+                    if (isBundlesAccepted && fileUris.size() >= Constants.BUNDLE_MIN_FILES) {
+                        transferService.submitBundle(fileUris);
+                    } else {
+                        transferService.submitShares(fileUris);
+                    }
+                } else {
+                    onTransferError("No file to share");
                 }
-            }, 1000);
-        } catch (final Exception exp) {
+            }
+        } catch (Exception exp) {
             Timber.d(exp);
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    showSnackbar(exp.getMessage(), false);
-                }
-            });
+            onTransferError(exp.getMessage());
         }
     }
 
-    public void onStartFileDownload(String refId, String fromId, String fileName, long size, String mimeType) {
-        Timber.d("onStartFileDownload: %s %s %s %d", refId, fromId, fileName, size);
-
-        HashMap<String, String> attr = new HashMap<>();
-        attr.put("fromId", fromId);
-        attr.put("fileName", fileName);
-        attr.put("size", size + "");
-        attr.put("mimeType", mimeType);
-        fileDownloadsMap.put(refId, attr);
-
-        NotificationCompat.Builder builder = new NotificationCompat.Builder(this, Constants.NOTIF_CHANNEL_DOWNLOAD_FILE);
-        builder.setContentTitle("File Download")
-                .setContentText(fileName)
-                .setSmallIcon(R.drawable.ic_launcher)
-                .setPriority(NotificationCompat.PRIORITY_LOW)
-                .setProgress(0, 0, true)
-                .setOngoing(true);
-
-        NotificationManagerCompat notificationManager = NotificationManagerCompat.from(this);
-        notificationManager.notify(refId.hashCode(), builder.build());
-    }
-
-    public void onCompleteFileDownload(final String refId, final String base64Data) {
-        Timber.d("onCompleteFileDownload: %s", refId);
+    @Override
+    public void onFilesShared(List<TransferService.SharedFile> files) {
+        JsPayload.ShareManifest manifest = new JsPayload.ShareManifest();
+        for (TransferService.SharedFile file : files) {
+            manifest.add(file.getHandleId(), file.getFileName(), file.getMimeType(), file.getSize(), file.getSuggestedEncoding());
+        }
+        final String script = manifest.toScript();
 
-        final HashMap<String, String> attr = fileDownloadsMap.get(refId);
-        worker.execute(new Runnable() {
+        runOnUiThread(new Runnable() {
             @Override
             public void run() {
-                try {
-                    String fileName = attr.get("fileName");
-                    String fileExt = FilenameUtils.getExtension(fileName);
-                    String fileNameWithoutExt;
-                    if (fileExt.isEmpty()) {
-                        fileNameWithoutExt = fileName;
-                    } else {
-                        fileNameWithoutExt = fileName.replace("." + fileExt, "");
-                    }
-
-                    File downloadsFolder = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS).getAbsoluteFile();
-                    int counter = 0;
-                    String newFileName;
-                    while (true) {
-                        if (counter == 0) {
-                            newFileName = fileName;
-                        } else {
-                            if (fileExt.isEmpty()) {
-                                newFileName = String.format("%s%s", fileNameWithoutExt, counter + "");
-                            } else {
-                                newFileName = String.format("%s%s.%s", fileNameWithoutExt, counter + "", fileExt);
-                            }
-                        }
-
-                        File file = new File(downloadsFolder, newFileName);
-                        if (file.exists()) {
-                            counter += 1;
-                        } else {
-                            break;
-                        }
-                    }
+                webView.evaluateJavascript(script, null);
+            }
+        });
+    }
 
-                    if (!downloadsFolder.exists()) {
-                        FileUtils.forceMkdir(downloadsFolder);
-                    }
+    @Override
+    public void onFileReceived(final File file, final String mimeType) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                // Photos and videos tend to come in batches, opening each one would bury the
+                // app under viewers. Their notification and the web app show a preview.
+                if (file.isDirectory() || PreviewGenerator.canPreview(mimeType)) {
+                    showSnackbar(String.format("Saved to Downloads/%s", file.getName()), true);
+                    return;
+                }
 
-                    final File outputFile = new File(downloadsFolder, newFileName);
-                    outputFile.createNewFile();
-                    byte[] data = Base64.decode(base64Data, Base64.DEFAULT);
-                    FileUtils.writeByteArrayToFile(outputFile, data);
+                Intent openFileIntent = new Intent(Intent.ACTION_VIEW);
+                openFileIntent.setDataAndType(
+                        FileProvider.getUriForFile(MainActivity.this, getApplicationContext().getPackageName() + ".provider", file),
+                        mimeType
+                );
+                openFileIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+                startActivity(openFileIntent);
+            }
+        });
+    }
 
-                    runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            Intent openFileIntent = new Intent(Intent.ACTION_VIEW);
-                            openFileIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-                            openFileIntent.setDataAndType(
-                                    FileProvider.getUriForFile(MainActivity.this, getApplicationContext().getPackageName() + ".provider", outputFile),
-                                    attr.get("mimeType")
-                            );
-                            openFileIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
-
-                            NotificationCompat.Builder builder = new NotificationCompat.Builder(MainActivity.this, Constants.NOTIF_CHANNEL_DOWNLOAD_FILE);
-                            builder.setContentTitle("File Download")
-                                    .setContentText(String.format("Download complete: %s", outputFile.getName()))
-                                    .setSmallIcon(R.drawable.ic_launcher)
-                                    .setPriority(NotificationCompat.PRIORITY_LOW)
-                                    .setProgress(0, 0, false)
-                                    .setContentIntent(PendingIntent.getActivity(MainActivity.this, 0, openFileIntent, 0))
-                                    .setAutoCancel(true)
-                                    .setOngoing(false);
-
-                            NotificationManagerCompat notificationManager = NotificationManagerCompat.from(MainActivity.this);
-                            notificationManager.notify(refId.hashCode(), builder.build());
-
-                            startActivity((Intent) openFileIntent.clone());
-                        }
-                    });
-                } catch (Exception exp) {
-                    Timber.d(exp);
-                    showSnackbar(exp.getMessage(), false);
-                }
+    @Override
+    public void onTransferError(final String message) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                showSnackbar(message, false);
             }
         });
     }
 
+    private void injectBridgeAtDocumentStart() {
+        if (!WebViewFeature.isFeatureSupported(WebViewFeature.DOCUMENT_START_SCRIPT)) {
+            return;
+        }
+
+        try {
+            WebViewCompat.addDocumentStartJavaScript(
+                    webView,
+                    ((App) getApplication()).getBridgeScript(),
+                    Collections.singleton(Constants.DATASH_ORIGIN)
+            );
+            isBridgeInjectedAtDocumentStart = true;
+        } catch (Exception e) {
+            Timber.d(e);
+        }
+    }
+
     private void injectJs() {
+        if (isBridgeInjectedAtDocumentStart) {
+            return;
+        }
+
         try {
-            InputStream inputStream = getAssets().open("script.js");
-            byte[] buffer = new byte[inputStream.available()];
-            inputStream.read(buffer);
-            inputStream.close();
-
-            String encoded = Base64.encodeToString(buffer, Base64.NO_WRAP);
-            webView.loadUrl("javascript:(function() {" +
-                    "var parent = document.getElementsByTagName('head').item(0);" +
-                    "var script = document.createElement('script');" +
-                    "script.type = 'text/javascript';" +
-                    "script.innerHTML = window.atob('" + encoded + "');" +
-                    "parent.appendChild(script)" +
-                    "})()");
+            webView.evaluateJavascript(((App) getApplication()).getBridgeScript(), null);
         } catch (Exception e) {
             Timber.d(e);
             showSnackbar(e.toString(), false);
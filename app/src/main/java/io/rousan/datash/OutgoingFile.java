@@ -0,0 +1,460 @@
+package io.rousan.datash;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class OutgoingFile {
+    private final static int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
+    private final String handleId;
+    private final FileChannel channel;
+    private final Closeable owner;
+    private final long size;
+    private final TransferDigest digest;
+    private final TransferMetrics metrics;
+    private final BufferPool bufferPool;
+    private long position = 0;
+    private boolean isSequential = true;
+    private boolean isEndReached = false;
+    private String digestValue;
+    private TransferCodec codec;
+    // Set for encoded files and for sources that only exist as a stream. Read in order only.
+    private InputStream stream;
+    private volatile RangeTracker ranges;
+    private final Map<Integer, FutureTask<String>> readAhead = new HashMap<>();
+    private final AtomicInteger activeReads = new AtomicInteger();
+    private volatile long lastReadAt = System.currentTimeMillis();
+
+    OutgoingFile(String handleId, FileChannel channel, Closeable owner, long size, TransferDigest digest, TransferMetrics metrics, BufferPool bufferPool) {
+        this.handleId = handleId;
+        this.channel = channel;
+        this.owner = owner;
+        this.size = size;
+        this.digest = digest;
+        this.metrics = metrics;
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Serves {@code source} as is, e.g. a bundle that is built while it is read. Such a file
+     * can only be read in order and its size may be -1.
+     */
+    OutgoingFile(String handleId, InputStream source, long size, TransferDigest digest, TransferMetrics metrics, BufferPool bufferPool) {
+        this(handleId, null, source, size, digest, metrics, bufferPool);
+        this.stream = digesting(source);
+    }
+
+    public String getHandleId() {
+        return handleId;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the digest of everything read so far, once the whole file went out in order or
+     * as ranges. Returns null before that, or if the page skipped around in the file.
+     */
+    public synchronized String getDigest() {
+        if (digestValue != null) {
+            return digestValue;
+        }
+        if (ranges != null) {
+            if (digest == null || !ranges.isComplete()) {
+                return null;
+            }
+            try {
+                ranges.awaitHashed();
+            } catch (IOException exp) {
+                return null;
+            }
+        } else if (digest == null || !isSequential || !isEndReached) {
+            return null;
+        }
+        digestValue = digest.finish();
+        return digestValue;
+    }
+
+    /**
+     * Marks a read by the page as running, the file doesn't count as idle until
+     * {@link #endRead}, however long it takes.
+     */
+    void beginRead() {
+        activeReads.incrementAndGet();
+    }
+
+    void endRead() {
+        lastReadAt = System.currentTimeMillis();
+        activeReads.decrementAndGet();
+    }
+
+    /**
+     * Whether nothing read from the file since {@code time}, e.g. a share the page forgot.
+     */
+    boolean isIdleSince(long time) {
+        return activeReads.get() == 0 && lastReadAt < time;
+    }
+
+    /**
+     * Number of ranges the file is split into, or -1 if it can't be read in ranges.
+     */
+    public int getRangeCount() {
+        try {
+            return startRanges().getRangeCount();
+        } catch (IOException exp) {
+            return -1;
+        }
+    }
+
+    /**
+     * Reads the first bytes of the file into {@code dst} without moving the read position.
+     * Returns -1 when the file can't be read out of order, e.g. a pipe.
+     */
+    synchronized int probe(byte[] dst) {
+        if (channel == null) {
+            return -1;
+        }
+
+        try {
+            ByteBuffer byteBuffer = ByteBuffer.wrap(dst);
+            while (byteBuffer.hasRemaining()) {
+                if (channel.read(byteBuffer, byteBuffer.position()) < 0) {
+                    break;
+                }
+            }
+            return byteBuffer.position();
+        } catch (IOException exp) {
+            return -1;
+        }
+    }
+
+    /**
+     * Makes every following read return the file encoded with {@code codec}. Only possible
+     * before the first read; encoded files have to be read in order and their encoded size
+     * isn't known up front, so the page reads until it gets an empty chunk. Range reads
+     * don't move the position, so a file that was read in ranges can't be encoded either.
+     */
+    synchronized boolean setCodec(TransferCodec codec) {
+        if (position != 0 || isEndReached || stream != null || ranges != null) {
+            return false;
+        }
+
+        this.codec = codec;
+        stream = codec.encode(digesting(Channels.newInputStream(channel)));
+        return true;
+    }
+
+    /**
+     * Wraps {@code source} so that whatever is read from it is added to the digest.
+     */
+    private InputStream digesting(final InputStream source) {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = source.read(b, off, len);
+                if (read > 0 && digest != null && digestValue == null) {
+                    digest.update(b, off, read);
+                }
+                return read;
+            }
+
+            @Override
+            public void close() throws IOException {
+                source.close();
+            }
+        };
+    }
+
+    public synchronized String getEncoding() {
+        return codec == null ? null : codec.getName();
+    }
+
+    synchronized String read(long offset, int length) throws IOException {
+        byte[] buffer = bufferPool.acquireBytes(length);
+        try {
+            return stream != null ? readStream(buffer, offset, length) : readChannel(buffer, offset, length);
+        } finally {
+            bufferPool.releaseBytes(buffer);
+        }
+    }
+
+    private String readChannel(byte[] buffer, long offset, int length) throws IOException {
+        // Providers may hand out pipes, which only support sequential reads, so only seek
+        // when the page actually asks for a different offset.
+        if (offset != position) {
+            channel.position(offset);
+            isSequential = false;
+        }
+
+        long startedAt = metrics.start();
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, length);
+        while (byteBuffer.hasRemaining()) {
+            if (channel.read(byteBuffer) < 0) {
+                isEndReached = true;
+                break;
+            }
+        }
+
+        int read = byteBuffer.position();
+        metrics.record(TransferMetrics.Stage.CONTENT_READ, startedAt, read);
+        position = offset + read;
+        if (size >= 0 && position >= size) {
+            isEndReached = true;
+        }
+        updateDigest(buffer, read);
+
+        return encodeBase64(buffer, read);
+    }
+
+    private String encodeBase64(byte[] buffer, int length) {
+        char[] encoded = bufferPool.acquireChars(Base64Codec.encodedLength(length));
+        try {
+            long startedAt = metrics.start();
+            int encodedLength = Base64Codec.encode(buffer, 0, length, encoded);
+            String chunk = new String(encoded, 0, encodedLength);
+            metrics.record(TransferMetrics.Stage.BASE64_ENCODE, startedAt, length);
+            return chunk;
+        } finally {
+            bufferPool.releaseChars(encoded);
+        }
+    }
+
+    private String readStream(byte[] buffer, long offset, int length) throws IOException {
+        if (offset != position) {
+            throw new IOException(String.format("File %s can only be read in order", handleId));
+        }
+
+        // Includes compressing or zipping, which happen as the stream is pulled.
+        long startedAt = metrics.start();
+        int read = IOUtils.read(stream, buffer, 0, length);
+        metrics.record(TransferMetrics.Stage.CONTENT_READ, startedAt, read);
+        position += read;
+        if (read < length) {
+            isEndReached = true;
+        }
+
+        return encodeBase64(buffer, read);
+    }
+
+    /**
+     * Reads range {@code index} as Base64, see {@link RangeTracker}. Ranges can be read from
+     * several threads at once and in any order; the digest covers the file once every range
+     * has been read. Can't be mixed with reading in order.
+     */
+    String readRange(int index) throws IOException {
+        RangeTracker ranges = startRanges();
+        int length = ranges.getRangeLength(index);
+        byte[] buffer = bufferPool.acquireBytes(length);
+        try {
+            long startedAt = metrics.start();
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, length);
+            long position = ranges.getRangeOffset(index);
+            while (byteBuffer.hasRemaining()) {
+                if (channel.read(byteBuffer, position + byteBuffer.position()) < 0) {
+                    throw new IOException(String.format("File %s ended before range %d", handleId, index));
+                }
+            }
+            metrics.record(TransferMetrics.Stage.CONTENT_READ, startedAt, length);
+
+            String range = encodeBase64(buffer, length);
+            ranges.complete(index);
+            return range;
+        } finally {
+            bufferPool.releaseBytes(buffer);
+        }
+    }
+
+    /**
+     * Streams range {@code index} into {@code target}, straight from the kernel where it can.
+     */
+    long transferRange(int index, WritableByteChannel target) throws IOException {
+        RangeTracker ranges = startRanges();
+        long offset = ranges.getRangeOffset(index);
+        int length = ranges.getRangeLength(index);
+
+        long transferred = 0;
+        while (transferred < length) {
+            long count = channel.transferTo(offset + transferred, length - transferred, target);
+            if (count <= 0) {
+                throw new IOException(String.format("File %s ended before range %d", handleId, index));
+            }
+            transferred += count;
+        }
+        ranges.complete(index);
+        return transferred;
+    }
+
+    /**
+     * Starts reading range {@code index} on {@code executor}, for {@link #takeReadAhead}.
+     */
+    void readAhead(final int index, Executor executor) throws IOException {
+        RangeTracker ranges = startRanges();
+        if (index >= ranges.getRangeCount() || ranges.isDone(index)) {
+            return;
+        }
+
+        FutureTask<String> task;
+        synchronized (readAhead) {
+            if (readAhead.containsKey(index)) {
+                return;
+            }
+            task = new FutureTask<>(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return readRange(index);
+                }
+            });
+            readAhead.put(index, task);
+        }
+        executor.execute(task);
+    }
+
+    /**
+     * Returns range {@code index} if it was read ahead, waiting for it if needed. Returns null
+     * if it wasn't.
+     */
+    String takeReadAhead(int index) throws IOException {
+        FutureTask<String> task;
+        synchronized (readAhead) {
+            task = readAhead.remove(index);
+        }
+        if (task == null) {
+            return null;
+        }
+
+        try {
+            return task.get();
+        } catch (InterruptedException exp) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException exp) {
+            Throwable cause = exp.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    private synchronized RangeTracker startRanges() throws IOException {
+        if (ranges != null) {
+            return ranges;
+        }
+        if (channel == null || stream != null) {
+            throw new IOException(String.format("File %s can only be read in order", handleId));
+        }
+        if (size < 0 || channel.size() != size) {
+            throw new IOException(String.format("File %s has no fixed size, it can't be read in ranges", handleId));
+        }
+        if (position != 0) {
+            throw new IOException(String.format("File %s is already being read in order", handleId));
+        }
+
+        isSequential = false;
+        ranges = new RangeTracker(channel, size, Constants.TRANSFER_RANGE_SIZE, 0, null, digest, metrics, null);
+        return ranges;
+    }
+
+    /**
+     * Streams the whole file into {@code target}. Without a digest, regular files go through
+     * {@link FileChannel#transferTo}, which lets the kernel copy straight into a socket. With
+     * one the bytes have to pass through our buffer to be hashed on the way.
+     */
+    synchronized long transferTo(WritableByteChannel target) throws IOException {
+        if (position != 0) {
+            isSequential = false;
+        }
+
+        if (digest == null && stream == null && size >= 0 && channel.size() == size) {
+            long transferred = 0;
+            while (transferred < size) {
+                long count = channel.transferTo(transferred, size - transferred, target);
+                if (count <= 0) {
+                    break;
+                }
+                transferred += count;
+            }
+            position = transferred;
+            isEndReached = true;
+            return transferred;
+        }
+
+        byte[] buffer = bufferPool.acquireBytes(TRANSFER_BUFFER_SIZE);
+        try {
+            return copyTo(buffer, target);
+        } finally {
+            bufferPool.releaseBytes(buffer);
+        }
+    }
+
+    private long copyTo(byte[] buffer, WritableByteChannel target) throws IOException {
+        long transferred = 0;
+        if (stream != null) {
+            int read;
+            while ((read = stream.read(buffer, 0, TRANSFER_BUFFER_SIZE)) >= 0) {
+                ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, read);
+                while (byteBuffer.hasRemaining()) {
+                    transferred += target.write(byteBuffer);
+                }
+            }
+            position += transferred;
+            isEndReached = true;
+            return transferred;
+        }
+
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, TRANSFER_BUFFER_SIZE);
+        while (channel.read(byteBuffer) >= 0) {
+            updateDigest(buffer, byteBuffer.position());
+            byteBuffer.flip();
+            while (byteBuffer.hasRemaining()) {
+                transferred += target.write(byteBuffer);
+            }
+            byteBuffer.clear();
+        }
+        position += transferred;
+        isEndReached = true;
+        return transferred;
+    }
+
+    private void updateDigest(byte[] buffer, int length) {
+        if (digest != null && isSequential && digestValue == null) {
+            long startedAt = metrics.start();
+            digest.update(buffer, 0, length);
+            metrics.record(TransferMetrics.Stage.DIGEST, startedAt, length);
+        }
+    }
+
+    synchronized void close() throws IOException {
+        synchronized (readAhead) {
+            for (FutureTask<String> task : readAhead.values()) {
+                task.cancel(true);
+            }
+            readAhead.clear();
+        }
+        if (stream != null) {
+            stream.close();
+        }
+        if (channel != null) {
+            channel.close();
+        }
+        owner.close();
+    }
+}
@@ -0,0 +1,154 @@
+package io.rousan.datash;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * Encoded previews of received files, kept in memory and on disk and evicted least recently
+ * used first from both. Entries are keyed by path, size and modification time of the source,
+ * so a file that changed gets a new preview. The disk order is the cache files' modification
+ * time, which is bumped on every hit.
+ */
+public class PreviewCache {
+    private final File dir;
+    private final long maxMemoryBytes;
+    private final long maxDiskBytes;
+    private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes = 0;
+
+    public PreviewCache(File dir, long maxMemoryBytes, long maxDiskBytes) {
+        this.dir = dir;
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.maxDiskBytes = maxDiskBytes;
+    }
+
+    /**
+     * Returns the stored preview of {@code source}, or null if there is none.
+     */
+    public byte[] get(File source) {
+        String key = keyOf(source);
+        synchronized (this) {
+            byte[] preview = memory.get(key);
+            if (preview != null) {
+                return preview;
+            }
+        }
+
+        File file = new File(dir, key);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            byte[] preview = FileUtils.readFileToByteArray(file);
+            file.setLastModified(System.currentTimeMillis());
+            putMemory(key, preview);
+            return preview;
+        } catch (IOException exp) {
+            Timber.d(exp);
+            return null;
+        }
+    }
+
+    public void put(File source, byte[] preview) throws IOException {
+        String key = keyOf(source);
+        putMemory(key, preview);
+
+        FileUtils.forceMkdir(dir);
+        File tmpFile = File.createTempFile("preview", ".tmp", dir);
+        try {
+            FileUtils.writeByteArrayToFile(tmpFile, preview);
+            if (!tmpFile.renameTo(new File(dir, key))) {
+                throw new IOException("Failed to store preview of " + source);
+            }
+        } finally {
+            tmpFile.delete();
+        }
+        trimDisk();
+    }
+
+    /**
+     * Drops the previews held in memory, the disk copies stay.
+     */
+    public synchronized void clearMemory() {
+        memory.clear();
+        memoryBytes = 0;
+    }
+
+    public synchronized long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    public long getDiskBytes() {
+        long total = 0;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                total += file.length();
+            }
+        }
+        return total;
+    }
+
+    private synchronized void putMemory(String key, byte[] preview) {
+        byte[] old = memory.put(key, preview);
+        if (old != null) {
+            memoryBytes -= old.length;
+        }
+        memoryBytes += preview.length;
+
+        Iterator<Map.Entry<String, byte[]>> iterator = memory.entrySet().iterator();
+        while (memoryBytes > maxMemoryBytes && iterator.hasNext()) {
+            Map.Entry<String, byte[]> eldest = iterator.next();
+            if (eldest.getValue() == preview) {
+                continue;
+            }
+            iterator.remove();
+            memoryBytes -= eldest.getValue().length;
+        }
+    }
+
+    private synchronized void trimDisk() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= maxDiskBytes) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        // The newest file is kept even if it's larger than the whole cache on its own.
+        for (int i = 0; i < files.length - 1 && total > maxDiskBytes; i++) {
+            total -= files[i].length();
+            files[i].delete();
+        }
+    }
+
+    private static String keyOf(File source) {
+        TransferDigest digest = TransferDigest.create(TransferDigest.SHA_256);
+        byte[] bytes = (source.getAbsolutePath() + "\n" + source.length() + "\n" + source.lastModified()).getBytes(StandardCharsets.UTF_8);
+        digest.update(bytes, 0, bytes.length);
+        String hex = digest.finish();
+        return hex.substring(hex.indexOf(':') + 1);
+    }
+}
@@ -0,0 +1,161 @@
+package io.rousan.datash;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.ImageDecoder;
+import android.media.MediaMetadataRetriever;
+import android.os.Build;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Small JPEG previews of received images and videos for notifications and the web app. Images
+ * are decoded subsampled and videos only have one frame extracted, so a full-size bitmap never
+ * exists. Previews are made on first use, never on the main thread, and kept in a
+ * {@link PreviewCache}.
+ */
+public class PreviewGenerator {
+    private final PreviewCache cache;
+    private final int maxSize;
+    private final int quality;
+
+    public PreviewGenerator(PreviewCache cache, int maxSize, int quality) {
+        this.cache = cache;
+        this.maxSize = maxSize;
+        this.quality = quality;
+    }
+
+    public static boolean canPreview(String mimeType) {
+        if (mimeType == null) {
+            return false;
+        }
+        String type = mimeType.toLowerCase(Locale.ENGLISH);
+        return type.startsWith("image/") || type.startsWith("video/");
+    }
+
+    /**
+     * Returns the preview of {@code file} as JPEG, making it on a cache miss, or null if the
+     * file can't be previewed. Blocks, so call it from a background thread.
+     */
+    public byte[] getPreview(File file, String mimeType) throws IOException {
+        if (!canPreview(mimeType) || !file.isFile()) {
+            return null;
+        }
+
+        byte[] preview = cache.get(file);
+        if (preview != null) {
+            return preview;
+        }
+
+        Bitmap bitmap = mimeType.toLowerCase(Locale.ENGLISH).startsWith("video/") ? decodeVideoFrame(file) : decodeImage(file);
+        if (bitmap == null) {
+            return null;
+        }
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            bitmap.compress(Bitmap.CompressFormat.JPEG, quality, outputStream);
+            preview = outputStream.toByteArray();
+        } finally {
+            bitmap.recycle();
+        }
+        cache.put(file, preview);
+        return preview;
+    }
+
+    /**
+     * The preview as a bitmap, e.g. for a notification, or null if there is none.
+     */
+    public Bitmap getPreviewBitmap(File file, String mimeType) throws IOException {
+        byte[] preview = getPreview(file, mimeType);
+        return preview == null ? null : BitmapFactory.decodeByteArray(preview, 0, preview.length);
+    }
+
+    /**
+     * Releases the previews held in memory when the system runs low.
+     */
+    public void trimMemory() {
+        cache.clearMemory();
+    }
+
+    public PreviewCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Largest power of two {@code inSampleSize} that keeps both sides at least {@code maxSize}
+     * where the image is that large, so the result only ever has to be scaled down.
+     */
+    static int sampleSizeOf(int width, int height, int maxSize) {
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= maxSize && height / (sampleSize * 2) >= maxSize) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private Bitmap decodeImage(File file) throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            // Also handles HEIF and applies the EXIF orientation.
+            return ImageDecoder.decodeBitmap(ImageDecoder.createSource(file), new ImageDecoder.OnHeaderDecodedListener() {
+                @Override
+                public void onHeaderDecoded(ImageDecoder decoder, ImageDecoder.ImageInfo info, ImageDecoder.Source source) {
+                    int width = info.getSize().getWidth();
+                    int height = info.getSize().getHeight();
+                    float scale = Math.min(1f, (float) maxSize / Math.max(width, height));
+                    decoder.setTargetSize(Math.max(1, Math.round(width * scale)), Math.max(1, Math.round(height * scale)));
+                    decoder.setAllocator(ImageDecoder.ALLOCATOR_SOFTWARE);
+                }
+            });
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSizeOf(options.outWidth, options.outHeight, maxSize);
+        return scaleDown(BitmapFactory.decodeFile(file.getPath(), options));
+    }
+
+    private Bitmap decodeVideoFrame(File file) {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(file.getPath());
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+                return retriever.getScaledFrameAtTime(-1, MediaMetadataRetriever.OPTION_CLOSEST_SYNC, maxSize, maxSize);
+            }
+            return scaleDown(retriever.getFrameAtTime(-1, MediaMetadataRetriever.OPTION_CLOSEST_SYNC));
+        } catch (RuntimeException exp) {
+            // Thrown for files the platform can't play.
+            return null;
+        } finally {
+            try {
+                retriever.release();
+            } catch (Exception ignored) {
+                // Declares IOException from API 30 on.
+            }
+        }
+    }
+
+    private Bitmap scaleDown(Bitmap bitmap) {
+        if (bitmap == null) {
+            return null;
+        }
+
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        if (Math.max(width, height) <= maxSize) {
+            return bitmap;
+        }
+        float scale = (float) maxSize / Math.max(width, height);
+        Bitmap scaled = Bitmap.createScaledBitmap(bitmap, Math.max(1, Math.round(width * scale)), Math.max(1, Math.round(height * scale)), true);
+        bitmap.recycle();
+        return scaled;
+    }
+}
@@ -0,0 +1,174 @@
+package io.rousan.datash;
+
+import android.app.Notification;
+import android.content.Context;
+
+import androidx.core.app.NotificationCompat;
+import androidx.core.app.NotificationManagerCompat;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces progress updates into one notification refresh per transfer per tick. A single
+ * shared ticker serves every transfer, so dozens of parallel files cost the same as one.
+ */
+public class ProgressNotifier {
+    private final Context context;
+    private final TransferRegistry transferRegistry;
+    private final Set<String> dirtyRefIds = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<String, TransferProgress> progresses = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor();
+    private ScheduledFuture<?> tick;
+
+    public ProgressNotifier(Context context, TransferRegistry transferRegistry) {
+        this.context = context;
+        this.transferRegistry = transferRegistry;
+    }
+
+    public void markDirty(String refId) {
+        dirtyRefIds.add(refId);
+    }
+
+    /**
+     * Replaces the progress notification with a final one. Runs under the same lock as the
+     * ticker, so a late progress update can't overwrite it.
+     */
+    public synchronized void notifyFinished(String refId, Notification notification) {
+        dirtyRefIds.remove(refId);
+        progresses.remove(refId);
+        NotificationManagerCompat.from(context).notify(refId.hashCode(), notification);
+    }
+
+    public synchronized void cancel(String refId) {
+        dirtyRefIds.remove(refId);
+        progresses.remove(refId);
+        NotificationManagerCompat.from(context).cancel(refId.hashCode());
+    }
+
+    public synchronized void start() {
+        if (tick != null) {
+            return;
+        }
+
+        tick = ticker.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, Constants.PROGRESS_NOTIFICATION_INTERVAL_MS, Constants.PROGRESS_NOTIFICATION_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (tick != null) {
+            tick.cancel(false);
+            tick = null;
+        }
+    }
+
+    public void shutdown() {
+        stop();
+        ticker.shutdownNow();
+    }
+
+    private synchronized void flush() {
+        long now = System.currentTimeMillis();
+        NotificationManagerCompat notificationManager = NotificationManagerCompat.from(context);
+
+        // Transfers that got no bytes since the last tick are updated too, so a stall shows
+        // as the rate dropping instead of the last rate staying up.
+        Set<String> refIds = new HashSet<>(progresses.keySet());
+        Iterator<String> iterator = dirtyRefIds.iterator();
+        while (iterator.hasNext()) {
+            refIds.add(iterator.next());
+            iterator.remove();
+        }
+
+        for (String refId : refIds) {
+            TransferRecord record = transferRegistry.get(refId);
+            if (record == null || record.getState().isFinal()) {
+                progresses.remove(refId);
+                continue;
+            }
+
+            TransferProgress progress = progresses.get(refId);
+            if (progress == null) {
+                progress = new TransferProgress();
+                progresses.put(refId, progress);
+            }
+            progress.update(record.getBytesTransferred(), now);
+
+            notificationManager.notify(refId.hashCode(), buildNotification(record, progress).build());
+        }
+    }
+
+    private NotificationCompat.Builder buildNotification(TransferRecord record, TransferProgress progress) {
+        long size = record.getSize();
+        long bytes = record.getBytesTransferred();
+
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(context, Constants.NOTIF_CHANNEL_DOWNLOAD_FILE);
+        builder.setContentTitle(record.getFileName())
+                .setContentText(formatStatus(bytes, size, progress))
+                .setSmallIcon(R.drawable.ic_launcher)
+                .setPriority(NotificationCompat.PRIORITY_LOW)
+                .setOnlyAlertOnce(true)
+                .setShowWhen(false)
+                .setOngoing(true);
+
+        if (size > 0) {
+            // Scale to permille, notification progress is an int.
+            builder.setProgress(1000, (int) Math.min(1000, bytes * 1000 / size), false);
+        } else {
+            builder.setProgress(0, 0, true);
+        }
+        return builder;
+    }
+
+    static String formatStatus(long bytes, long size, TransferProgress progress) {
+        StringBuilder builder = new StringBuilder(formatBytes(bytes));
+        if (size > 0) {
+            builder.append(" of ").append(formatBytes(size));
+        }
+
+        double bytesPerSecond = progress.getBytesPerSecond();
+        if (bytesPerSecond > 0) {
+            builder.append(String.format(Locale.ENGLISH, ", %.1f MB/s", bytesPerSecond / (1024 * 1024)));
+        }
+
+        long eta = progress.getEtaSeconds(size);
+        if (eta >= 0) {
+            builder.append(", ").append(formatDuration(eta)).append(" left");
+        }
+        return builder.toString();
+    }
+
+    static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        if (bytes < 1024 * 1024) {
+            return String.format(Locale.ENGLISH, "%.1f KB", bytes / 1024.0);
+        }
+        if (bytes < 1024L * 1024 * 1024) {
+            return String.format(Locale.ENGLISH, "%.1f MB", bytes / (1024.0 * 1024));
+        }
+        return String.format(Locale.ENGLISH, "%.2f GB", bytes / (1024.0 * 1024 * 1024));
+    }
+
+    static String formatDuration(long seconds) {
+        if (seconds < 60) {
+            return seconds + " s";
+        }
+        if (seconds < 3600) {
+            return String.format(Locale.ENGLISH, "%d min", (seconds + 59) / 60);
+        }
+        return String.format(Locale.ENGLISH, "%d h %d min", seconds / 3600, (seconds % 3600) / 60);
+    }
+}
@@ -0,0 +1,201 @@
+package io.rousan.datash;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps track of a file that is moved as fixed-size ranges, in any order and from several
+ * threads at once. Checksums and digests have to see the bytes front to back, so they follow
+ * the contiguous prefix of finished ranges by reading it back from the file, one thread at a
+ * time, while the others keep moving ranges. The bytes just went through the page cache, so
+ * reading them back is cheap compared to the Base64 and disk work that runs in parallel.
+ */
+public class RangeTracker {
+    public interface Listener {
+        /**
+         * Called on the hashing thread whenever everything up to {@code offset} has been
+         * hashed. Nothing else touches the checksum or the digest until this returns.
+         */
+        void onHashed(long offset) throws IOException;
+    }
+
+    private final static int HASH_BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final long size;
+    private final int rangeSize;
+    private final int rangeCount;
+    private final CRC32 checksum;
+    private final TransferDigest digest;
+    private final TransferMetrics metrics;
+    private final Listener listener;
+    private final BitSet doneRanges = new BitSet();
+    private final ByteBuffer hashBuffer = ByteBuffer.allocate(HASH_BUFFER_SIZE);
+    private long contiguousOffset;
+    private long hashedOffset;
+    private boolean isHashing = false;
+    private IOException failure;
+
+    /**
+     * @param doneOffset where the ranges start, e.g. a resumed offset; {@code checksum} and
+     *                   {@code digest} have to already cover the bytes before it
+     */
+    public RangeTracker(FileChannel channel, long size, int rangeSize, long doneOffset, CRC32 checksum, TransferDigest digest, TransferMetrics metrics, Listener listener) throws IOException {
+        if (size < 0 || rangeSize <= 0) {
+            throw new IOException(String.format("Invalid ranges of %d bytes for a file of %d bytes", rangeSize, size));
+        }
+        if (doneOffset != size && doneOffset % rangeSize != 0) {
+            throw new IOException(String.format("Offset %d doesn't start a range of %d bytes", doneOffset, rangeSize));
+        }
+
+        this.channel = channel;
+        this.size = size;
+        this.rangeSize = rangeSize;
+        this.rangeCount = (int) ((size + rangeSize - 1) / rangeSize);
+        this.checksum = checksum;
+        this.digest = digest;
+        this.metrics = metrics;
+        this.listener = listener;
+        this.contiguousOffset = doneOffset;
+        this.hashedOffset = doneOffset;
+        doneRanges.set(0, (int) ((doneOffset + rangeSize - 1) / rangeSize));
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int getRangeCount() {
+        return rangeCount;
+    }
+
+    public long getRangeOffset(int index) throws IOException {
+        checkIndex(index);
+        return (long) index * rangeSize;
+    }
+
+    public int getRangeLength(int index) throws IOException {
+        return (int) Math.min(rangeSize, size - getRangeOffset(index));
+    }
+
+    public synchronized boolean isDone(int index) {
+        return doneRanges.get(index);
+    }
+
+    /**
+     * End of the ranges finished without a gap before them.
+     */
+    public synchronized long getContiguousOffset() {
+        return contiguousOffset;
+    }
+
+    public synchronized boolean isComplete() {
+        return contiguousOffset == size;
+    }
+
+    /**
+     * Marks range {@code index} as done; its bytes have to be in the file by now. Hashes
+     * whatever became contiguous, unless another thread is already at it. Returns false if
+     * the range was done before.
+     */
+    public boolean complete(int index) throws IOException {
+        checkIndex(index);
+        synchronized (this) {
+            if (doneRanges.get(index)) {
+                return false;
+            }
+            doneRanges.set(index);
+            contiguousOffset = Math.min(size, (long) doneRanges.nextClearBit(0) * rangeSize);
+            if (isHashing) {
+                return true;
+            }
+            isHashing = true;
+        }
+
+        hashPrefix();
+        return true;
+    }
+
+    /**
+     * Waits for the hashing thread to catch up and returns how far the checksum and digest
+     * got. Throws if hashing failed.
+     */
+    public synchronized long awaitHashed() throws IOException {
+        try {
+            while (isHashing) {
+                wait();
+            }
+        } catch (InterruptedException exp) {
+            throw new InterruptedIOException();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return hashedOffset;
+    }
+
+    private void hashPrefix() throws IOException {
+        try {
+            while (true) {
+                long end;
+                synchronized (this) {
+                    if (failure != null || hashedOffset == contiguousOffset) {
+                        isHashing = false;
+                        notifyAll();
+                        return;
+                    }
+                    end = contiguousOffset;
+                }
+
+                hash(hashedOffset, end);
+                synchronized (this) {
+                    hashedOffset = end;
+                }
+                if (listener != null) {
+                    listener.onHashed(end);
+                }
+            }
+        } catch (IOException exp) {
+            synchronized (this) {
+                failure = exp;
+                isHashing = false;
+                notifyAll();
+            }
+            throw exp;
+        }
+    }
+
+    private void hash(long start, long end) throws IOException {
+        long position = start;
+        while (position < end) {
+            hashBuffer.clear();
+            hashBuffer.limit((int) Math.min(HASH_BUFFER_SIZE, end - position));
+            while (hashBuffer.hasRemaining()) {
+                if (channel.read(hashBuffer, position + hashBuffer.position()) < 0) {
+                    throw new IOException(String.format("File ended at %d, expected %d bytes", position + hashBuffer.position(), size));
+                }
+            }
+
+            int length = hashBuffer.position();
+            long startedAt = metrics.start();
+            if (checksum != null) {
+                checksum.update(hashBuffer.array(), 0, length);
+            }
+            if (digest != null) {
+                digest.update(hashBuffer.array(), 0, length);
+            }
+            metrics.record(TransferMetrics.Stage.DIGEST, startedAt, length);
+            position += length;
+        }
+    }
+
+    private void checkIndex(int index) throws IOException {
+        if (index < 0 || index >= rangeCount) {
+            throw new IOException(String.format("Range %d out of bounds, there are %d", index, rangeCount));
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package io.rousan.datash;
+
+public class Transfer implements Comparable<Transfer> {
+    private final String refId;
+    private final TransferScheduler.Pool pool;
+    private final long bytes;
+    private final long priority;
+    private final long seq;
+    private final TransferScheduler.Task task;
+    private volatile TransferState state = TransferState.QUEUED;
+    private volatile Thread thread;
+    private volatile Exception error;
+
+    Transfer(String refId, TransferScheduler.Pool pool, long bytes, long priority, long seq, TransferScheduler.Task task) {
+        this.refId = refId;
+        this.pool = pool;
+        this.bytes = bytes;
+        this.priority = priority;
+        this.seq = seq;
+        this.task = task;
+    }
+
+    public String getRefId() {
+        return refId;
+    }
+
+    /**
+     * The pool the task runs on, or null for budget booked with
+     * {@link TransferScheduler#acquire}, which the caller runs itself.
+     */
+    public TransferScheduler.Pool getPool() {
+        return pool;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Lower goes first, usually the size of the whole file the work belongs to.
+     */
+    public long getPriority() {
+        return priority;
+    }
+
+    public TransferState getState() {
+        return state;
+    }
+
+    public Exception getError() {
+        return error;
+    }
+
+    public boolean isCancelled() {
+        return state == TransferState.CANCELLED;
+    }
+
+    TransferScheduler.Task getTask() {
+        return task;
+    }
+
+    void setThread(Thread thread) {
+        this.thread = thread;
+    }
+
+    Thread getThread() {
+        return thread;
+    }
+
+    void setError(Exception error) {
+        this.error = error;
+    }
+
+    /**
+     * Moves to {@code next} unless the transfer already reached a final state, so a late
+     * completion can't overwrite a cancellation.
+     */
+    synchronized boolean moveTo(TransferState next) {
+        if (state.isFinal()) {
+            return false;
+        }
+        state = next;
+        return true;
+    }
+
+    @Override
+    public int compareTo(Transfer other) {
+        // Small items first, then in submission order.
+        if (priority != other.priority) {
+            return priority < other.priority ? -1 : 1;
+        }
+        return Long.compare(seq, other.seq);
+    }
+}
@@ -0,0 +1,96 @@
+package io.rousan.datash;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.InflaterOutputStream;
+
+/**
+ * Streaming content encoding applied on the bridge. Encoding pulls from the file as the page
+ * reads, decoding is pushed into the part file as chunks arrive, so neither side ever holds
+ * more than a chunk. Names match the page's {@code CompressionStream} formats.
+ */
+public abstract class TransferCodec {
+    public final static String DEFLATE = "deflate";
+
+    private final String name;
+
+    TransferCodec(String name) {
+        this.name = name;
+    }
+
+    public static TransferCodec create(String name) {
+        switch (name.toLowerCase(Locale.ENGLISH)) {
+            case DEFLATE:
+                return new DeflateCodec(Deflater.BEST_SPEED);
+            default:
+                throw new IllegalArgumentException("Unsupported encoding: " + name);
+        }
+    }
+
+    public static boolean isSupported(String name) {
+        try {
+            create(name);
+            return true;
+        } catch (IllegalArgumentException exp) {
+            return false;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Wraps {@code source} so that reading it yields encoded bytes.
+     */
+    public abstract InputStream encode(InputStream source);
+
+    /**
+     * Wraps {@code sink} so that encoded bytes written to it arrive decoded. Closing the
+     * returned stream flushes it and fails if the encoded data was cut short.
+     */
+    public abstract OutputStream decode(OutputStream sink);
+
+    private static class DeflateCodec extends TransferCodec {
+        private final int level;
+
+        DeflateCodec(int level) {
+            super(DEFLATE);
+            this.level = level;
+        }
+
+        @Override
+        public InputStream encode(InputStream source) {
+            final Deflater deflater = new Deflater(level);
+            return new DeflaterInputStream(source, deflater) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        deflater.end();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public OutputStream decode(OutputStream sink) {
+            return new InflaterOutputStream(sink) {
+                @Override
+                public void close() throws IOException {
+                    finish();
+                    boolean isComplete = inf.finished();
+                    super.close();
+                    if (!isComplete) {
+                        throw new IOException("Truncated deflate stream");
+                    }
+                }
+            };
+        }
+    }
+}
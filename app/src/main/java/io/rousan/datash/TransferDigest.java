@@ -0,0 +1,143 @@
+package io.rousan.datash;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * Streaming digest over transferred bytes, fed straight from the transfer buffers. Digests
+ * are exchanged with the page as {@code "<algorithm>:<hex>"}, e.g. {@code "sha-256:9f86..."}.
+ */
+public abstract class TransferDigest {
+    public final static String SHA_256 = "sha-256";
+    public final static String CRC32 = "crc32";
+    public final static String CRC32C = "crc32c";
+
+    private final String algorithm;
+
+    TransferDigest(String algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    public static TransferDigest create(String algorithm) {
+        switch (algorithm.toLowerCase(Locale.ENGLISH)) {
+            case SHA_256:
+                try {
+                    return new MessageDigestImpl(SHA_256, MessageDigest.getInstance("SHA-256"));
+                } catch (NoSuchAlgorithmException exp) {
+                    throw new IllegalArgumentException(exp);
+                }
+            case CRC32:
+                return new ChecksumImpl(CRC32, new CRC32(), 4);
+            case CRC32C:
+                // java.util.zip.CRC32C only exists from API 26 on.
+                try {
+                    Checksum checksum = (Checksum) Class.forName("java.util.zip.CRC32C").getDeclaredConstructor().newInstance();
+                    return new ChecksumImpl(CRC32C, checksum, 4);
+                } catch (ReflectiveOperationException exp) {
+                    throw new IllegalArgumentException("Unsupported digest algorithm: " + algorithm);
+                }
+            default:
+                throw new IllegalArgumentException("Unsupported digest algorithm: " + algorithm);
+        }
+    }
+
+    public static boolean isSupported(String algorithm) {
+        try {
+            create(algorithm);
+            return true;
+        } catch (IllegalArgumentException exp) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns {@code algorithm} if this device supports it, otherwise the closest one it does:
+     * crc32 for crc32c, which needs API 26, and sha-256 for anything else. Null stays null.
+     */
+    public static String negotiate(String algorithm) {
+        if (algorithm == null || isSupported(algorithm)) {
+            return algorithm;
+        }
+        return CRC32C.equalsIgnoreCase(algorithm) ? CRC32 : SHA_256;
+    }
+
+    /**
+     * Returns the algorithm part of a {@code "<algorithm>:<hex>"} digest, or null when the
+     * string isn't in that format.
+     */
+    public static String algorithmOf(String digest) {
+        int colon = digest == null ? -1 : digest.indexOf(':');
+        return colon > 0 ? digest.substring(0, colon).toLowerCase(Locale.ENGLISH) : null;
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public abstract void update(byte[] buffer, int offset, int length);
+
+    protected abstract byte[] digest();
+
+    /**
+     * Completes the digest and formats it. The instance can't be updated afterwards.
+     */
+    public String finish() {
+        byte[] bytes = digest();
+        StringBuilder builder = new StringBuilder(algorithm.length() + 1 + bytes.length * 2);
+        builder.append(algorithm).append(':');
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+            builder.append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+
+    private static class MessageDigestImpl extends TransferDigest {
+        private final MessageDigest messageDigest;
+
+        MessageDigestImpl(String algorithm, MessageDigest messageDigest) {
+            super(algorithm);
+            this.messageDigest = messageDigest;
+        }
+
+        @Override
+        public void update(byte[] buffer, int offset, int length) {
+            messageDigest.update(buffer, offset, length);
+        }
+
+        @Override
+        protected byte[] digest() {
+            return messageDigest.digest();
+        }
+    }
+
+    private static class ChecksumImpl extends TransferDigest {
+        private final Checksum checksum;
+        private final int size;
+
+        ChecksumImpl(String algorithm, Checksum checksum, int size) {
+            super(algorithm);
+            this.checksum = checksum;
+            this.size = size;
+        }
+
+        @Override
+        public void update(byte[] buffer, int offset, int length) {
+            checksum.update(buffer, offset, length);
+        }
+
+        @Override
+        protected byte[] digest() {
+            long value = checksum.getValue();
+            byte[] bytes = new byte[size];
+            for (int i = size - 1; i >= 0; i--) {
+                bytes[i] = (byte) value;
+                value >>>= 8;
+            }
+            return bytes;
+        }
+    }
+}
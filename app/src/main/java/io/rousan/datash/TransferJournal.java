@@ -0,0 +1,220 @@
+package io.rousan.datash;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * Append-only log of partially received files, so an interrupted download can continue from
+ * its last committed offset after the process dies. One line per event:
+ * <pre>
+ * S refId fromId size fileName mimeType partPath createdAt
+ * C refId committedOffset checksum
+ * E refId
+ * </pre>
+ * The file is compacted every time it is loaded.
+ */
+public class TransferJournal {
+    public static class Entry {
+        public final String refId;
+        public final String fromId;
+        public final long size;
+        public final String fileName;
+        public final String mimeType;
+        public final File partFile;
+        public final long createdAt;
+        long committedOffset = 0;
+        long checksum = 0;
+
+        public Entry(String refId, String fromId, long size, String fileName, String mimeType, File partFile, long createdAt) {
+            this.refId = refId;
+            this.fromId = fromId;
+            this.size = size;
+            this.fileName = fileName;
+            this.mimeType = mimeType;
+            this.partFile = partFile;
+            this.createdAt = createdAt;
+        }
+
+        public long getCommittedOffset() {
+            return committedOffset;
+        }
+
+        public long getChecksum() {
+            return checksum;
+        }
+    }
+
+    private final File file;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private FileOutputStream outputStream;
+
+    public TransferJournal(File file) throws IOException {
+        this.file = file;
+        load();
+        compact();
+    }
+
+    public synchronized Entry get(String refId) {
+        return entries.get(refId);
+    }
+
+    public synchronized List<Entry> getAll() {
+        return new ArrayList<>(entries.values());
+    }
+
+    public synchronized void begin(Entry entry) throws IOException {
+        entries.put(entry.refId, entry);
+        append(startLine(entry));
+    }
+
+    public synchronized void commit(String refId, long offset, long checksum) throws IOException {
+        Entry entry = entries.get(refId);
+        if (entry == null) {
+            return;
+        }
+
+        entry.committedOffset = offset;
+        entry.checksum = checksum;
+        append(commitLine(entry));
+    }
+
+    public synchronized void end(String refId) {
+        if (entries.remove(refId) == null) {
+            return;
+        }
+
+        try {
+            append("E\t" + encode(refId));
+        } catch (IOException exp) {
+            // Worst case the entry comes back on the next load and fails validation.
+            Timber.d(exp);
+        }
+    }
+
+    public synchronized void close() {
+        if (outputStream != null) {
+            try {
+                outputStream.close();
+            } catch (IOException ignored) {
+            }
+            outputStream = null;
+        }
+    }
+
+    private void append(String line) throws IOException {
+        if (outputStream == null) {
+            outputStream = new FileOutputStream(file, true);
+        }
+        outputStream.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        outputStream.getFD().sync();
+    }
+
+    private void load() throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+
+        String content = FileUtils.readFileToString(file, StandardCharsets.UTF_8);
+        // Only newline terminated lines were fully written, a crash can leave a torn last one.
+        int end = content.lastIndexOf('\n');
+        if (end < 0) {
+            return;
+        }
+
+        for (String line : content.substring(0, end).split("\n")) {
+            try {
+                apply(line.split("\t"));
+            } catch (RuntimeException exp) {
+                Timber.d("Skipping journal line: %s", line);
+            }
+        }
+    }
+
+    private void apply(String[] fields) throws UnsupportedEncodingException {
+        switch (fields[0]) {
+            case "S":
+                Entry entry = new Entry(
+                        decode(fields[1]),
+                        decode(fields[2]),
+                        Long.parseLong(fields[3]),
+                        decode(fields[4]),
+                        decode(fields[5]),
+                        new File(decode(fields[6])),
+                        Long.parseLong(fields[7])
+                );
+                entries.put(entry.refId, entry);
+                break;
+            case "C":
+                Entry committed = entries.get(decode(fields[1]));
+                long offset = Long.parseLong(fields[2]);
+                long checksum = Long.parseLong(fields[3]);
+                if (committed != null) {
+                    committed.committedOffset = offset;
+                    committed.checksum = checksum;
+                }
+                break;
+            case "E":
+                entries.remove(decode(fields[1]));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown journal record " + fields[0]);
+        }
+    }
+
+    private void compact() throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        FileOutputStream tmpStream = new FileOutputStream(tmpFile);
+        try {
+            StringBuilder builder = new StringBuilder();
+            for (Entry entry : entries.values()) {
+                builder.append(startLine(entry)).append('\n');
+                if (entry.committedOffset > 0) {
+                    builder.append(commitLine(entry)).append('\n');
+                }
+            }
+            tmpStream.write(builder.toString().getBytes(StandardCharsets.UTF_8));
+            tmpStream.getFD().sync();
+        } finally {
+            tmpStream.close();
+        }
+
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException("Failed to compact " + file);
+        }
+    }
+
+    private static String startLine(Entry entry) throws UnsupportedEncodingException {
+        return "S\t" + encode(entry.refId)
+                + "\t" + encode(entry.fromId)
+                + "\t" + entry.size
+                + "\t" + encode(entry.fileName)
+                + "\t" + encode(entry.mimeType)
+                + "\t" + encode(entry.partFile.getPath())
+                + "\t" + entry.createdAt;
+    }
+
+    private static String commitLine(Entry entry) throws UnsupportedEncodingException {
+        return "C\t" + encode(entry.refId) + "\t" + entry.committedOffset + "\t" + entry.checksum;
+    }
+
+    private static String encode(String value) throws UnsupportedEncodingException {
+        return URLEncoder.encode(value == null ? "" : value, "UTF-8");
+    }
+
+    private static String decode(String value) throws UnsupportedEncodingException {
+        return URLDecoder.decode(value, "UTF-8");
+    }
+}
@@ -0,0 +1,220 @@
+package io.rousan.datash;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-stage timings of the send and receive paths. Every stage keeps a log2 histogram of
+ * durations plus totals in preallocated atomic counters, so recording on the hot path never
+ * allocates. Heap snapshots are taken around large transfers. Everything exports as JSON for
+ * comparing builds and devices.
+ */
+public class TransferMetrics {
+    public enum Stage {
+        CONTENT_READ,
+        BASE64_ENCODE,
+        BRIDGE_QUEUE,
+        BASE64_DECODE,
+        DISK_WRITE,
+        DIGEST,
+        JOURNAL_COMMIT,
+        FINISH
+    }
+
+    public final static TransferMetrics DISABLED = new TransferMetrics(false);
+
+    private final static int BUCKETS = 64;
+    private final static int HEAP_SNAPSHOTS = 32;
+
+    private final boolean isEnabled;
+    private final AtomicLongArray histograms = new AtomicLongArray(Stage.values().length * BUCKETS);
+    private final AtomicLongArray counts = new AtomicLongArray(Stage.values().length);
+    private final AtomicLongArray totalNanos = new AtomicLongArray(Stage.values().length);
+    private final AtomicLongArray maxNanos = new AtomicLongArray(Stage.values().length);
+    private final AtomicLongArray totalBytes = new AtomicLongArray(Stage.values().length);
+    private final String[] heapLabels = new String[HEAP_SNAPSHOTS];
+    private final long[][] heapSnapshots = new long[HEAP_SNAPSHOTS][4];
+    private final AtomicLong heapHighWaterMark = new AtomicLong();
+    private int nextHeapSnapshot = 0;
+    private final long startedAt = System.currentTimeMillis();
+
+    public TransferMetrics() {
+        this(true);
+    }
+
+    private TransferMetrics(boolean isEnabled) {
+        this.isEnabled = isEnabled;
+    }
+
+    /**
+     * Returns a start timestamp for {@link #record}, or 0 when metrics are disabled.
+     */
+    public long start() {
+        return isEnabled ? System.nanoTime() : 0;
+    }
+
+    public void record(Stage stage, long startNanos, long bytes) {
+        if (!isEnabled) {
+            return;
+        }
+        recordNanos(stage, System.nanoTime() - startNanos, bytes);
+    }
+
+    public void recordNanos(Stage stage, long nanos, long bytes) {
+        if (!isEnabled) {
+            return;
+        }
+
+        int index = stage.ordinal();
+        int bucket = nanos <= 0 ? 0 : BUCKETS - 1 - Long.numberOfLeadingZeros(nanos);
+        histograms.incrementAndGet(index * BUCKETS + bucket);
+        counts.incrementAndGet(index);
+        totalNanos.addAndGet(index, nanos);
+        totalBytes.addAndGet(index, bytes);
+
+        long max;
+        while (nanos > (max = maxNanos.get(index))) {
+            if (maxNanos.compareAndSet(index, max, nanos)) {
+                break;
+            }
+        }
+    }
+
+    public long getCount(Stage stage) {
+        return counts.get(stage.ordinal());
+    }
+
+    public long getTotalBytes(Stage stage) {
+        return totalBytes.get(stage.ordinal());
+    }
+
+    /**
+     * Throughput of a stage while it was actually running, in bytes per second.
+     */
+    public long getBytesPerSecond(Stage stage) {
+        long nanos = totalNanos.get(stage.ordinal());
+        return nanos == 0 ? 0 : (long) (totalBytes.get(stage.ordinal()) * 1e9 / nanos);
+    }
+
+    /**
+     * Records the Java heap usage, e.g. before and after a large transfer.
+     */
+    public void snapshotHeap(String label) {
+        if (!isEnabled) {
+            return;
+        }
+
+        Runtime runtime = Runtime.getRuntime();
+        long total = runtime.totalMemory();
+        long used = total - runtime.freeMemory();
+        updateHeapHighWaterMark(used);
+        synchronized (heapSnapshots) {
+            int index = nextHeapSnapshot++ % HEAP_SNAPSHOTS;
+            heapLabels[index] = label;
+            heapSnapshots[index][0] = System.currentTimeMillis();
+            heapSnapshots[index][1] = used;
+            heapSnapshots[index][2] = total;
+            heapSnapshots[index][3] = runtime.maxMemory();
+        }
+    }
+
+    /**
+     * Updates the heap high-water mark without keeping a snapshot. Cheap enough to call on
+     * every chunk.
+     */
+    public void sampleHeap() {
+        if (!isEnabled) {
+            return;
+        }
+
+        Runtime runtime = Runtime.getRuntime();
+        updateHeapHighWaterMark(runtime.totalMemory() - runtime.freeMemory());
+    }
+
+    public void updateHeapHighWaterMark(long used) {
+        long max;
+        while (used > (max = heapHighWaterMark.get())) {
+            if (heapHighWaterMark.compareAndSet(max, used)) {
+                return;
+            }
+        }
+    }
+
+    public long getHeapHighWaterMark() {
+        return heapHighWaterMark.get();
+    }
+
+    /**
+     * @param gauges point in time values to include, such as queue depths
+     */
+    public String toJson(Map<String, ?> gauges) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("{\"startedAt\":").append(startedAt)
+                .append(",\"exportedAt\":").append(System.currentTimeMillis())
+                .append(",\"stages\":{");
+        for (Stage stage : Stage.values()) {
+            int index = stage.ordinal();
+            if (index > 0) {
+                builder.append(',');
+            }
+            builder.append('"').append(stage.name().toLowerCase(Locale.ENGLISH)).append("\":{")
+                    .append("\"count\":").append(counts.get(index))
+                    .append(",\"totalNanos\":").append(totalNanos.get(index))
+                    .append(",\"maxNanos\":").append(maxNanos.get(index))
+                    .append(",\"bytes\":").append(totalBytes.get(index))
+                    .append(",\"bytesPerSecond\":").append(getBytesPerSecond(stage))
+                    .append(",\"log2NanosHistogram\":[");
+            // Trailing empty buckets are left out, bucket i counts durations in [2^i, 2^(i+1)).
+            int last = BUCKETS - 1;
+            while (last > 0 && histograms.get(index * BUCKETS + last) == 0) {
+                last--;
+            }
+            for (int bucket = 0; bucket <= last; bucket++) {
+                if (bucket > 0) {
+                    builder.append(',');
+                }
+                builder.append(histograms.get(index * BUCKETS + bucket));
+            }
+            builder.append("]}");
+        }
+
+        builder.append("},\"heap\":{\"highWaterMark\":").append(heapHighWaterMark.get()).append(",\"snapshots\":[");
+        synchronized (heapSnapshots) {
+            int count = Math.min(nextHeapSnapshot, HEAP_SNAPSHOTS);
+            for (int i = 0; i < count; i++) {
+                int index = (nextHeapSnapshot - count + i) % HEAP_SNAPSHOTS;
+                if (i > 0) {
+                    builder.append(',');
+                }
+                builder.append("{\"label\":");
+                JsPayload.appendString(builder, heapLabels[index]);
+                builder.append(",\"at\":").append(heapSnapshots[index][0])
+                        .append(",\"used\":").append(heapSnapshots[index][1])
+                        .append(",\"total\":").append(heapSnapshots[index][2])
+                        .append(",\"max\":").append(heapSnapshots[index][3])
+                        .append('}');
+            }
+        }
+
+        builder.append("]},\"gauges\":{");
+        boolean isFirst = true;
+        if (gauges != null) {
+            for (Map.Entry<String, ?> gauge : gauges.entrySet()) {
+                if (!isFirst) {
+                    builder.append(',');
+                }
+                isFirst = false;
+                JsPayload.appendString(builder, gauge.getKey());
+                builder.append(':');
+                if (gauge.getValue() instanceof Number) {
+                    builder.append(gauge.getValue());
+                } else {
+                    JsPayload.appendString(builder, String.valueOf(gauge.getValue()));
+                }
+            }
+        }
+        return builder.append("}}").toString();
+    }
+}
@@ -0,0 +1,48 @@
+package io.rousan.datash;
+
+/**
+ * Smoothed throughput and ETA for one transfer, fed with (bytes, time) samples.
+ */
+public class TransferProgress {
+    private final static double SMOOTHING = 0.3;
+
+    private long lastBytes = -1;
+    private long lastTimeMillis;
+    private double bytesPerSecond = 0;
+
+    public synchronized void update(long bytes, long nowMillis) {
+        if (lastBytes < 0) {
+            lastBytes = bytes;
+            lastTimeMillis = nowMillis;
+            return;
+        }
+
+        long elapsed = nowMillis - lastTimeMillis;
+        if (elapsed <= 0) {
+            return;
+        }
+
+        double sample = (bytes - lastBytes) * 1000.0 / elapsed;
+        bytesPerSecond = bytesPerSecond == 0 ? sample : SMOOTHING * sample + (1 - SMOOTHING) * bytesPerSecond;
+        if (bytesPerSecond < 1) {
+            // Stalled, decayed all the way down.
+            bytesPerSecond = 0;
+        }
+        lastBytes = bytes;
+        lastTimeMillis = nowMillis;
+    }
+
+    public synchronized double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Returns the estimated seconds left, or -1 while there is no usable estimate.
+     */
+    public synchronized long getEtaSeconds(long totalBytes) {
+        if (totalBytes <= 0 || lastBytes < 0 || bytesPerSecond < 1) {
+            return -1;
+        }
+        return (long) Math.ceil(Math.max(0, totalBytes - lastBytes) / bytesPerSecond);
+    }
+}
@@ -0,0 +1,123 @@
+package io.rousan.datash;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TransferRecord {
+    private final String refId;
+    private final String fromId;
+    private final String fileName;
+    private final long size;
+    private final String mimeType;
+    private final long createdAt;
+    private final AtomicLong bytesTransferred = new AtomicLong();
+    private volatile TransferState state = TransferState.QUEUED;
+    private volatile long updatedAt;
+    private volatile long finishedAt;
+    private volatile String contentEncoding;
+    private volatile File outputFile;
+
+    public TransferRecord(String refId, String fromId, String fileName, long size, String mimeType) {
+        this.refId = refId;
+        this.fromId = fromId;
+        this.fileName = fileName;
+        this.size = size;
+        this.mimeType = mimeType;
+        this.createdAt = System.currentTimeMillis();
+        this.updatedAt = createdAt;
+    }
+
+    public String getRefId() {
+        return refId;
+    }
+
+    public String getFromId() {
+        return fromId;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * Encoding the bytes arrive in, or null when they arrive as is.
+     */
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    public void setContentEncoding(String contentEncoding) {
+        this.contentEncoding = contentEncoding;
+    }
+
+    /**
+     * Where the received file ended up, or null until it is complete.
+     */
+    public File getOutputFile() {
+        return outputFile;
+    }
+
+    public void setOutputFile(File outputFile) {
+        this.outputFile = outputFile;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public long getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public long getFinishedAt() {
+        return finishedAt;
+    }
+
+    public TransferState getState() {
+        return state;
+    }
+
+    public long getBytesTransferred() {
+        return bytesTransferred.get();
+    }
+
+    public void setBytesTransferred(long bytes) {
+        bytesTransferred.set(bytes);
+        updatedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Progress can be reported both by the page and by the disk writer, so only ever move it
+     * forward.
+     */
+    public void reportProgress(long bytes) {
+        while (true) {
+            long current = bytesTransferred.get();
+            if (bytes <= current || bytesTransferred.compareAndSet(current, bytes)) {
+                break;
+            }
+        }
+        updatedAt = System.currentTimeMillis();
+    }
+
+    synchronized boolean moveTo(TransferState next) {
+        if (state.isFinal()) {
+            return false;
+        }
+
+        state = next;
+        updatedAt = System.currentTimeMillis();
+        if (next.isFinal()) {
+            finishedAt = updatedAt;
+        }
+        return true;
+    }
+}
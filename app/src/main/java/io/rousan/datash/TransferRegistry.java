@@ -0,0 +1,70 @@
+package io.rousan.datash;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks transfers by refId. Lookups never lock; finished records are kept for a while so late
+ * bridge calls still resolve, then evicted once there are too many or they get too old.
+ */
+public class TransferRegistry {
+    private final ConcurrentHashMap<String, TransferRecord> records = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<TransferRecord> finishedRecords = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger finishedCount = new AtomicInteger();
+    private final int maxFinished;
+    private final long maxFinishedAgeMillis;
+
+    public TransferRegistry(int maxFinished, long maxFinishedAgeMillis) {
+        this.maxFinished = maxFinished;
+        this.maxFinishedAgeMillis = maxFinishedAgeMillis;
+    }
+
+    public void register(TransferRecord record) {
+        records.put(record.getRefId(), record);
+        evictFinished(System.currentTimeMillis());
+    }
+
+    public TransferRecord get(String refId) {
+        return records.get(refId);
+    }
+
+    public boolean moveTo(String refId, TransferState state) {
+        TransferRecord record = records.get(refId);
+        if (record == null || !record.moveTo(state)) {
+            return false;
+        }
+
+        if (state.isFinal()) {
+            finishedRecords.add(record);
+            finishedCount.incrementAndGet();
+            evictFinished(record.getFinishedAt());
+        }
+        return true;
+    }
+
+    public int size() {
+        return records.size();
+    }
+
+    public Iterable<TransferRecord> getAll() {
+        return records.values();
+    }
+
+    void evictFinished(long now) {
+        while (true) {
+            TransferRecord oldest = finishedRecords.peek();
+            if (oldest == null) {
+                return;
+            }
+            if (finishedCount.get() <= maxFinished && now - oldest.getFinishedAt() < maxFinishedAgeMillis) {
+                return;
+            }
+            if (finishedRecords.remove(oldest)) {
+                finishedCount.decrementAndGet();
+                // A new transfer may have reused the refId; only drop the finished one.
+                records.remove(oldest.getRefId(), oldest);
+            }
+        }
+    }
+}
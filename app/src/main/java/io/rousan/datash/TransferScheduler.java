@@ -0,0 +1,338 @@
+package io.rousan.datash;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import timber.log.Timber;
+
+/**
+ * Runs transfer work on two bounded pools, one for disk and content I/O and one for CPU bound
+ * encoding and decoding. Queued work is started smallest first and only while the bytes held
+ * by running transfers stay below a global budget, so a large batch can't exhaust memory.
+ * Work that doesn't belong to a transfer goes through {@link #execute} and skips the budget.
+ * Callers that have to answer synchronously, like the JavaScript bridge and the loopback
+ * server, book their bytes with {@link #acquire} and queue the same way.
+ */
+public class TransferScheduler {
+    public enum Pool {
+        IO,
+        CPU
+    }
+
+    public interface Task {
+        void run(Transfer transfer) throws Exception;
+    }
+
+    public interface Listener {
+        void onTransferStateChanged(Transfer transfer);
+    }
+
+    private final int[] concurrency = new int[Pool.values().length];
+    private final int[] running = new int[Pool.values().length];
+    private final ExecutorService[] executors = new ExecutorService[Pool.values().length];
+    @SuppressWarnings("unchecked")
+    private final PriorityQueue<Transfer>[] queues = (PriorityQueue<Transfer>[]) new PriorityQueue<?>[Pool.values().length];
+    private final PriorityQueue<Transfer> acquiring = new PriorityQueue<>();
+    private final ConcurrentHashMap<String, Transfer> transfers = new ConcurrentHashMap<>();
+    private long maxInFlightBytes;
+    private long inFlightBytes = 0;
+    private long nextSeq = 0;
+    private boolean shutdown = false;
+    private volatile Listener listener;
+
+    public TransferScheduler(int ioConcurrency, int cpuConcurrency, long maxInFlightBytes) {
+        this.maxInFlightBytes = maxInFlightBytes;
+        concurrency[Pool.IO.ordinal()] = ioConcurrency;
+        concurrency[Pool.CPU.ordinal()] = cpuConcurrency;
+        for (Pool pool : Pool.values()) {
+            executors[pool.ordinal()] = Executors.newFixedThreadPool(concurrency[pool.ordinal()]);
+            queues[pool.ordinal()] = new PriorityQueue<>();
+        }
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public Transfer submit(String refId, Pool pool, long bytes, Task task) {
+        return submit(refId, pool, bytes, Math.max(0, bytes), task);
+    }
+
+    /**
+     * @param bytes    memory the task holds while it runs, counted against the budget
+     * @param priority lower starts first, e.g. the size of the whole file for one chunk of it
+     */
+    public Transfer submit(String refId, Pool pool, long bytes, long priority, Task task) {
+        Transfer transfer;
+        synchronized (this) {
+            transfer = new Transfer(refId, pool, Math.max(0, bytes), priority, nextSeq++, task);
+            if (shutdown) {
+                transfer.moveTo(TransferState.CANCELLED);
+                return transfer;
+            }
+            if (!refId.isEmpty()) {
+                transfers.put(refId, transfer);
+            }
+            queues[pool.ordinal()].add(transfer);
+        }
+
+        notifyStateChanged(transfer);
+        dispatch();
+        return transfer;
+    }
+
+    public void execute(Pool pool, final Runnable runnable) {
+        submit("", pool, -1, new Task() {
+            @Override
+            public void run(Transfer transfer) {
+                runnable.run();
+            }
+        });
+    }
+
+    /**
+     * Books {@code bytes} of the budget for work the caller runs on its own thread, blocking
+     * while it's queued behind higher priority work or the budget is used up. Every acquire
+     * has to be followed by a {@link #release}.
+     */
+    public Transfer acquire(long bytes, long priority) throws InterruptedIOException {
+        Transfer transfer;
+        synchronized (this) {
+            if (shutdown) {
+                throw new InterruptedIOException("Transfer scheduler is shut down");
+            }
+            transfer = new Transfer("", null, Math.max(0, bytes), priority, nextSeq++, null);
+            acquiring.add(transfer);
+        }
+
+        dispatch();
+        synchronized (this) {
+            boolean isInterrupted = false;
+            while (transfer.getState() == TransferState.QUEUED && !shutdown && !isInterrupted) {
+                try {
+                    wait();
+                } catch (InterruptedException exp) {
+                    isInterrupted = true;
+                }
+            }
+            if (transfer.getState() == TransferState.QUEUED) {
+                acquiring.remove(transfer);
+                transfer.moveTo(TransferState.CANCELLED);
+                if (isInterrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new InterruptedIOException("Interrupted while waiting for the transfer budget");
+            }
+        }
+        return transfer;
+    }
+
+    public void release(Transfer transfer) {
+        synchronized (this) {
+            if (!transfer.moveTo(TransferState.COMPLETED)) {
+                return;
+            }
+            inFlightBytes -= transfer.getBytes();
+        }
+        dispatch();
+    }
+
+    /**
+     * Changes the budget for bytes held by running transfers. Lowering it doesn't stop what's
+     * running, queued work just waits until enough of it finished.
+     */
+    public void setMaxInFlightBytes(long maxInFlightBytes) {
+        synchronized (this) {
+            this.maxInFlightBytes = maxInFlightBytes;
+        }
+        dispatch();
+    }
+
+    public synchronized long getMaxInFlightBytes() {
+        return maxInFlightBytes;
+    }
+
+    /**
+     * Priority of work on a file of {@code size} bytes: smaller files go first, ones of
+     * unknown size last.
+     */
+    public static long priorityOf(long size) {
+        return size < 0 ? Long.MAX_VALUE : size;
+    }
+
+    public Transfer get(String refId) {
+        return transfers.get(refId);
+    }
+
+    public boolean cancel(String refId) {
+        Transfer transfer = transfers.get(refId);
+        if (transfer == null || !transfer.moveTo(TransferState.CANCELLED)) {
+            return false;
+        }
+
+        synchronized (this) {
+            if (queues[transfer.getPool().ordinal()].remove(transfer)) {
+                transfers.remove(refId, transfer);
+            }
+        }
+
+        Thread thread = transfer.getThread();
+        if (thread != null) {
+            thread.interrupt();
+        }
+        notifyStateChanged(transfer);
+        return true;
+    }
+
+    public synchronized int getQueuedCount(Pool pool) {
+        return queues[pool.ordinal()].size();
+    }
+
+    public synchronized int getRunningCount(Pool pool) {
+        return running[pool.ordinal()];
+    }
+
+    public synchronized long getInFlightBytes() {
+        return inFlightBytes;
+    }
+
+    public synchronized int getAcquiringCount() {
+        return acquiring.size();
+    }
+
+    public void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+            notifyAll();
+        }
+        for (String refId : transfers.keySet()) {
+            cancel(refId);
+        }
+        for (ExecutorService executor : executors) {
+            executor.shutdownNow();
+        }
+    }
+
+    private void dispatch() {
+        while (true) {
+            final Transfer transfer = pollNext();
+            if (transfer == null) {
+                return;
+            }
+            if (transfer.getPool() == null) {
+                // Booked with acquire, the waiting caller runs it.
+                continue;
+            }
+
+            executors[transfer.getPool().ordinal()].execute(new Runnable() {
+                @Override
+                public void run() {
+                    runTransfer(transfer);
+                }
+            });
+        }
+    }
+
+    private synchronized Transfer pollNext() {
+        if (shutdown) {
+            return null;
+        }
+
+        // Strictly in priority order across the pools: when the first in line doesn't fit the
+        // budget, work behind it waits too instead of overtaking it. Only work that books
+        // nothing can still start.
+        PriorityQueue<Transfer> first = null;
+        PriorityQueue<Transfer> free = null;
+        for (PriorityQueue<Transfer> queue : startableQueues()) {
+            Transfer next = queue.peek();
+            if (first == null || next.compareTo(first.peek()) < 0) {
+                first = queue;
+            }
+            if (next.getBytes() == 0 && free == null) {
+                free = queue;
+            }
+        }
+        if (first == null) {
+            return null;
+        }
+
+        // One transfer larger than the whole budget runs once nothing else holds any of it,
+        // and alone.
+        Transfer next = first.peek();
+        if (next.getBytes() > 0 && inFlightBytes > 0 && inFlightBytes + next.getBytes() > maxInFlightBytes) {
+            if (free == null) {
+                return null;
+            }
+            first = free;
+            next = free.peek();
+        }
+
+        first.poll();
+        inFlightBytes += next.getBytes();
+        if (next.getPool() == null) {
+            next.moveTo(TransferState.RUNNING);
+            notifyAll();
+        } else {
+            running[next.getPool().ordinal()]++;
+        }
+        return next;
+    }
+
+    private List<PriorityQueue<Transfer>> startableQueues() {
+        List<PriorityQueue<Transfer>> startable = new ArrayList<>(queues.length + 1);
+        for (Pool pool : Pool.values()) {
+            int index = pool.ordinal();
+            if (!queues[index].isEmpty() && running[index] < concurrency[index]) {
+                startable.add(queues[index]);
+            }
+        }
+        if (!acquiring.isEmpty()) {
+            startable.add(acquiring);
+        }
+        return startable;
+    }
+
+    private void runTransfer(Transfer transfer) {
+        try {
+            if (transfer.moveTo(TransferState.RUNNING)) {
+                notifyStateChanged(transfer);
+                transfer.setThread(Thread.currentThread());
+                try {
+                    transfer.getTask().run(transfer);
+                    if (transfer.moveTo(TransferState.COMPLETED)) {
+                        notifyStateChanged(transfer);
+                    }
+                } catch (Exception exp) {
+                    Timber.d(exp);
+                    transfer.setError(exp);
+                    if (transfer.moveTo(TransferState.FAILED)) {
+                        notifyStateChanged(transfer);
+                    }
+                } finally {
+                    transfer.setThread(null);
+                    // Don't leak a cancellation interrupt into the next task on this thread.
+                    Thread.interrupted();
+                }
+            }
+        } finally {
+            synchronized (this) {
+                running[transfer.getPool().ordinal()]--;
+                inFlightBytes -= transfer.getBytes();
+            }
+            transfers.remove(transfer.getRefId(), transfer);
+            dispatch();
+        }
+    }
+
+    private void notifyStateChanged(Transfer transfer) {
+        Listener listener = this.listener;
+        if (listener != null && !transfer.getRefId().isEmpty()) {
+            listener.onTransferStateChanged(transfer);
+        }
+    }
+}
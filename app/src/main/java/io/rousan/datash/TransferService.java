@@ -0,0 +1,1302 @@
+package io.rousan.datash;
+
+import android.app.DownloadManager;
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.ContentResolver;
+import android.content.Intent;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Binder;
+import android.os.Debug;
+import android.os.Environment;
+import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.provider.OpenableColumns;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import androidx.core.app.NotificationCompat;
+import androidx.core.app.NotificationManagerCompat;
+import androidx.core.content.ContextCompat;
+import androidx.core.content.FileProvider;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import timber.log.Timber;
+
+/**
+ * Owns every running transfer: the scheduler, open file handles and the local file server.
+ * The Activity only binds to it, so rotating the screen or switching apps doesn't stop work
+ * in flight. While anything is transferring the service runs in the foreground.
+ */
+public class TransferService extends Service implements LocalFileServer.Delegate {
+    public interface Listener {
+        void onFilesShared(List<SharedFile> files);
+
+        void onFileReceived(File file, String mimeType);
+
+        void onTransferError(String message);
+    }
+
+    public static class SharedFile {
+        private final OutgoingFile outgoingFile;
+        private final String fileName;
+        private final String mimeType;
+        private final String suggestedEncoding;
+
+        SharedFile(OutgoingFile outgoingFile, String fileName, String mimeType, String suggestedEncoding) {
+            this.outgoingFile = outgoingFile;
+            this.fileName = fileName;
+            this.mimeType = mimeType;
+            this.suggestedEncoding = suggestedEncoding;
+        }
+
+        public String getHandleId() {
+            return outgoingFile.getHandleId();
+        }
+
+        public long getSize() {
+            return outgoingFile.getSize();
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        /**
+         * Encoding worth asking for with {@link #encodeFile}, or null if the file is better
+         * sent as is.
+         */
+        public String getSuggestedEncoding() {
+            return suggestedEncoding;
+        }
+    }
+
+    public class LocalBinder extends Binder {
+        public TransferService getService() {
+            return TransferService.this;
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+    private final TransferMetrics metrics = new TransferMetrics();
+    private final TransferRegistry transferRegistry = new TransferRegistry(
+            Constants.TRANSFER_REGISTRY_MAX_FINISHED,
+            Constants.TRANSFER_REGISTRY_MAX_FINISHED_AGE_MS
+    );
+    private final Set<String> activeTransfers = ConcurrentHashMap.newKeySet();
+    private TransferJournal journal;
+    private ContentIndex contentIndex;
+    private FileReceiver fileReceiver;
+    private final FileSender fileSender = new FileSender(Constants.TRANSFER_DIGEST_ALGORITHM);
+    private final FileNameAllocator fileNameAllocator = new FileNameAllocator(Constants.FILE_NAME_CACHE_SIZE);
+    private final LocalFileServer fileServer = new LocalFileServer(this, Constants.DATASH_ORIGIN);
+    private TransferScheduler scheduler;
+    private ProgressNotifier progressNotifier;
+    private PreviewGenerator previewGenerator;
+    private boolean isForeground = false;
+    private volatile Listener listener;
+    private BufferPool bufferPool;
+    private volatile int maxPendingRanges = Constants.TRANSFER_MAX_PENDING_RANGES;
+    private volatile long memoryLowUntil = 0;
+    private final AtomicInteger trimCount = new AtomicInteger();
+    private final ScheduledExecutorService idleReaper = Executors.newSingleThreadScheduledExecutor();
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        progressNotifier = new ProgressNotifier(this, transferRegistry);
+        previewGenerator = new PreviewGenerator(
+                new PreviewCache(
+                        new File(getCacheDir(), "previews"),
+                        Constants.PREVIEW_MEMORY_CACHE_MAX_BYTES,
+                        Constants.PREVIEW_DISK_CACHE_MAX_BYTES
+                ),
+                Constants.PREVIEW_MAX_SIZE,
+                Constants.PREVIEW_JPEG_QUALITY
+        );
+        try {
+            journal = new TransferJournal(new File(getFilesDir(), "transfers.journal"));
+        } catch (IOException exp) {
+            // Downloads still work, they just can't be resumed.
+            Timber.d(exp);
+        }
+        try {
+            contentIndex = new ContentIndex(new File(getFilesDir(), "content.index"));
+        } catch (IOException exp) {
+            // Every file is just received in full then.
+            Timber.d(exp);
+        }
+        bufferPool = ((App) getApplication()).getBufferPool();
+        fileReceiver = new FileReceiver(journal, Constants.TRANSFER_DIGEST_ALGORITHM);
+        fileReceiver.setMetrics(metrics);
+        fileReceiver.setBufferPool(bufferPool);
+        fileSender.setMetrics(metrics);
+        fileSender.setBufferPool(bufferPool);
+        fileReceiver.setProgressListener(new FileReceiver.ProgressListener() {
+            @Override
+            public void onProgress(String refId, long bytesWritten) {
+                onFileProgress(refId, bytesWritten);
+            }
+        });
+
+        scheduler = new TransferScheduler(
+                Constants.TRANSFER_IO_CONCURRENCY,
+                Math.max(1, Runtime.getRuntime().availableProcessors() - 1),
+                Constants.TRANSFER_MAX_IN_FLIGHT_BYTES
+        );
+        fileSender.setExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                scheduler.execute(TransferScheduler.Pool.CPU, command);
+            }
+        });
+        scheduler.execute(TransferScheduler.Pool.IO, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    fileServer.start();
+                } catch (IOException exp) {
+                    // The page falls back to the Base64 bridge without the local server.
+                    Timber.d(exp);
+                }
+                prunePartialDownloads();
+            }
+        });
+        idleReaper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                closeIdleShares();
+            }
+        }, Constants.SHARE_IDLE_CHECK_INTERVAL_MS, Constants.SHARE_IDLE_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    /**
+     * The Activity and its page are gone, nothing will read the shares they were handed.
+     */
+    @Override
+    public boolean onUnbind(Intent intent) {
+        closeShares();
+        return false;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        if (BuildConfig.DEBUG) {
+            dumpMetrics();
+        }
+        idleReaper.shutdownNow();
+        scheduler.shutdown();
+        progressNotifier.shutdown();
+        fileServer.stop();
+        fileSender.closeAll();
+        fileReceiver.closeAll();
+        if (journal != null) {
+            journal.close();
+        }
+        if (contentIndex != null) {
+            contentIndex.close();
+        }
+        super.onDestroy();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (App.isMemoryLow(level)) {
+            enterLowMemory("trim-" + level);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        enterLowMemory("low-memory");
+    }
+
+    /**
+     * Makes running transfers hold less memory: smaller chunks, no read-ahead, fewer pending
+     * ranges and a smaller in-flight budget. Every chunk, range and loopback body books its
+     * bytes against that budget, smallest file first, so new work waits until what's running
+     * fits and large files wait behind small ones. Lasts until
+     * {@link Constants#LOW_MEMORY_HOLD_MS} passed without another warning.
+     */
+    private synchronized void enterLowMemory(String label) {
+        trimCount.incrementAndGet();
+        memoryLowUntil = System.currentTimeMillis() + Constants.LOW_MEMORY_HOLD_MS;
+        fileSender.setMaxChunkSize(Constants.LOW_MEMORY_MAX_CHUNK_SIZE);
+        fileSender.setReadAhead(0);
+        maxPendingRanges = Constants.LOW_MEMORY_MAX_PENDING_RANGES;
+        if (scheduler != null) {
+            scheduler.setMaxInFlightBytes(Constants.LOW_MEMORY_MAX_IN_FLIGHT_BYTES);
+        }
+        bufferPool.trim(0);
+        previewGenerator.trimMemory();
+        metrics.snapshotHeap(label);
+        Timber.d("Memory is low (%s), scaling transfers down", label);
+    }
+
+    private void leaveLowMemoryIfCalm() {
+        if (memoryLowUntil == 0 || System.currentTimeMillis() < memoryLowUntil) {
+            return;
+        }
+
+        synchronized (this) {
+            if (memoryLowUntil == 0 || System.currentTimeMillis() < memoryLowUntil) {
+                return;
+            }
+            memoryLowUntil = 0;
+            fileSender.setMaxChunkSize(FileSender.MAX_CHUNK_SIZE);
+            fileSender.setReadAhead(Constants.TRANSFER_RANGE_READ_AHEAD);
+            maxPendingRanges = Constants.TRANSFER_MAX_PENDING_RANGES;
+            scheduler.setMaxInFlightBytes(Constants.TRANSFER_MAX_IN_FLIGHT_BYTES);
+            bufferPool.trim(Constants.BUFFER_POOL_MAX_BYTES);
+        }
+        Timber.d("Memory recovered, scaling transfers back up");
+    }
+
+    public boolean isMemoryLow() {
+        return memoryLowUntil != 0;
+    }
+
+    /**
+     * The largest chunk the page should send or ask for right now.
+     */
+    public int getMaxChunkSize() {
+        leaveLowMemoryIfCalm();
+        return fileSender.getMaxChunkSize();
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void clearListener(Listener listener) {
+        if (this.listener == listener) {
+            this.listener = null;
+        }
+    }
+
+    @Override
+    public TransferScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public TransferMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Stage metrics plus the current queue depths and runtime GC counters, as JSON.
+     *
+     * @param extraGauges more gauges to include, or null
+     */
+    public String exportMetrics(Map<String, ?> extraGauges) {
+        Map<String, Object> gauges = new LinkedHashMap<>();
+        for (TransferScheduler.Pool pool : TransferScheduler.Pool.values()) {
+            String name = pool.name().toLowerCase(Locale.ENGLISH);
+            gauges.put(name + ".queued", scheduler.getQueuedCount(pool));
+            gauges.put(name + ".running", scheduler.getRunningCount(pool));
+        }
+        gauges.put("inFlightBytes", scheduler.getInFlightBytes());
+        gauges.put("maxInFlightBytes", scheduler.getMaxInFlightBytes());
+        gauges.put("acquiring", scheduler.getAcquiringCount());
+        gauges.put("activeTransfers", activeTransfers.size());
+        gauges.put("bufferPool.pooledBytes", bufferPool.getPooledBytes());
+        gauges.put("bufferPool.outstandingBytes", bufferPool.getOutstandingBytes());
+        gauges.put("bufferPool.maxOutstandingBytes", bufferPool.getMaxOutstandingBytes());
+        gauges.put("bufferPool.reuses", bufferPool.getReuseCount());
+        gauges.put("bufferPool.allocations", bufferPool.getAllocationCount());
+        gauges.put("memoryLow", isMemoryLow() ? 1 : 0);
+        gauges.put("trimCount", trimCount.get());
+        gauges.put("nativeHeapAllocated", Debug.getNativeHeapAllocatedSize());
+        for (Map.Entry<String, String> stat : Debug.getRuntimeStats().entrySet()) {
+            gauges.put(stat.getKey(), stat.getValue());
+        }
+        if (extraGauges != null) {
+            gauges.putAll(extraGauges);
+        }
+        return metrics.toJson(gauges);
+    }
+
+    /**
+     * Writes the metrics to a timestamped file in the app's external files folder, which can
+     * be pulled with adb. Returns the file, or null if it couldn't be written.
+     */
+    public File dumpMetrics() {
+        try {
+            File folder = getExternalFilesDir("metrics");
+            if (folder == null) {
+                folder = new File(getFilesDir(), "metrics");
+            }
+            File file = new File(folder, String.format(Locale.ENGLISH, "metrics-%d.json", System.currentTimeMillis()));
+            FileUtils.writeStringToFile(file, exportMetrics(null), StandardCharsets.UTF_8);
+            return file;
+        } catch (IOException exp) {
+            Timber.d(exp);
+            return null;
+        }
+    }
+
+    @Override
+    public String getDiagnostics() {
+        return exportMetrics(null);
+    }
+
+    @Override
+    public byte[] getPreview(String refId) throws IOException {
+        TransferRecord record = transferRegistry.get(refId);
+        File outputFile = record == null ? null : record.getOutputFile();
+        return outputFile == null ? null : previewGenerator.getPreview(outputFile, record.getMimeType());
+    }
+
+    private void snapshotHeapIfLarge(String label, long size) {
+        if (size >= Constants.METRICS_LARGE_TRANSFER_BYTES) {
+            metrics.snapshotHeap(label);
+        }
+    }
+
+    /**
+     * Resolves the metadata of every shared Uri in parallel and hands the listener one batch,
+     * in the order given. Nothing is read from the files until the page asks for a chunk.
+     */
+    public void submitShares(final List<Uri> files) {
+        final SharedFile[] resolved = new SharedFile[files.size()];
+        final AtomicInteger remaining = new AtomicInteger(files.size());
+        for (int i = 0; i < files.size(); i++) {
+            final int index = i;
+            scheduler.execute(TransferScheduler.Pool.IO, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        resolved[index] = openShare(files.get(index));
+                    } catch (Exception exp) {
+                        Timber.d(exp);
+                        reportError(exp.getMessage());
+                    }
+
+                    if (remaining.decrementAndGet() == 0) {
+                        onSharesResolved(resolved);
+                    }
+                }
+            });
+        }
+    }
+
+    private SharedFile openShare(Uri file) throws IOException {
+        ContentResolver contentResolver = getContentResolver();
+        String mimeType = contentResolver.getType(file);
+        if (mimeType == null) {
+            mimeType = "application/octet-stream";
+        }
+
+        String fileName = file.getLastPathSegment();
+        long size = -1;
+        Cursor cursor = contentResolver.query(file, new String[]{OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE}, null, null, null);
+        if (cursor != null) {
+            try {
+                if (cursor.moveToFirst()) {
+                    if (!cursor.isNull(0)) {
+                        fileName = cursor.getString(0);
+                    }
+                    if (!cursor.isNull(1)) {
+                        size = cursor.getLong(1);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        ParcelFileDescriptor fileDescriptor = contentResolver.openFileDescriptor(file, "r");
+        if (fileDescriptor == null) {
+            throw new IOException("Failed to open " + file);
+        }
+        FileChannel channel = new FileInputStream(fileDescriptor.getFileDescriptor()).getChannel();
+        if (size < 0) {
+            size = fileDescriptor.getStatSize();
+        }
+        OutgoingFile outgoingFile = fileSender.open(channel, fileDescriptor, size);
+        onTransferStarted(outgoingFile.getHandleId());
+        snapshotHeapIfLarge("send-start", size);
+
+        String suggestedEncoding = null;
+        if (!CompressionPolicy.isCompressedType(mimeType) && (size < 0 || size >= Constants.COMPRESSION_MIN_BYTES)) {
+            byte[] probe = new byte[Constants.COMPRESSION_PROBE_BYTES];
+            suggestedEncoding = CompressionPolicy.choose(mimeType, size, probe, outgoingFile.probe(probe));
+        }
+
+        Timber.d("File: %s, handle: %s, size: %d, encoding: %s", fileName, outgoingFile.getHandleId(), size, suggestedEncoding);
+        return new SharedFile(outgoingFile, fileName, mimeType, suggestedEncoding);
+    }
+
+    /**
+     * Sends the files as a single ZIP bundle, which the receiving app unpacks into a folder.
+     * Many small files then cost one handle, one manifest entry and one notification, and
+     * their names are only looked up as the bundle streams.
+     */
+    public void submitBundle(final List<Uri> files) {
+        final List<ContentEntry> entries = new ArrayList<>(files.size());
+        for (Uri file : files) {
+            entries.add(new ContentEntry(file, null, null, -1));
+        }
+        String name = String.format(Locale.ENGLISH, "Datash %tF %<tH.%<tM.%<tS", new Date());
+        openBundle(name, entries.iterator());
+    }
+
+    /**
+     * Sends a folder picked with {@code ACTION_OPEN_DOCUMENT_TREE}, subfolders included, as a
+     * bundle. Each folder is listed with a single query while the bundle streams.
+     */
+    public void submitTree(Uri treeUri) {
+        String documentId = DocumentsContract.getTreeDocumentId(treeUri);
+        String name = queryDisplayName(DocumentsContract.buildDocumentUriUsingTree(treeUri, documentId));
+        openBundle(name == null ? "Folder" : name, new DocumentTree(treeUri, documentId));
+    }
+
+    private void openBundle(final String name, final Iterator<? extends BundleSource.Entry> entries) {
+        scheduler.execute(TransferScheduler.Pool.IO, new Runnable() {
+            @Override
+            public void run() {
+                OutgoingFile outgoingFile = fileSender.openStream(new BundleSource(entries), -1);
+                onTransferStarted(outgoingFile.getHandleId());
+                Timber.d("Bundle: %s, handle: %s", name, outgoingFile.getHandleId());
+                onSharesResolved(new SharedFile[]{new SharedFile(outgoingFile, name + ".zip", Constants.BUNDLE_MIME_TYPE, null)});
+            }
+        });
+    }
+
+    private String queryDisplayName(Uri file) {
+        Cursor cursor = getContentResolver().query(file, new String[]{OpenableColumns.DISPLAY_NAME}, null, null, null);
+        if (cursor == null) {
+            return null;
+        }
+
+        try {
+            return cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * A shared document in a bundle. Whatever isn't known up front is looked up when the
+     * bundle gets to it.
+     */
+    private class ContentEntry implements BundleSource.Entry {
+        private final Uri uri;
+        private final long lastModified;
+        private String path;
+        private String mimeType;
+
+        ContentEntry(Uri uri, String path, String mimeType, long lastModified) {
+            this.uri = uri;
+            this.path = path;
+            this.mimeType = mimeType;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public String getPath() {
+            if (path == null) {
+                path = queryDisplayName(uri);
+            }
+            if (path == null) {
+                path = uri.getLastPathSegment();
+            }
+            return path;
+        }
+
+        @Override
+        public String getMimeType() {
+            if (mimeType == null) {
+                mimeType = getContentResolver().getType(uri);
+            }
+            return mimeType;
+        }
+
+        @Override
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            InputStream inputStream = getContentResolver().openInputStream(uri);
+            if (inputStream == null) {
+                throw new IOException("Failed to open " + uri);
+            }
+            return inputStream;
+        }
+    }
+
+    /**
+     * Walks a document tree depth first, listing one folder at a time as entries are needed.
+     */
+    private class DocumentTree implements Iterator<ContentEntry> {
+        private final Uri treeUri;
+        // Pairs of document id and path inside the bundle.
+        private final ArrayDeque<String[]> folders = new ArrayDeque<>();
+        private final ArrayDeque<ContentEntry> files = new ArrayDeque<>();
+
+        DocumentTree(Uri treeUri, String rootDocumentId) {
+            this.treeUri = treeUri;
+            folders.push(new String[]{rootDocumentId, ""});
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (files.isEmpty() && !folders.isEmpty()) {
+                list(folders.pop());
+            }
+            return !files.isEmpty();
+        }
+
+        @Override
+        public ContentEntry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return files.poll();
+        }
+
+        private void list(String[] folder) {
+            Cursor cursor = getContentResolver().query(
+                    DocumentsContract.buildChildDocumentsUriUsingTree(treeUri, folder[0]),
+                    new String[]{
+                            DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+                            DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+                            DocumentsContract.Document.COLUMN_MIME_TYPE,
+                            DocumentsContract.Document.COLUMN_LAST_MODIFIED
+                    },
+                    null, null, null
+            );
+            if (cursor == null) {
+                return;
+            }
+
+            try {
+                while (cursor.moveToNext()) {
+                    String documentId = cursor.getString(0);
+                    String path = folder[1] + cursor.getString(1);
+                    String mimeType = cursor.getString(2);
+                    if (DocumentsContract.Document.MIME_TYPE_DIR.equals(mimeType)) {
+                        folders.push(new String[]{documentId, path + "/"});
+                    } else {
+                        long lastModified = cursor.isNull(3) ? -1 : cursor.getLong(3);
+                        files.add(new ContentEntry(DocumentsContract.buildDocumentUriUsingTree(treeUri, documentId), path, mimeType, lastModified));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    public boolean encodeFile(String handleId, String encoding) {
+        return fileSender.setEncoding(handleId, encoding);
+    }
+
+    public String getContentEncoding(String handleId) {
+        OutgoingFile outgoingFile = fileSender.get(handleId);
+        return outgoingFile == null ? null : outgoingFile.getEncoding();
+    }
+
+    private void onSharesResolved(SharedFile[] resolved) {
+        List<SharedFile> files = new ArrayList<>(resolved.length);
+        for (SharedFile file : resolved) {
+            if (file != null) {
+                files.add(file);
+            }
+        }
+        if (files.isEmpty()) {
+            return;
+        }
+
+        Listener listener = this.listener;
+        if (listener != null) {
+            listener.onFilesShared(files);
+        } else {
+            for (SharedFile file : files) {
+                closeFile(file.getHandleId());
+            }
+        }
+    }
+
+    public String readChunk(String handleId, long offset, int length) {
+        try {
+            metrics.sampleHeap();
+            Transfer booking = scheduler.acquire(length, TransferScheduler.priorityOf(outgoingSizeOf(handleId)));
+            try {
+                return fileSender.readChunk(handleId, offset, length);
+            } finally {
+                scheduler.release(booking);
+            }
+        } catch (Exception exp) {
+            Timber.d(exp);
+            closeFile(handleId);
+            reportError(exp.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Number of ranges a file can be read in, or -1 if it can only be read in order.
+     */
+    public int getRangeCount(String handleId) {
+        OutgoingFile outgoingFile = fileSender.get(handleId);
+        return outgoingFile == null ? -1 : outgoingFile.getRangeCount();
+    }
+
+    /**
+     * Reads one range of a file, see {@link FileSender#readRange}. Ranges of a file can be
+     * requested in any order, the following ones are read ahead on the CPU pool. The range is
+     * booked on the calling thread, so waiting for a read ahead never holds a pool thread.
+     */
+    public String readRange(String handleId, int index) {
+        try {
+            metrics.sampleHeap();
+            long size = outgoingSizeOf(handleId);
+            long rangeBytes = size < 0 ? Constants.TRANSFER_RANGE_SIZE : Math.max(0, Math.min(Constants.TRANSFER_RANGE_SIZE, size - (long) index * Constants.TRANSFER_RANGE_SIZE));
+            Transfer booking = scheduler.acquire(rangeBytes, TransferScheduler.priorityOf(size));
+            try {
+                return fileSender.readRange(handleId, index);
+            } finally {
+                scheduler.release(booking);
+            }
+        } catch (Exception exp) {
+            Timber.d(exp);
+            closeFile(handleId);
+            reportError(exp.getMessage());
+            return null;
+        }
+    }
+
+    public String getDigest(String handleId) {
+        return fileSender.getDigest(handleId);
+    }
+
+    public String getDigestAlgorithm() {
+        return fileSender.getDigestAlgorithm();
+    }
+
+    public void closeFile(String handleId) {
+        Timber.d("closeFile: %s", handleId);
+        OutgoingFile outgoingFile = fileSender.get(handleId);
+        if (outgoingFile != null) {
+            snapshotHeapIfLarge("send-end", outgoingFile.getSize());
+        }
+        fileSender.close(handleId);
+        onTransferFinished(handleId);
+    }
+
+    /**
+     * Closes every shared file, e.g. when the page reloaded and lost its handles. Each one
+     * otherwise holds a descriptor and keeps the service in the foreground.
+     */
+    public void closeShares() {
+        for (String handleId : fileSender.getHandleIds()) {
+            closeFile(handleId);
+        }
+    }
+
+    private void closeIdleShares() {
+        for (String handleId : fileSender.getIdleHandleIds(System.currentTimeMillis() - Constants.SHARE_IDLE_TIMEOUT_MS)) {
+            Timber.d("Share %s wasn't read for too long", handleId);
+            closeFile(handleId);
+        }
+    }
+
+    public void cancelTransfer(String refId) {
+        Timber.d("cancelTransfer: %s", refId);
+        scheduler.cancel(refId);
+        fileReceiver.abort(refId);
+        fileSender.close(refId);
+        transferRegistry.moveTo(refId, TransferState.CANCELLED);
+        onTransferFinished(refId);
+        progressNotifier.cancel(refId);
+    }
+
+    public String getFileServerUrl() {
+        return fileServer.getBaseUrl();
+    }
+
+    public void onStartFileDownload(String refId, String fromId, String fileName, long size, String mimeType) {
+        Timber.d("onStartFileDownload: %s %s %s %d", refId, fromId, fileName, size);
+
+        transferRegistry.register(new TransferRecord(refId, fromId, fileName, size, mimeType));
+        onTransferStarted(refId);
+        snapshotHeapIfLarge("receive-start", size);
+
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(this, Constants.NOTIF_CHANNEL_DOWNLOAD_FILE);
+        builder.setContentTitle("File Download")
+                .setContentText(fileName)
+                .setSmallIcon(R.drawable.ic_launcher)
+                .setPriority(NotificationCompat.PRIORITY_LOW)
+                .setProgress(0, 0, true)
+                .setOngoing(true);
+
+        NotificationManagerCompat notificationManager = NotificationManagerCompat.from(this);
+        notificationManager.notify(refId.hashCode(), builder.build());
+    }
+
+    /**
+     * Declares that the download's bytes will arrive encoded. Has to come before the first
+     * chunk, and rules out resuming the download.
+     */
+    public synchronized boolean setDownloadEncoding(String refId, String encoding) {
+        TransferRecord record = transferRegistry.get(refId);
+        if (record == null || encoding == null || !TransferCodec.isSupported(encoding)) {
+            return false;
+        }
+
+        record.setContentEncoding(encoding);
+        if (fileReceiver.isOpen(refId)) {
+            try {
+                fileReceiver.setEncoding(refId, encoding);
+            } catch (IOException exp) {
+                Timber.d(exp);
+                record.setContentEncoding(null);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean onFileChunk(String refId, long seq, String base64Chunk) {
+        Transfer booking;
+        try {
+            booking = scheduler.acquire(Base64Codec.maxDecodedLength(base64Chunk.length()), TransferScheduler.priorityOf(incomingSizeOf(refId)));
+        } catch (IOException exp) {
+            failDownload(refId, exp);
+            return false;
+        }
+        try {
+            return writeChunk(refId, seq, base64Chunk);
+        } finally {
+            scheduler.release(booking);
+        }
+    }
+
+    /**
+     * Writes one chunk without booking it, for callers that already hold its bytes.
+     */
+    private boolean writeChunk(String refId, long seq, String base64Chunk) {
+        try {
+            getIncomingFile(refId);
+            fileReceiver.writeChunk(refId, seq, base64Chunk);
+            return true;
+        } catch (Exception exp) {
+            failDownload(refId, exp);
+            return false;
+        }
+    }
+
+    /**
+     * Takes one range of a download, see {@link IncomingFile#writeRange}. It is decoded and
+     * written on the CPU pool, so ranges of one file use several cores, and count against the
+     * scheduler's budget until written. Blocks while too many ranges of the file are still
+     * pending. Returns false once the download has failed.
+     */
+    public boolean onFileRange(final String refId, final int index, final String base64Range) {
+        try {
+            final IncomingFile incomingFile = getIncomingFile(refId);
+            incomingFile.reserveRange(maxPendingRanges);
+            long decodedLength = Base64Codec.maxDecodedLength(base64Range.length());
+            scheduler.submit("", TransferScheduler.Pool.CPU, decodedLength, TransferScheduler.priorityOf(incomingFile.getSize()), new TransferScheduler.Task() {
+                @Override
+                public void run(Transfer transfer) {
+                    try {
+                        incomingFile.writeRange(index, base64Range);
+                    } catch (Exception exp) {
+                        // Once one range failed the download is closed, the others fail too.
+                        if (fileReceiver.isOpen(refId)) {
+                            failDownload(refId, exp);
+                        } else {
+                            Timber.d(exp);
+                        }
+                    } finally {
+                        incomingFile.releaseRange();
+                    }
+                }
+            });
+            return true;
+        } catch (Exception exp) {
+            failDownload(refId, exp);
+            return false;
+        }
+    }
+
+    private long outgoingSizeOf(String handleId) {
+        OutgoingFile outgoingFile = fileSender.get(handleId);
+        return outgoingFile == null ? -1 : outgoingFile.getSize();
+    }
+
+    private long incomingSizeOf(String refId) {
+        TransferRecord record = transferRegistry.get(refId);
+        return record == null ? -1 : record.getSize();
+    }
+
+    private void failDownload(String refId, Exception exp) {
+        Timber.d(exp);
+        fileReceiver.abort(refId);
+        transferRegistry.moveTo(refId, TransferState.FAILED);
+        progressNotifier.cancel(refId);
+        onTransferFinished(refId);
+        reportError(exp.getMessage());
+    }
+
+    public void onFileProgress(String refId, long bytes) {
+        metrics.sampleHeap();
+        leaveLowMemoryIfCalm();
+        TransferRecord record = transferRegistry.get(refId);
+        if (record != null) {
+            record.reportProgress(bytes);
+            progressNotifier.markDirty(refId);
+        }
+    }
+
+    @Override
+    public void onIncomingFileFailed(String refId, IOException exp) {
+        // Parallel range uploads fail together, only the first one reports.
+        if (fileReceiver.isOpen(refId)) {
+            failDownload(refId, exp);
+        } else {
+            Timber.d(exp);
+        }
+    }
+
+    @Override
+    public OutgoingFile getOutgoingFile(String handleId) {
+        return fileSender.get(handleId);
+    }
+
+    @Override
+    public synchronized IncomingFile getIncomingFile(String refId) throws IOException {
+        if (fileReceiver.isOpen(refId)) {
+            return fileReceiver.get(refId);
+        }
+
+        TransferRecord record = transferRegistry.get(refId);
+        if (record == null || !transferRegistry.moveTo(refId, TransferState.RUNNING)) {
+            throw new IOException("Unknown file download: " + refId);
+        }
+
+        // The page didn't ask to resume, so any earlier partial data is useless.
+        fileReceiver.abort(refId);
+        IncomingFile incomingFile = fileReceiver.open(new TransferJournal.Entry(
+                refId,
+                record.getFromId(),
+                record.getSize(),
+                record.getFileName(),
+                record.getMimeType(),
+                getPartFile(refId, record.getFileName()),
+                System.currentTimeMillis()
+        ));
+        if (record.getContentEncoding() != null) {
+            fileReceiver.setEncoding(refId, record.getContentEncoding());
+        }
+        if (isBundle(record)) {
+            fileReceiver.setExtractor(refId, new BundleExtractor(getExtractionFolder(incomingFile.getFile()), Constants.BUNDLE_QUEUE_CHUNKS));
+        }
+        return incomingFile;
+    }
+
+    /**
+     * Opens the download for writing and returns the offset the page should continue from,
+     * which is 0 unless a matching partial file survived from an earlier attempt.
+     */
+    public synchronized long getResumeOffset(String refId) {
+        try {
+            if (fileReceiver.isOpen(refId)) {
+                return fileReceiver.get(refId).getBytesWritten();
+            }
+
+            TransferRecord record = transferRegistry.get(refId);
+            TransferJournal.Entry entry = journal == null ? null : journal.get(refId);
+            if (record != null && record.getContentEncoding() == null && !isBundle(record) && entry != null && entry.size == record.getSize() && entry.fromId.equals(record.getFromId())) {
+                IncomingFile incomingFile = fileReceiver.resume(entry);
+                if (incomingFile != null && transferRegistry.moveTo(refId, TransferState.RUNNING)) {
+                    Timber.d("Resuming %s at %d", refId, incomingFile.getBytesWritten());
+                    record.reportProgress(incomingFile.getBytesWritten());
+                    return incomingFile.getBytesWritten();
+                }
+            }
+
+            getIncomingFile(refId);
+            return 0;
+        } catch (Exception exp) {
+            Timber.d(exp);
+            fileReceiver.abort(refId);
+            transferRegistry.moveTo(refId, TransferState.FAILED);
+            progressNotifier.cancel(refId);
+            onTransferFinished(refId);
+            reportError(exp.getMessage());
+            return -1;
+        }
+    }
+
+    public void onFileEnd(String refId, String digest) {
+        Timber.d("onFileEnd: %s %s", refId, digest);
+
+        BundleExtractor extractor = null;
+        try {
+            // Empty files never get a chunk, so nothing has been opened yet.
+            if (!fileReceiver.isOpen(refId) && !writeChunk(refId, 0, "")) {
+                return;
+            }
+
+            extractor = fileReceiver.get(refId).getExtractor();
+            IncomingFile incomingFile = fileReceiver.finish(refId, digest);
+            TransferRecord record = transferRegistry.get(refId);
+            File outputFile;
+            if (extractor != null) {
+                outputFile = commitExtractionFolder(extractor.getFolder(), record.getFileName());
+                incomingFile.getFile().delete();
+            } else {
+                outputFile = commitPartFile(incomingFile.getFile(), record.getFileName());
+                indexContent(incomingFile.getContentDigest(), outputFile);
+            }
+            if (journal != null) {
+                journal.end(refId);
+            }
+
+            record.setBytesTransferred(incomingFile.getBytesWritten());
+            transferRegistry.moveTo(refId, TransferState.COMPLETED);
+            snapshotHeapIfLarge("receive-end", record.getSize());
+            notifyFileDownloaded(refId, outputFile, record.getMimeType());
+        } catch (Exception exp) {
+            Timber.d(exp);
+            fileReceiver.abort(refId);
+            if (extractor != null) {
+                // Unpacked completely but failed verification, or couldn't be moved.
+                FileUtils.deleteQuietly(extractor.getFolder());
+            }
+            transferRegistry.moveTo(refId, TransferState.FAILED);
+            progressNotifier.cancel(refId);
+            reportError(exp.getMessage());
+        } finally {
+            onTransferFinished(refId);
+        }
+    }
+
+    /**
+     * Completes a download right away if a file with the content {@code digest} was received
+     * before, so the page doesn't have to move the bytes at all. Has to be asked before the
+     * first byte arrives. Returns false if the content has to be sent.
+     */
+    public synchronized boolean hasContent(String refId, String digest) {
+        TransferRecord record = transferRegistry.get(refId);
+        if (contentIndex == null || record == null || isBundle(record) || fileReceiver.isOpen(refId)) {
+            return false;
+        }
+        File existingFile = contentIndex.find(digest, record.getSize());
+        if (existingFile == null) {
+            return false;
+        }
+
+        File outputFile;
+        try {
+            outputFile = reuseContent(existingFile, record.getFileName());
+        } catch (IOException exp) {
+            Timber.d(exp);
+            return false;
+        }
+        if (!transferRegistry.moveTo(refId, TransferState.COMPLETED)) {
+            if (!outputFile.equals(existingFile)) {
+                outputFile.delete();
+            }
+            return false;
+        }
+
+        Timber.d("Reused %s for %s", existingFile, refId);
+        record.setBytesTransferred(record.getSize());
+        notifyFileDownloaded(refId, outputFile, record.getMimeType());
+        onTransferFinished(refId);
+        return true;
+    }
+
+    private void indexContent(String digest, File file) {
+        if (contentIndex == null || digest == null) {
+            return;
+        }
+        try {
+            contentIndex.add(digest, file);
+        } catch (IOException exp) {
+            // Only means the same content will be received again next time.
+            Timber.d(exp);
+        }
+    }
+
+    /**
+     * Hands an earlier received file to a new download. When it's still in Downloads under
+     * the requested name it is simply referenced. Otherwise the name gets a hard link to it,
+     * or a copy where the storage doesn't support links.
+     */
+    private File reuseContent(File existingFile, String fileName) throws IOException {
+        File downloadsFolder = getDownloadsFolder();
+        if (existingFile.getName().equals(fileName) && downloadsFolder.equals(existingFile.getParentFile())) {
+            return existingFile;
+        }
+
+        File outputFile = fileNameAllocator.allocate(downloadsFolder, fileName);
+        // Linked under a temporary name and renamed over the claimed one, like a part file.
+        File linkFile = new File(outputFile.getPath() + ".link");
+        try {
+            Os.link(existingFile.getPath(), linkFile.getPath());
+            if (linkFile.renameTo(outputFile)) {
+                return outputFile;
+            }
+            linkFile.delete();
+        } catch (ErrnoException exp) {
+            Timber.d("Can't link %s: %s", existingFile, exp.getMessage());
+        }
+        FileUtils.copyFile(existingFile, outputFile);
+        return outputFile;
+    }
+
+    public void onCompleteFileDownload(final String refId, final String base64Data) {
+        Timber.d("onCompleteFileDownload: %s", refId);
+
+        long decodedLength = Base64Codec.maxDecodedLength(base64Data.length());
+        scheduler.submit(refId, TransferScheduler.Pool.CPU, decodedLength, new TransferScheduler.Task() {
+            @Override
+            public void run(Transfer transfer) {
+                if (writeChunk(refId, 0, base64Data) && !transfer.isCancelled()) {
+                    onFileEnd(refId, null);
+                }
+            }
+        });
+    }
+
+    private File getDownloadsFolder() throws IOException {
+        File downloadsFolder = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS).getAbsoluteFile();
+        if (!downloadsFolder.exists()) {
+            FileUtils.forceMkdir(downloadsFolder);
+        }
+        return downloadsFolder;
+    }
+
+    private File getPartFile(String refId, String fileName) throws IOException {
+        return new File(getDownloadsFolder(), String.format("%s.%08x.part", fileName, refId.hashCode()));
+    }
+
+    /**
+     * Moves a finished part file to its final name. The name is claimed first, then replaced
+     * by a rename, so readers never see a half written file under the final name.
+     */
+    private File commitPartFile(File partFile, String fileName) throws IOException {
+        File outputFile = fileNameAllocator.allocate(getDownloadsFolder(), fileName);
+        if (!partFile.renameTo(outputFile)) {
+            FileUtils.copyFile(partFile, outputFile);
+            FileUtils.forceDelete(partFile);
+        }
+        return outputFile;
+    }
+
+    /**
+     * Where a bundle is unpacked while it arrives, next to its (empty) part file.
+     */
+    private static File getExtractionFolder(File partFile) {
+        return new File(partFile.getPath() + ".d");
+    }
+
+    private static boolean isBundle(TransferRecord record) {
+        return Constants.BUNDLE_MIME_TYPE.equals(record.getMimeType());
+    }
+
+    /**
+     * Moves an unpacked bundle to a free folder name in Downloads, named after the bundle
+     * without its {@code .zip}.
+     */
+    private File commitExtractionFolder(File extractionFolder, String fileName) throws IOException {
+        String name = fileName.toLowerCase(Locale.ENGLISH).endsWith(".zip") ? fileName.substring(0, fileName.length() - 4) : fileName;
+        File outputFolder = fileNameAllocator.allocateFolder(getDownloadsFolder(), name);
+        // Renaming onto the empty folder just claimed replaces it.
+        if (!extractionFolder.renameTo(outputFolder)) {
+            FileUtils.copyDirectory(extractionFolder, outputFolder);
+            FileUtils.deleteDirectory(extractionFolder);
+        }
+        return outputFolder;
+    }
+
+    private void prunePartialDownloads() {
+        if (journal == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        for (TransferJournal.Entry entry : journal.getAll()) {
+            if (now - entry.createdAt > Constants.JOURNAL_MAX_AGE_MS) {
+                Timber.d("Dropping stale partial download %s", entry.partFile);
+                entry.partFile.delete();
+                FileUtils.deleteQuietly(getExtractionFolder(entry.partFile));
+                journal.end(entry.refId);
+            }
+        }
+    }
+
+    private void notifyFileDownloaded(String refId, File outputFile, String mimeType) {
+        TransferRecord record = transferRegistry.get(refId);
+        if (record != null) {
+            record.setOutputFile(outputFile);
+        }
+
+        Intent openFileIntent;
+        if (outputFile.isDirectory()) {
+            // Unpacked bundle, there's no viewer for a folder.
+            openFileIntent = new Intent(DownloadManager.ACTION_VIEW_DOWNLOADS);
+            openFileIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        } else {
+            openFileIntent = new Intent(Intent.ACTION_VIEW);
+            openFileIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+            openFileIntent.setDataAndType(
+                    FileProvider.getUriForFile(this, getApplicationContext().getPackageName() + ".provider", outputFile),
+                    mimeType
+            );
+            openFileIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        }
+
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(this, Constants.NOTIF_CHANNEL_DOWNLOAD_FILE);
+        builder.setContentTitle("File Download")
+                .setContentText(String.format("Download complete: %s", outputFile.getName()))
+                .setSmallIcon(R.drawable.ic_launcher)
+                .setPriority(NotificationCompat.PRIORITY_LOW)
+                .setProgress(0, 0, false)
+                .setContentIntent(PendingIntent.getActivity(this, 0, openFileIntent, 0))
+                .setAutoCancel(true)
+                .setOnlyAlertOnce(true)
+                .setOngoing(false);
+
+        progressNotifier.notifyFinished(refId, builder.build());
+        if (!outputFile.isDirectory() && PreviewGenerator.canPreview(mimeType)) {
+            notifyPreview(refId, outputFile, mimeType, builder);
+        }
+
+        Listener listener = this.listener;
+        if (listener != null) {
+            listener.onFileReceived(outputFile, mimeType);
+        }
+    }
+
+    /**
+     * Adds a preview to the finished notification once it's made, on the I/O pool.
+     */
+    private void notifyPreview(final String refId, final File outputFile, final String mimeType, final NotificationCompat.Builder builder) {
+        scheduler.execute(TransferScheduler.Pool.IO, new Runnable() {
+            @Override
+            public void run() {
+                Bitmap preview;
+                try {
+                    preview = previewGenerator.getPreviewBitmap(outputFile, mimeType);
+                } catch (IOException exp) {
+                    Timber.d(exp);
+                    return;
+                }
+                if (preview == null) {
+                    return;
+                }
+
+                builder.setLargeIcon(preview)
+                        .setStyle(new NotificationCompat.BigPictureStyle()
+                                .bigPicture(preview)
+                                .bigLargeIcon(null));
+                progressNotifier.notifyFinished(refId, builder.build());
+            }
+        });
+    }
+
+    private void reportError(String message) {
+        Listener listener = this.listener;
+        if (listener != null) {
+            listener.onTransferError(message);
+        }
+    }
+
+    private void onTransferStarted(String id) {
+        if (activeTransfers.add(id)) {
+            updateForegroundState();
+        }
+    }
+
+    private void onTransferFinished(String id) {
+        if (activeTransfers.remove(id)) {
+            updateForegroundState();
+        }
+    }
+
+    private synchronized void updateForegroundState() {
+        int count = activeTransfers.size();
+        if (count > 0) {
+            if (!isForeground) {
+                // Started, not just bound, so the service outlives the Activity until we're done.
+                ContextCompat.startForegroundService(this, new Intent(this, TransferService.class));
+                isForeground = true;
+            }
+            startForeground(Constants.NOTIF_ID_TRANSFER_SERVICE, buildForegroundNotification(count));
+            progressNotifier.start();
+        } else if (isForeground) {
+            progressNotifier.stop();
+            stopForeground(true);
+            stopSelf();
+            isForeground = false;
+        }
+    }
+
+    private Notification buildForegroundNotification(int count) {
+        Intent intent = new Intent(this, MainActivity.class);
+        intent.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(this, Constants.NOTIF_CHANNEL_DOWNLOAD_FILE);
+        builder.setContentTitle("Datash")
+                .setContentText(String.format(Locale.ENGLISH, "Transferring %d file%s", count, count == 1 ? "" : "s"))
+                .setSmallIcon(R.drawable.ic_launcher)
+                .setPriority(NotificationCompat.PRIORITY_LOW)
+                .setContentIntent(PendingIntent.getActivity(this, 0, intent, 0))
+                .setOnlyAlertOnce(true)
+                .setOngoing(true);
+        return builder.build();
+    }
+}
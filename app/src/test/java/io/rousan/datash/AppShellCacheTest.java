@@ -0,0 +1,141 @@
+package io.rousan.datash;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class AppShellCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private HttpServer server;
+    private String baseUrl;
+    private final ConcurrentHashMap<String, String> bodies = new ConcurrentHashMap<>();
+    private final AtomicInteger fullResponses = new AtomicInteger();
+    private final AtomicInteger notModified = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                String body = bodies.get(path);
+                if (body == null) {
+                    exchange.sendResponseHeaders(404, -1);
+                    exchange.close();
+                    return;
+                }
+
+                String etag = "\"" + Integer.toHexString(body.hashCode()) + "\"";
+                exchange.getResponseHeaders().set("ETag", etag);
+                exchange.getResponseHeaders().set("Content-Type", path.endsWith(".js") ? "application/javascript" : "text/html; charset=utf-8");
+                if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    notModified.incrementAndGet();
+                    exchange.sendResponseHeaders(304, -1);
+                } else {
+                    fullResponses.incrementAndGet();
+                    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+                    exchange.sendResponseHeaders(200, bytes.length);
+                    exchange.getResponseBody().write(bytes);
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private static String read(AppShellCache.Response response) throws IOException {
+        InputStream inputStream = response.getBody();
+        try {
+            return IOUtils.toString(inputStream, StandardCharsets.UTF_8);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    @Test
+    public void servesFromDiskAndRevalidatesWithEtag() throws IOException {
+        bodies.put("/", "<html>v1</html>");
+        File dir = folder.newFolder();
+        AppShellCache cache = new AppShellCache(dir, 1024 * 1024, 0, DIRECT);
+
+        AppShellCache.Response first = cache.get(baseUrl + "/");
+        assertEquals("<html>v1</html>", read(first));
+        assertEquals("text/html", first.getMimeType());
+        assertEquals("utf-8", first.getEncoding());
+        assertEquals(1, fullResponses.get());
+
+        assertEquals("<html>v1</html>", read(cache.get(baseUrl + "/")));
+        assertEquals(1, notModified.get());
+
+        // A new deploy is picked up by the revalidation, the stale copy is served meanwhile.
+        bodies.put("/", "<html>v2</html>");
+        assertEquals("<html>v1</html>", read(cache.get(baseUrl + "/")));
+        assertEquals("<html>v2</html>", read(cache.get(baseUrl + "/")));
+
+        // And survives a restart, even with the server gone.
+        server.stop(0);
+        AppShellCache reopened = new AppShellCache(dir, 1024 * 1024, Long.MAX_VALUE, DIRECT);
+        assertEquals("<html>v2</html>", read(reopened.get(baseUrl + "/")));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedOverTheCap() throws IOException {
+        for (String name : new String[]{"a", "b", "c"}) {
+            bodies.put("/" + name + ".js", name + new String(new char[60]).replace('\0', name.charAt(0)));
+        }
+        AppShellCache cache = new AppShellCache(folder.newFolder(), 150, Long.MAX_VALUE, DIRECT);
+
+        cache.get(baseUrl + "/a.js");
+        cache.get(baseUrl + "/b.js");
+        cache.get(baseUrl + "/a.js");
+        cache.get(baseUrl + "/c.js");
+
+        assertTrue(cache.contains(baseUrl + "/a.js"));
+        assertFalse(cache.contains(baseUrl + "/b.js"));
+        assertTrue(cache.contains(baseUrl + "/c.js"));
+        assertTrue(cache.getSize() <= 150);
+    }
+
+    @Test
+    public void skipsResponsesThatArentPartOfTheShell() throws IOException {
+        AppShellCache cache = new AppShellCache(folder.newFolder(), 1024, 0, DIRECT);
+        assertNull(cache.get(baseUrl + "/missing.js"));
+        assertFalse(AppShellCache.isCacheablePath("/api/session"));
+        assertTrue(AppShellCache.isCacheablePath("/static/js/main.1a2b.js"));
+        assertFalse(AppShellCache.isCacheableType("application/json"));
+    }
+}
@@ -0,0 +1,58 @@
+package io.rousan.datash;
+
+import org.junit.Test;
+
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Base64CodecTest {
+    @Test
+    public void decode_matchesJdkForAllPaddings() {
+        Random random = new Random(42);
+        for (int size = 0; size < 64; size++) {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+
+            String encoded = Base64.getEncoder().encodeToString(data);
+            byte[] buffer = new byte[Base64Codec.maxDecodedLength(encoded.length())];
+            int length = Base64Codec.decode(encoded, buffer);
+
+            assertEquals(size, length);
+            for (int i = 0; i < size; i++) {
+                assertEquals(data[i], buffer[i]);
+            }
+        }
+    }
+
+    @Test
+    public void encode_matchesJdkForAllPaddings() {
+        Random random = new Random(42);
+        for (int size = 0; size < 64; size++) {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+
+            char[] buffer = new char[Base64Codec.encodedLength(size)];
+            int length = Base64Codec.encode(data, 0, size, buffer);
+
+            assertEquals(Base64.getEncoder().encodeToString(data), new String(buffer, 0, length));
+        }
+    }
+
+    @Test
+    public void decode_skipsLineBreaks() {
+        byte[] data = new byte[200];
+        new Random(7).nextBytes(data);
+
+        String encoded = Base64.getMimeEncoder().encodeToString(data);
+        byte[] buffer = new byte[Base64Codec.maxDecodedLength(encoded.length())];
+
+        assertEquals(data.length, Base64Codec.decode(encoded, buffer));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decode_rejectsInvalidCharacters() {
+        Base64Codec.decode("ab*d", new byte[8]);
+    }
+}
@@ -0,0 +1,70 @@
+package io.rousan.datash;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BridgeDispatcherTest {
+    private BridgeDispatcher dispatcher;
+    private final List<String> handled = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() {
+        dispatcher = new BridgeDispatcher(4);
+        dispatcher.register("echo", new BridgeDispatcher.Route() {
+            @Override
+            public void handle(String[] args) {
+                handled.add(String.join(",", args));
+            }
+        });
+        dispatcher.start();
+    }
+
+    @After
+    public void tearDown() {
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void parsesEncodedFields() throws Exception {
+        List<String[]> messages = BridgeDispatcher.parse("end\tr%091\t\nprogress\ta%20b\t42\n");
+        assertEquals(2, messages.size());
+        assertArrayEquals(new String[]{"end", "r\t1", ""}, messages.get(0));
+        assertArrayEquals(new String[]{"progress", "a b", "42"}, messages.get(1));
+    }
+
+    @Test
+    public void handlesFramesAndSingleMessagesInOrder() throws InterruptedException {
+        dispatcher.post("echo", "1");
+        dispatcher.postFrame("echo\t2\necho\t3");
+        dispatcher.post("unknown");
+        for (int i = 4; i <= 20; i++) {
+            dispatcher.post("echo", String.valueOf(i));
+        }
+        dispatcher.awaitIdle();
+
+        List<String> expected = new ArrayList<>();
+        for (int i = 1; i <= 20; i++) {
+            expected.add(String.valueOf(i));
+        }
+        assertEquals(expected, handled);
+        assertEquals(0, dispatcher.getQueueDepth());
+        assertEquals(21, dispatcher.getMessageCount());
+        assertEquals(1, dispatcher.getFailedCount());
+        assertTrue(dispatcher.getMaxQueueDepth() >= 1);
+        assertTrue(dispatcher.getMaxLatencyNanos() >= dispatcher.getAverageLatencyNanos());
+    }
+
+    @Test
+    public void awaitIdleReturnsImmediatelyWhenNothingIsQueued() throws InterruptedException {
+        dispatcher.awaitIdle();
+        assertEquals(Arrays.<String>asList(), handled);
+    }
+}
@@ -0,0 +1,114 @@
+package io.rousan.datash;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void reusesReleasedBuffers() {
+        BufferPool pool = new BufferPool(1024 * 1024);
+        byte[] buffer = pool.acquireBytes(10000);
+        assertEquals(10240, buffer.length);
+        assertEquals(10240, pool.getOutstandingBytes());
+        pool.releaseBytes(buffer);
+
+        assertSame(buffer, pool.acquireBytes(9000));
+        assertEquals(1, pool.getReuseCount());
+        assertEquals(1, pool.getAllocationCount());
+    }
+
+    @Test
+    public void roundsToQuarterSteps() {
+        BufferPool pool = new BufferPool(0);
+        assertEquals(4096, pool.acquireBytes(1).length);
+        assertEquals(1024 * 1024, pool.acquireBytes(1024 * 1024).length);
+        assertEquals(1310720, pool.acquireBytes(1024 * 1024 + 5).length);
+        assertEquals(1572864, pool.acquireChars(Base64Codec.encodedLength(1024 * 1024)).length);
+    }
+
+    @Test
+    public void keepsAtMostMaxPooledBytes() {
+        BufferPool pool = new BufferPool(8192);
+        byte[] first = pool.acquireBytes(4096);
+        byte[] second = pool.acquireBytes(4096);
+        byte[] third = pool.acquireBytes(4096);
+        pool.releaseBytes(first);
+        pool.releaseBytes(second);
+        pool.releaseBytes(third);
+        assertEquals(8192, pool.getPooledBytes());
+        assertEquals(0, pool.getOutstandingBytes());
+        assertEquals(3 * 4096, pool.getMaxOutstandingBytes());
+
+        pool.trim(0);
+        assertEquals(0, pool.getPooledBytes());
+        pool.releaseBytes(pool.acquireBytes(4096));
+        assertEquals(0, pool.getPooledBytes());
+    }
+
+    @Test
+    public void ignoresForeignArrays() {
+        BufferPool pool = new BufferPool(1024 * 1024);
+        pool.releaseBytes(new byte[5000]);
+        pool.releaseBytes(null);
+        assertEquals(0, pool.getPooledBytes());
+        assertEquals(4096, pool.acquireBytes(10).length);
+    }
+
+    @Test
+    public void memoryUse_doesNotGrowWithFileSize() throws IOException {
+        long small = transferMaxOutstandingBytes(8 * 1024 * 1024);
+        long large = transferMaxOutstandingBytes(64 * 1024 * 1024);
+        assertEquals(small, large);
+        assertTrue(large <= 4 * 1024 * 1024);
+    }
+
+    /**
+     * Sends a file of {@code size} bytes through the bridge and returns the most buffer
+     * memory that was in use at once.
+     */
+    private long transferMaxOutstandingBytes(int size) throws IOException {
+        File source = folder.newFile();
+        RandomAccessFile output = new RandomAccessFile(source, "rw");
+        try {
+            byte[] block = new byte[1024 * 1024];
+            new Random(42).nextBytes(block);
+            for (int written = 0; written < size; written += block.length) {
+                output.write(block);
+            }
+        } finally {
+            output.close();
+        }
+
+        BufferPool pool = new BufferPool(Constants.BUFFER_POOL_MAX_BYTES);
+        FileSender fileSender = new FileSender(TransferDigest.SHA_256);
+        fileSender.setBufferPool(pool);
+        FileReceiver fileReceiver = new FileReceiver(null, TransferDigest.SHA_256);
+        fileReceiver.setBufferPool(pool);
+
+        RandomAccessFile input = new RandomAccessFile(source, "r");
+        OutgoingFile outgoingFile = fileSender.open(input.getChannel(), input, size);
+        String handleId = outgoingFile.getHandleId();
+        fileReceiver.open(new TransferJournal.Entry("ref1", "peer", size, "big.bin", "application/octet-stream", new File(folder.getRoot(), size + ".part"), 0));
+
+        long seq = 0;
+        for (long offset = 0; offset < size; offset += 512 * 1024) {
+            fileReceiver.writeChunk("ref1", seq++, fileSender.readChunk(handleId, offset, 512 * 1024));
+        }
+        String digest = fileSender.getDigest(handleId);
+        fileSender.close(handleId);
+        assertEquals(size, fileReceiver.finish("ref1", digest).getBytesWritten());
+        assertEquals(0, pool.getOutstandingBytes());
+        return pool.getMaxOutstandingBytes();
+    }
+}
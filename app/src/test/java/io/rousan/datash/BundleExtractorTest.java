@@ -0,0 +1,158 @@
+package io.rousan.datash;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+public class BundleExtractorTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<BundleSourceTest.MemoryEntry> entries() {
+        return Arrays.asList(
+                new BundleSourceTest.MemoryEntry("report.csv", "text/csv", BundleSourceTest.text(500 * 1024)),
+                new BundleSourceTest.MemoryEntry("photos/IMG.jpg", "image/jpeg", BundleSourceTest.random(300 * 1024)),
+                new BundleSourceTest.MemoryEntry("photos/2020/IMG.jpg", "image/jpeg", BundleSourceTest.random(1))
+        );
+    }
+
+    @Test
+    public void unpacksWhileWritten() throws IOException {
+        File target = new File(folder.getRoot(), "bundle");
+        BundleExtractor extractor = new BundleExtractor(target, 2);
+        IOUtils.copy(new BundleSource(entries().iterator()), extractor, 4096);
+        extractor.close();
+
+        assertEquals(3, extractor.getFileCount());
+        for (BundleSourceTest.MemoryEntry entry : entries()) {
+            assertArrayEquals(entry.data, FileUtils.readFileToByteArray(new File(target, entry.path)));
+        }
+        extractor.abort();
+        assertTrue(target.isDirectory());
+    }
+
+    @Test
+    public void receivesBundleThroughTheBridge() throws IOException {
+        FileSender fileSender = new FileSender(TransferDigest.SHA_256);
+        OutgoingFile outgoingFile = fileSender.openStream(new BundleSource(entries().iterator()), -1);
+        assertEquals(-1, outgoingFile.probe(new byte[16]));
+        assertFalse(fileSender.setEncoding(outgoingFile.getHandleId(), TransferCodec.DEFLATE));
+
+        FileReceiver fileReceiver = new FileReceiver(null, TransferDigest.SHA_256);
+        File partFile = new File(folder.getRoot(), "bundle.zip.part");
+        fileReceiver.open(new TransferJournal.Entry("ref", "from", -1, "bundle.zip", Constants.BUNDLE_MIME_TYPE, partFile, 0));
+        File target = new File(folder.getRoot(), "bundle.zip.part.d");
+        fileReceiver.setExtractor("ref", new BundleExtractor(target, 2));
+
+        long offset = 0;
+        for (long seq = 0; ; seq++) {
+            String chunk = fileSender.readChunk(outgoingFile.getHandleId(), offset, 64 * 1024);
+            if (chunk.isEmpty()) {
+                break;
+            }
+            fileReceiver.writeChunk("ref", seq, chunk);
+            offset = fileReceiver.get("ref").getBytesWritten();
+        }
+
+        String digest = fileSender.getDigest(outgoingFile.getHandleId());
+        assertNotNull(digest);
+        fileReceiver.finish("ref", digest);
+        assertEquals(0, partFile.length());
+        for (BundleSourceTest.MemoryEntry entry : entries()) {
+            assertArrayEquals(entry.data, FileUtils.readFileToByteArray(new File(target, entry.path)));
+        }
+    }
+
+    @Test
+    public void rejectsEntriesOutsideTheFolder() throws IOException {
+        ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(zipped);
+        zip.putNextEntry(new ZipEntry("../escaped.txt"));
+        zip.write(new byte[]{1, 2, 3});
+        zip.closeEntry();
+        zip.close();
+
+        File target = new File(folder.getRoot(), "bundle");
+        BundleExtractor extractor = new BundleExtractor(target, 2);
+        try {
+            extractor.write(zipped.toByteArray());
+            extractor.close();
+            fail();
+        } catch (IOException exp) {
+            assertTrue(exp.getMessage().contains("outside"));
+        }
+        assertFalse(new File(folder.getRoot(), "escaped.txt").exists());
+
+        extractor.abort();
+        assertFalse(target.exists());
+    }
+
+    @Test(timeout = 5000)
+    public void malformedEntryNameFailsWriter() throws IOException {
+        // Written as Latin-1 without the UTF-8 flag, so the name doesn't decode.
+        ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(zipped, StandardCharsets.ISO_8859_1);
+        zip.putNextEntry(new ZipEntry("caf\u00e9.txt"));
+        zip.write(BundleSourceTest.random(256 * 1024));
+        zip.closeEntry();
+        zip.close();
+        byte[] bytes = zipped.toByteArray();
+
+        File target = new File(folder.getRoot(), "bundle");
+        BundleExtractor extractor = new BundleExtractor(target, 2);
+        try {
+            for (int offset = 0; offset < bytes.length; offset += 4096) {
+                extractor.write(bytes, offset, Math.min(4096, bytes.length - offset));
+            }
+            extractor.close();
+            fail();
+        } catch (IOException exp) {
+            assertTrue(exp.getMessage().contains("Broken bundle"));
+        }
+        extractor.abort();
+        assertFalse(target.exists());
+    }
+
+    @Test
+    public void truncatedBundleFailsAndAbortDeletesFolder() throws IOException {
+        byte[] zipped = IOUtils.toByteArray(new BundleSource(entries().iterator()));
+
+        File target = new File(folder.getRoot(), "bundle");
+        BundleExtractor extractor = new BundleExtractor(target, 2);
+        try {
+            extractor.write(zipped, 0, zipped.length / 2);
+            extractor.close();
+            fail();
+        } catch (IOException expected) {
+        }
+        extractor.abort();
+        assertFalse(target.exists());
+    }
+
+    @Test
+    public void resolveKeepsNamesInside() throws IOException {
+        File root = folder.getRoot().getCanonicalFile();
+        assertEquals(new File(root, "a/b.txt"), BundleExtractor.resolve(root, "a/./b.txt"));
+        assertEquals(new File(root, "b.txt"), BundleExtractor.resolve(root, "a/../b.txt"));
+        for (String name : new String[]{"../b.txt", "a/../../b.txt", "", "."}) {
+            try {
+                BundleExtractor.resolve(root, name);
+                fail(name);
+            } catch (IOException expected) {
+            }
+        }
+    }
+}
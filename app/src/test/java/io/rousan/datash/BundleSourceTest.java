@@ -0,0 +1,127 @@
+package io.rousan.datash;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.*;
+
+public class BundleSourceTest {
+    static class MemoryEntry implements BundleSource.Entry {
+        final String path;
+        final String mimeType;
+        final byte[] data;
+        boolean isOpened = false;
+
+        MemoryEntry(String path, String mimeType, byte[] data) {
+            this.path = path;
+            this.mimeType = mimeType;
+            this.data = data;
+        }
+
+        @Override
+        public String getPath() {
+            return path;
+        }
+
+        @Override
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        @Override
+        public long getLastModified() {
+            return 1500000000000L;
+        }
+
+        @Override
+        public InputStream open() {
+            isOpened = true;
+            return new ByteArrayInputStream(data);
+        }
+    }
+
+    static byte[] text(int size) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; builder.length() < size; i++) {
+            builder.append("line ").append(i).append('\n');
+        }
+        return builder.substring(0, size).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    static byte[] random(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void streamsEntriesAsZip() throws IOException {
+        List<MemoryEntry> entries = Arrays.asList(
+                new MemoryEntry("notes.txt", "text/plain", text(300 * 1024)),
+                new MemoryEntry("/photos/IMG.jpg", "image/jpeg", random(200 * 1024)),
+                new MemoryEntry("photos\\IMG.jpg", "image/jpeg", random(10)),
+                new MemoryEntry("empty", null, new byte[0])
+        );
+
+        BundleSource source = new BundleSource(entries.iterator());
+        // Small reads, so entries are split across many of them.
+        ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int read;
+        while ((read = source.read(buffer)) >= 0) {
+            zipped.write(buffer, 0, read);
+        }
+        source.close();
+        assertEquals(4, source.getEntryCount());
+        assertEquals(300 * 1024 + 200 * 1024 + 10, source.getContentBytes());
+
+        ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(zipped.toByteArray()));
+        List<String> names = new ArrayList<>();
+        List<ZipEntry> zipEntries = new ArrayList<>();
+        ZipEntry zipEntry;
+        while ((zipEntry = zip.getNextEntry()) != null) {
+            byte[] data = IOUtils.toByteArray(zip);
+            assertArrayEquals(entries.get(names.size()).data, data);
+            names.add(zipEntry.getName());
+            zipEntries.add(zipEntry);
+        }
+
+        assertEquals(Arrays.asList("notes.txt", "photos/IMG.jpg", "photos/IMG1.jpg", "empty"), names);
+        assertTrue(zipEntries.get(0).getCompressedSize() < 100 * 1024);
+        // JPEGs are stored inside the deflate stream, which costs a few bytes per block.
+        assertTrue(zipEntries.get(1).getCompressedSize() >= 200 * 1024);
+        assertEquals(1500000000000L / 2000, zipEntries.get(0).getTime() / 2000);
+    }
+
+    @Test
+    public void opensEntriesOnlyWhenReached() throws IOException {
+        MemoryEntry first = new MemoryEntry("a.txt", "text/plain", text(1024));
+        MemoryEntry second = new MemoryEntry("b.txt", "text/plain", text(1024));
+        BundleSource source = new BundleSource(Arrays.asList(first, second).iterator());
+
+        assertTrue(source.read() >= 0);
+        assertTrue(first.isOpened);
+        assertFalse(second.isOpened);
+        source.close();
+    }
+
+    @Test
+    public void emptyBundleIsValidZip() throws IOException {
+        BundleSource source = new BundleSource(new ArrayList<MemoryEntry>().iterator());
+        byte[] zipped = IOUtils.toByteArray(source);
+        assertEquals(22, zipped.length);
+        assertNull(new ZipInputStream(new ByteArrayInputStream(zipped)).getNextEntry());
+    }
+}
@@ -0,0 +1,45 @@
+package io.rousan.datash;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CompressionPolicyTest {
+    private static byte[] csv(int size) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; builder.length() < size; i++) {
+            builder.append(i).append(",device-").append(i % 17).append(",ok,").append(i * 31 % 1000).append('\n');
+        }
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void compressesLowEntropyText() {
+        byte[] probe = csv(64 * 1024);
+        assertTrue(CompressionPolicy.entropy(probe, 0, probe.length) < 5);
+        assertEquals(TransferCodec.DEFLATE, CompressionPolicy.choose("text/csv", 1024 * 1024, probe, probe.length));
+        assertEquals(TransferCodec.DEFLATE, CompressionPolicy.choose("application/octet-stream", -1, probe, probe.length));
+    }
+
+    @Test
+    public void skipsMediaSmallFilesAndRandomData() {
+        byte[] probe = csv(64 * 1024);
+        assertNull(CompressionPolicy.choose("image/jpeg", 1024 * 1024, probe, probe.length));
+        assertNull(CompressionPolicy.choose("text/plain", 100, probe, 100));
+
+        byte[] random = new byte[64 * 1024];
+        new Random(1).nextBytes(random);
+        assertTrue(CompressionPolicy.entropy(random, 0, random.length) > 7.9);
+        assertNull(CompressionPolicy.choose("application/octet-stream", 1024 * 1024, random, random.length));
+    }
+
+    @Test
+    public void treatsSvgAsCompressible() {
+        assertFalse(CompressionPolicy.isCompressedType("image/svg+xml"));
+        assertTrue(CompressionPolicy.isCompressedType("video/mp4"));
+        assertTrue(CompressionPolicy.isCompressedType("application/vnd.openxmlformats-officedocument.wordprocessingml.document"));
+    }
+}
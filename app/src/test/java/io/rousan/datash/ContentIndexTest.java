@@ -0,0 +1,79 @@
+package io.rousan.datash;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class ContentIndexTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void findsContentAfterReload() throws IOException {
+        File indexFile = new File(folder.getRoot(), "content.index");
+        File file = new File(folder.getRoot(), "a b\tc.pdf");
+        FileUtils.writeStringToFile(file, "hello", StandardCharsets.UTF_8);
+
+        ContentIndex index = new ContentIndex(indexFile);
+        index.add("SHA-256:ABC", file);
+        assertEquals(file, index.find("sha-256:abc", 5));
+        index.close();
+
+        ContentIndex reloaded = new ContentIndex(indexFile);
+        assertEquals(file, reloaded.find("sha-256:abc", 5));
+        assertNull(reloaded.find("sha-256:abc", 6));
+        assertNull(reloaded.find("sha-256:def", 5));
+        assertNull(reloaded.find(null, 5));
+    }
+
+    @Test
+    public void dropsChangedAndDeletedFiles() throws IOException {
+        File indexFile = new File(folder.getRoot(), "content.index");
+        File changed = new File(folder.getRoot(), "changed.txt");
+        File deleted = new File(folder.getRoot(), "deleted.txt");
+        FileUtils.writeStringToFile(changed, "hello", StandardCharsets.UTF_8);
+        FileUtils.writeStringToFile(deleted, "hello", StandardCharsets.UTF_8);
+
+        ContentIndex index = new ContentIndex(indexFile);
+        index.add("crc32:1", changed);
+        index.add("crc32:2", deleted);
+        FileUtils.writeStringToFile(changed, "hello!", StandardCharsets.UTF_8);
+        assertTrue(deleted.delete());
+
+        assertNull(index.find("crc32:1", 5));
+        assertEquals(1, index.size());
+        index.close();
+        assertEquals(0, new ContentIndex(indexFile).size());
+    }
+
+    @Test
+    public void latestFileWins() throws IOException {
+        File first = new File(folder.getRoot(), "first.txt");
+        File second = new File(folder.getRoot(), "second.txt");
+        FileUtils.writeStringToFile(first, "same", StandardCharsets.UTF_8);
+        FileUtils.writeStringToFile(second, "same", StandardCharsets.UTF_8);
+
+        ContentIndex index = new ContentIndex(new File(folder.getRoot(), "content.index"));
+        index.add("crc32:1", first);
+        index.add("crc32:1", second);
+        assertEquals(second, index.find("crc32:1", 4));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void finishedDownload_hasContentDigest() throws IOException {
+        FileReceiver fileReceiver = new FileReceiver(null, TransferDigest.SHA_256);
+        fileReceiver.open(new TransferJournal.Entry("ref1", "peer", 3, "abc.txt", "text/plain", new File(folder.getRoot(), "abc.part"), 0));
+        fileReceiver.writeChunk("ref1", 0, "YWJj");
+
+        IncomingFile incomingFile = fileReceiver.finish("ref1", "crc32:352441c2");
+        assertEquals("sha-256:ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", incomingFile.getContentDigest());
+    }
+}
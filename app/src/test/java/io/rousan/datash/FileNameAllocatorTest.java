@@ -0,0 +1,101 @@
+package io.rousan.datash;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FileNameAllocatorTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void appendsCounterBeforeTheLastExtensionOnly() {
+        assertEquals("IMG.jpg", FileNameAllocator.nameWithSuffix("IMG.jpg", 0));
+        assertEquals("IMG2.jpg", FileNameAllocator.nameWithSuffix("IMG.jpg", 2));
+        assertEquals("a.jpg.backup1.jpg", FileNameAllocator.nameWithSuffix("a.jpg.backup.jpg", 1));
+        assertEquals("archive.tar1.gz", FileNameAllocator.nameWithSuffix("archive.tar.gz", 1));
+        assertEquals("README3", FileNameAllocator.nameWithSuffix("README", 3));
+    }
+
+    @Test
+    public void allocatesIncreasingNames() throws IOException {
+        FileNameAllocator allocator = new FileNameAllocator(16);
+        File root = folder.getRoot();
+
+        assertEquals("IMG.jpg", allocator.allocate(root, "IMG.jpg").getName());
+        assertEquals("IMG1.jpg", allocator.allocate(root, "IMG.jpg").getName());
+        assertEquals("IMG2.jpg", allocator.allocate(root, "IMG.jpg").getName());
+        assertTrue(new File(root, "IMG2.jpg").exists());
+    }
+
+    @Test
+    public void continuesAfterHighestExistingSuffix() throws IOException {
+        File root = folder.getRoot();
+        new File(root, "IMG.jpg").createNewFile();
+        new File(root, "IMG7.jpg").createNewFile();
+        new File(root, "IMG07.jpg").createNewFile();
+        new File(root, "IMGx.jpg").createNewFile();
+
+        assertEquals("IMG8.jpg", new FileNameAllocator(16).allocate(root, "IMG.jpg").getName());
+    }
+
+    @Test
+    public void skipsNamesCreatedBehindItsBack() throws IOException {
+        FileNameAllocator allocator = new FileNameAllocator(16);
+        File root = folder.getRoot();
+
+        allocator.allocate(root, "doc.pdf");
+        new File(root, "doc1.pdf").createNewFile();
+
+        assertEquals("doc2.pdf", allocator.allocate(root, "doc.pdf").getName());
+    }
+
+    @Test
+    public void allocatesFoldersNextToFiles() throws IOException {
+        FileNameAllocator allocator = new FileNameAllocator(16);
+        File root = folder.getRoot();
+        new File(root, "Photos").createNewFile();
+
+        File first = allocator.allocateFolder(root, "Photos");
+        File second = allocator.allocateFolder(root, "Photos");
+        assertEquals("Photos1", first.getName());
+        assertEquals("Photos2", second.getName());
+        assertTrue(first.isDirectory() && second.isDirectory());
+    }
+
+    @Test
+    public void concurrentAllocationsNeverCollide() throws Exception {
+        final FileNameAllocator allocator = new FileNameAllocator(16);
+        final File root = folder.getRoot();
+        final Set<String> names = Collections.synchronizedSet(new HashSet<String>());
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        for (int i = 0; i < 100; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        names.add(allocator.allocate(root, "IMG.jpg").getName());
+                    } catch (IOException exp) {
+                        throw new RuntimeException(exp);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(100, names.size());
+    }
+}
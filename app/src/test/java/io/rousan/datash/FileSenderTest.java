@@ -0,0 +1,38 @@
+package io.rousan.datash;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class FileSenderTest {
+    @Test
+    public void unreadFile_becomesIdle() throws IOException, InterruptedException {
+        FileSender fileSender = new FileSender(TransferDigest.SHA_256);
+        OutgoingFile unread = fileSender.openStream(new ByteArrayInputStream(new byte[10]), 10);
+        OutgoingFile read = fileSender.openStream(new ByteArrayInputStream(new byte[10]), 10);
+        Thread.sleep(5);
+
+        long idleSince = System.currentTimeMillis();
+        fileSender.readChunk(read.getHandleId(), 0, 4);
+        assertEquals(Collections.singletonList(unread.getHandleId()), fileSender.getIdleHandleIds(idleSince));
+        fileSender.closeAll();
+        assertTrue(fileSender.getHandleIds().isEmpty());
+    }
+
+    @Test
+    public void runningRead_isNeverIdle() {
+        FileSender fileSender = new FileSender(TransferDigest.SHA_256);
+        OutgoingFile outgoingFile = fileSender.openStream(new ByteArrayInputStream(new byte[10]), 10);
+
+        // A long streaming read only counts from when it ended.
+        outgoingFile.beginRead();
+        assertTrue(fileSender.getIdleHandleIds(Long.MAX_VALUE).isEmpty());
+        outgoingFile.endRead();
+        assertEquals(Collections.singletonList(outgoingFile.getHandleId()), fileSender.getIdleHandleIds(Long.MAX_VALUE));
+        fileSender.closeAll();
+    }
+}
@@ -0,0 +1,35 @@
+package io.rousan.datash;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import static org.junit.Assert.*;
+
+public class JsPayloadTest {
+    @Test
+    public void textShare_isBase64WithoutLineBreaks() {
+        String text = "héllo\n`${world}`";
+        String script = JsPayload.textShare(text);
+        String encoded = Base64.getEncoder().encodeToString(text.getBytes(StandardCharsets.UTF_8));
+        assertEquals("(function() { window.onReceiveTextFromAndroidShare(\"" + encoded + "\"); })();", script);
+    }
+
+    @Test
+    public void shareManifest_escapesNamesAndWritesNull() {
+        String script = new JsPayload.ShareManifest()
+                .add("h1", "a \"b\".txt", "text/plain", 12, TransferCodec.DEFLATE)
+                .add("h2", "line" + (char) 0x2028 + "break\\", "image/png", 34, null)
+                .toScript();
+        assertEquals("window.onReceiveShareManifestFromAndroid({\"files\":["
+                + "{\"handleId\":\"h1\",\"name\":\"a \\\"b\\\".txt\",\"mimeType\":\"text/plain\",\"size\":12,\"suggestedEncoding\":\"deflate\"},"
+                + "{\"handleId\":\"h2\",\"name\":\"line\\u2028break\\\\\",\"mimeType\":\"image/png\",\"size\":34,\"suggestedEncoding\":null}"
+                + "]});", script);
+    }
+
+    @Test
+    public void shareManifest_empty() {
+        assertEquals("window.onReceiveShareManifestFromAndroid({\"files\":[]});", new JsPayload.ShareManifest().toScript());
+    }
+}
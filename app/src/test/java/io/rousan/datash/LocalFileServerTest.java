@@ -0,0 +1,262 @@
+package io.rousan.datash;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+public class LocalFileServerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final FileSender fileSender = new FileSender(TransferDigest.SHA_256);
+    private final FileReceiver fileReceiver = new FileReceiver(null, TransferDigest.SHA_256);
+    private final TransferMetrics metrics = new TransferMetrics();
+    private final List<String> failedRefIds = new CopyOnWriteArrayList<>();
+    private final TransferScheduler scheduler = new TransferScheduler(2, 2, 4 * 1024 * 1024);
+    private LocalFileServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new LocalFileServer(new LocalFileServer.Delegate() {
+            @Override
+            public OutgoingFile getOutgoingFile(String handleId) {
+                return fileSender.get(handleId);
+            }
+
+            @Override
+            public IncomingFile getIncomingFile(String refId) throws IOException {
+                if (fileReceiver.isOpen(refId)) {
+                    return fileReceiver.get(refId);
+                }
+                return fileReceiver.open(new TransferJournal.Entry(
+                        refId, "from", -1, refId, null, new File(folder.getRoot(), refId), System.currentTimeMillis()));
+            }
+
+            @Override
+            public void onIncomingFileFailed(String refId, IOException exp) {
+                failedRefIds.add(refId);
+                fileReceiver.abort(refId);
+            }
+
+            @Override
+            public TransferScheduler getScheduler() {
+                return scheduler;
+            }
+
+            @Override
+            public String getDiagnostics() {
+                return metrics.toJson(null);
+            }
+
+            @Override
+            public byte[] getPreview(String refId) {
+                return "ref1".equals(refId) ? new byte[]{(byte) 0xff, (byte) 0xd8, (byte) 0xff} : null;
+            }
+        }, "https://datash.co");
+        fileReceiver.setMetrics(metrics);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+        fileSender.closeAll();
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void get_streamsOutgoingFile() throws IOException {
+        byte[] data = randomBytes(3 * 1024 * 1024 + 17);
+        File file = folder.newFile("shared.bin");
+        FileUtils.writeByteArrayToFile(file, data);
+
+        FileInputStream inputStream = new FileInputStream(file);
+        OutgoingFile outgoingFile = fileSender.open(inputStream.getChannel(), inputStream, file.length());
+
+        HttpURLConnection connection = open("files/" + outgoingFile.getHandleId());
+        assertEquals(200, connection.getResponseCode());
+        assertArrayEquals(data, IOUtils.toByteArray(connection.getInputStream()));
+    }
+
+    @Test
+    public void post_appendsToIncomingFile() throws IOException {
+        byte[] first = randomBytes(100 * 1024);
+        byte[] second = randomBytes(7);
+
+        assertEquals(204, post("files/ref1", first));
+        assertEquals(204, post("files/ref1", second));
+
+        IncomingFile incomingFile = fileReceiver.finish("ref1", null);
+        byte[] written = FileUtils.readFileToByteArray(incomingFile.getFile());
+        assertEquals(first.length + second.length, written.length);
+        assertEquals(first[0], written[0]);
+        assertEquals(second[6], written[written.length - 1]);
+    }
+
+    @Test
+    public void ranges_goBothWaysInAnyOrder() throws IOException {
+        byte[] data = randomBytes(2 * Constants.TRANSFER_RANGE_SIZE + 5);
+        File file = folder.newFile("shared.bin");
+        FileUtils.writeByteArrayToFile(file, data);
+        FileInputStream inputStream = new FileInputStream(file);
+        OutgoingFile outgoingFile = fileSender.open(inputStream.getChannel(), inputStream, file.length());
+        fileReceiver.open(new TransferJournal.Entry(
+                "ref1", "from", data.length, "ref1", null, new File(folder.getRoot(), "ref1"), System.currentTimeMillis()));
+
+        for (int range = 2; range >= 0; range--) {
+            HttpURLConnection connection = open("files/" + outgoingFile.getHandleId() + "?range=" + range);
+            assertEquals(200, connection.getResponseCode());
+            byte[] body = IOUtils.toByteArray(connection.getInputStream());
+            assertEquals(range == 2 ? 5 : Constants.TRANSFER_RANGE_SIZE, body.length);
+            assertEquals(204, send("PUT", "files/ref1?range=" + range, body));
+        }
+        assertEquals(416, open("files/" + outgoingFile.getHandleId() + "?range=3").getResponseCode());
+        assertEquals(400, open("files/" + outgoingFile.getHandleId() + "?range=x").getResponseCode());
+
+        IncomingFile incomingFile = fileReceiver.finish("ref1", outgoingFile.getDigest());
+        assertArrayEquals(data, FileUtils.readFileToByteArray(incomingFile.getFile()));
+    }
+
+    @Test
+    public void shortBody_failsIncomingFile() throws IOException {
+        String response = rawSend("POST", "files/ref1", "100", "0123456789");
+        assertTrue(response, response.startsWith("HTTP/1.1 500 "));
+        assertTrue(failedRefIds.contains("ref1"));
+        assertFalse(fileReceiver.isOpen("ref1"));
+        assertFalse(new File(folder.getRoot(), "ref1").exists());
+    }
+
+    @Test
+    public void invalidLength_isRejectedBeforeOpening() throws IOException {
+        String range = String.valueOf(Constants.TRANSFER_RANGE_SIZE + 1);
+        for (String[] request : new String[][]{{"files/ref1", "-1"}, {"files/ref1", "x"}, {"files/ref1?range=0", range}}) {
+            String response = rawSend(request[0].contains("range") ? "PUT" : "POST", request[0], request[1], "");
+            assertTrue(response, response.startsWith("HTTP/1.1 400 "));
+        }
+        assertFalse(fileReceiver.isOpen("ref1"));
+        assertFalse(new File(folder.getRoot(), "ref1").exists());
+        assertEquals(0, scheduler.getInFlightBytes());
+    }
+
+    @Test
+    public void diagnostics_reportsStageMetrics() throws IOException {
+        assertEquals(204, post("files/ref1", randomBytes(1000)));
+
+        HttpURLConnection connection = open("diagnostics");
+        assertEquals(200, connection.getResponseCode());
+        assertTrue(connection.getContentType().startsWith("application/json"));
+        String json = IOUtils.toString(connection.getInputStream(), StandardCharsets.UTF_8);
+        assertTrue(json, json.contains("\"disk_write\":{\"count\":1,"));
+    }
+
+    @Test
+    public void preview_servesJpegOrNotFound() throws IOException {
+        HttpURLConnection connection = open("previews/ref1");
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("image/jpeg", connection.getContentType());
+        assertEquals(3, IOUtils.toByteArray(connection.getInputStream()).length);
+
+        assertEquals(404, open("previews/ref2").getResponseCode());
+    }
+
+    @Test
+    public void rejectsWrongToken() throws IOException {
+        String baseUrl = server.getBaseUrl();
+        String otherUrl = baseUrl.substring(0, baseUrl.length() - 33) + "/0123456789abcdef0123456789abcdef/files/h1";
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(otherUrl).openConnection();
+        assertEquals(403, connection.getResponseCode());
+    }
+
+    @Test
+    public void preflight_allowsOnlyConfiguredOrigin() throws IOException {
+        String allowed = preflight("files/ref1", "https://datash.co");
+        assertTrue(allowed, allowed.startsWith("HTTP/1.1 204"));
+        assertTrue(allowed, allowed.contains("Access-Control-Allow-Origin: https://datash.co\r\n"));
+
+        String other = preflight("files/ref1", "https://example.com");
+        assertTrue(other, other.startsWith("HTTP/1.1 204"));
+        assertFalse(other, other.contains("Access-Control-Allow-Origin"));
+    }
+
+    /**
+     * Sent over a raw socket, so the Content-Length can disagree with the body.
+     */
+    private String rawSend(String method, String path, String contentLength, String body) throws IOException {
+        URL url = new URL(server.getBaseUrl() + path);
+        Socket socket = new Socket(url.getHost(), url.getPort());
+        try {
+            OutputStream outputStream = socket.getOutputStream();
+            outputStream.write((method + " " + url.getFile() + " HTTP/1.1\r\n"
+                    + "Content-Length: " + contentLength + "\r\n\r\n" + body).getBytes(StandardCharsets.US_ASCII));
+            outputStream.flush();
+            socket.shutdownOutput();
+            return IOUtils.toString(socket.getInputStream(), StandardCharsets.US_ASCII);
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Sent over a raw socket: HttpURLConnection silently drops the Origin header unless a JVM
+     * wide property is set before its first use.
+     */
+    private String preflight(String path, String origin) throws IOException {
+        URL url = new URL(server.getBaseUrl() + path);
+        Socket socket = new Socket(url.getHost(), url.getPort());
+        try {
+            OutputStream outputStream = socket.getOutputStream();
+            outputStream.write(("OPTIONS " + url.getPath() + " HTTP/1.1\r\n"
+                    + "Host: " + url.getHost() + ":" + url.getPort() + "\r\n"
+                    + "Origin: " + origin + "\r\n"
+                    + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            outputStream.flush();
+            return IOUtils.toString(socket.getInputStream(), StandardCharsets.US_ASCII);
+        } finally {
+            socket.close();
+        }
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        return (HttpURLConnection) new URL(server.getBaseUrl() + path).openConnection();
+    }
+
+    private int post(String path, byte[] body) throws IOException {
+        return send("POST", path, body);
+    }
+
+    private int send(String method, String path, byte[] body) throws IOException {
+        HttpURLConnection connection = open(path);
+        connection.setRequestMethod(method);
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.length);
+        OutputStream outputStream = connection.getOutputStream();
+        outputStream.write(body);
+        outputStream.close();
+        return connection.getResponseCode();
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,82 @@
+package io.rousan.datash;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class PreviewCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void keepsPreviewsOnDisk() throws IOException {
+        File dir = new File(folder.getRoot(), "previews");
+        File source = newSource("photo.jpg", "full size");
+
+        PreviewCache cache = new PreviewCache(dir, 1024, 1024);
+        assertNull(cache.get(source));
+        cache.put(source, new byte[]{1, 2, 3});
+        assertArrayEquals(new byte[]{1, 2, 3}, cache.get(source));
+        assertEquals(3, cache.getMemoryBytes());
+
+        PreviewCache reloaded = new PreviewCache(dir, 1024, 1024);
+        assertArrayEquals(new byte[]{1, 2, 3}, reloaded.get(source));
+    }
+
+    @Test
+    public void changedSource_missesCache() throws IOException {
+        File source = newSource("photo.jpg", "full size");
+        PreviewCache cache = new PreviewCache(new File(folder.getRoot(), "previews"), 1024, 1024);
+        cache.put(source, new byte[]{1, 2, 3});
+
+        FileUtils.writeStringToFile(source, "another photo", StandardCharsets.UTF_8);
+        assertNull(cache.get(source));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws IOException {
+        File dir = new File(folder.getRoot(), "previews");
+        File first = newSource("first.jpg", "1");
+        File second = newSource("second.jpg", "2");
+        File third = newSource("third.jpg", "3");
+
+        PreviewCache cache = new PreviewCache(dir, 200, 200);
+        cache.put(first, new byte[100]);
+        cache.put(second, new byte[100]);
+        assertNotNull(cache.get(first));
+        cache.put(third, new byte[100]);
+        assertEquals(200, cache.getMemoryBytes());
+
+        // The disk keeps its own order, by last use of the files.
+        File[] files = dir.listFiles();
+        for (int i = 0; i < files.length; i++) {
+            files[i].setLastModified(1000L * (i + 1));
+        }
+        cache.put(newSource("fourth.jpg", "4"), new byte[100]);
+        assertEquals(200, cache.getDiskBytes());
+    }
+
+    @Test
+    public void clearMemory_keepsDiskCopies() throws IOException {
+        File source = newSource("clip.mp4", "video");
+        PreviewCache cache = new PreviewCache(new File(folder.getRoot(), "previews"), 1024, 1024);
+        cache.put(source, new byte[]{7});
+
+        cache.clearMemory();
+        assertEquals(0, cache.getMemoryBytes());
+        assertArrayEquals(new byte[]{7}, cache.get(source));
+    }
+
+    private File newSource(String name, String content) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        FileUtils.writeStringToFile(file, content, StandardCharsets.UTF_8);
+        return file;
+    }
+}
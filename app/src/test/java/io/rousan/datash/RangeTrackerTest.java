@@ -0,0 +1,196 @@
+package io.rousan.datash;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+public class RangeTrackerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void splitsIntoRanges() throws IOException {
+        RangeTracker tracker = new RangeTracker(null, 10, 4, 0, null, null, TransferMetrics.DISABLED, null);
+        assertEquals(3, tracker.getRangeCount());
+        assertEquals(8, tracker.getRangeOffset(2));
+        assertEquals(2, tracker.getRangeLength(2));
+        try {
+            tracker.getRangeLength(3);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void hashesContiguousPrefixOnly() throws IOException {
+        byte[] data = randomBytes(10);
+        File file = folder.newFile();
+        FileUtils.writeByteArrayToFile(file, data);
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        CRC32 checksum = new CRC32();
+        final List<Long> hashed = new ArrayList<>();
+        RangeTracker tracker = new RangeTracker(randomAccessFile.getChannel(), 10, 4, 0, checksum, null, TransferMetrics.DISABLED, new RangeTracker.Listener() {
+            @Override
+            public void onHashed(long offset) {
+                hashed.add(offset);
+            }
+        });
+
+        assertTrue(tracker.complete(2));
+        assertEquals(0, tracker.getContiguousOffset());
+        assertTrue(tracker.complete(1));
+        assertFalse(tracker.complete(1));
+        assertEquals(0, tracker.awaitHashed());
+        assertTrue(tracker.complete(0));
+        assertTrue(tracker.isComplete());
+        assertEquals(10, tracker.awaitHashed());
+        assertEquals(Collections.singletonList(10L), hashed);
+        randomAccessFile.close();
+
+        CRC32 expected = new CRC32();
+        expected.update(data);
+        assertEquals(expected.getValue(), checksum.getValue());
+    }
+
+    @Test
+    public void rejectsUnalignedStart() {
+        try {
+            new RangeTracker(null, 10, 4, 3, null, null, TransferMetrics.DISABLED, null);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void parallelRanges_roundTripWithDigest() throws Exception {
+        byte[] data = randomBytes(5 * Constants.TRANSFER_RANGE_SIZE + 123);
+        File source = folder.newFile("source.bin");
+        FileUtils.writeByteArrayToFile(source, data);
+
+        FileSender fileSender = new FileSender(TransferDigest.SHA_256);
+        FileInputStream inputStream = new FileInputStream(source);
+        final OutgoingFile outgoingFile = fileSender.open(inputStream.getChannel(), inputStream, data.length);
+        FileReceiver fileReceiver = new FileReceiver(null, TransferDigest.SHA_256);
+        final IncomingFile incomingFile = fileReceiver.open(new TransferJournal.Entry(
+                "ref1", "from", data.length, "out.bin", null, new File(folder.getRoot(), "out.bin.part"), 0));
+
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < outgoingFile.getRangeCount(); i++) {
+            order.add(i);
+        }
+        Collections.shuffle(order, new Random(7));
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<>();
+        for (final int index : order) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    incomingFile.writeRange(index, outgoingFile.readRange(index));
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        String digest = outgoingFile.getDigest();
+        assertEquals(TransferDigest.SHA_256 + ":" + hex(MessageDigest.getInstance("SHA-256").digest(data)), digest);
+        IncomingFile finished = fileReceiver.finish("ref1", digest);
+        assertArrayEquals(data, FileUtils.readFileToByteArray(finished.getFile()));
+        fileSender.closeAll();
+    }
+
+    @Test
+    public void missingRange_failsFinish() throws IOException {
+        FileReceiver fileReceiver = new FileReceiver(null, null);
+        IncomingFile incomingFile = fileReceiver.open(new TransferJournal.Entry(
+                "ref1", "from", Constants.TRANSFER_RANGE_SIZE + 1, "out.bin", null, new File(folder.getRoot(), "out.bin.part"), 0));
+        incomingFile.writeRange(1, "AA==");
+        try {
+            fileReceiver.finish("ref1", null);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void rangedFile_cantBeEncoded() throws IOException {
+        byte[] data = randomBytes(2 * Constants.TRANSFER_RANGE_SIZE);
+        File source = folder.newFile("source.bin");
+        FileUtils.writeByteArrayToFile(source, data);
+
+        FileSender fileSender = new FileSender(TransferDigest.SHA_256);
+        FileInputStream inputStream = new FileInputStream(source);
+        OutgoingFile outgoingFile = fileSender.open(inputStream.getChannel(), inputStream, data.length);
+        outgoingFile.readRange(1);
+
+        assertFalse(fileSender.setEncoding(outgoingFile.getHandleId(), TransferCodec.DEFLATE));
+        assertNull(outgoingFile.getEncoding());
+        fileSender.closeAll();
+    }
+
+    @Test
+    public void journaledRanges_resumeAtContiguousOffset() throws IOException {
+        int rangeSize = Constants.TRANSFER_RANGE_SIZE;
+        int rangesPerCommit = (int) (Constants.JOURNAL_COMMIT_INTERVAL_BYTES / rangeSize);
+        byte[] data = randomBytes((rangesPerCommit + 2) * rangeSize);
+        TransferJournal journal = new TransferJournal(new File(folder.getRoot(), "journal"));
+        TransferJournal.Entry entry = new TransferJournal.Entry(
+                "ref1", "from", data.length, "out.bin", null, new File(folder.getRoot(), "out.bin.part"), 0);
+
+        FileReceiver fileReceiver = new FileReceiver(journal, null);
+        IncomingFile incomingFile = fileReceiver.open(entry);
+        // The last range arrives early and must not count towards the committed offset.
+        incomingFile.writeRangeFrom(rangesPerCommit + 1, new ByteArrayInputStream(data, (rangesPerCommit + 1) * rangeSize, rangeSize), rangeSize);
+        for (int i = 0; i < rangesPerCommit; i++) {
+            incomingFile.writeRangeFrom(i, new ByteArrayInputStream(data, i * rangeSize, rangeSize), rangeSize);
+        }
+        fileReceiver.closeAll();
+
+        IncomingFile resumed = fileReceiver.resume(journal.get("ref1"));
+        assertNotNull(resumed);
+        assertEquals(Constants.JOURNAL_COMMIT_INTERVAL_BYTES, resumed.getBytesWritten());
+        for (int i = rangesPerCommit; i < rangesPerCommit + 2; i++) {
+            resumed.writeRangeFrom(i, new ByteArrayInputStream(data, i * rangeSize, rangeSize), rangeSize);
+        }
+        assertArrayEquals(data, FileUtils.readFileToByteArray(fileReceiver.finish("ref1", null).getFile()));
+        journal.close();
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder();
+        for (byte b : bytes) {
+            builder.append(String.format("%02x", b));
+        }
+        return builder.toString();
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+}
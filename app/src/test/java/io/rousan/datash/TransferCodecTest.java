@@ -0,0 +1,95 @@
+package io.rousan.datash;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+import static org.junit.Assert.*;
+
+public class TransferCodecTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] logLines(int size) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; builder.length() < size; i++) {
+            builder.append("2020-07-01 12:00:").append(i % 60).append(" INFO transfer ").append(i).append(" done\n");
+        }
+        return Arrays.copyOf(builder.toString().getBytes(StandardCharsets.UTF_8), size);
+    }
+
+    @Test
+    public void roundTripsAFileThroughTheBridge() throws IOException {
+        byte[] data = logLines(3 * 1024 * 1024 + 5);
+        File source = folder.newFile("app.log");
+        FileUtils.writeByteArrayToFile(source, data);
+
+        FileSender fileSender = new FileSender(TransferDigest.SHA_256);
+        FileInputStream inputStream = new FileInputStream(source);
+        OutgoingFile outgoingFile = fileSender.open(inputStream.getChannel(), inputStream, source.length());
+        assertTrue(fileSender.setEncoding(outgoingFile.getHandleId(), TransferCodec.DEFLATE));
+
+        FileReceiver fileReceiver = new FileReceiver(null, TransferDigest.SHA_256);
+        fileReceiver.open(new TransferJournal.Entry("ref", "from", data.length, "app.log", "text/plain", new File(folder.getRoot(), "app.log.part"), 0));
+        fileReceiver.setEncoding("ref", TransferCodec.DEFLATE);
+
+        long offset = 0;
+        long seq = 0;
+        while (true) {
+            String chunk = fileSender.readChunk(outgoingFile.getHandleId(), offset, 512 * 1024);
+            if (chunk.isEmpty()) {
+                break;
+            }
+            offset += Base64.getDecoder().decode(chunk).length;
+            fileReceiver.writeChunk("ref", seq++, chunk);
+        }
+
+        // Log lines shrink several times over, which is the point.
+        assertTrue(offset < data.length / 4);
+        IncomingFile incomingFile = fileReceiver.finish("ref", fileSender.getDigest(outgoingFile.getHandleId()));
+        assertArrayEquals(data, FileUtils.readFileToByteArray(incomingFile.getFile()));
+        fileSender.closeAll();
+    }
+
+    @Test
+    public void rejectsOutOfOrderReadsOfEncodedFiles() throws IOException {
+        File source = folder.newFile("a.txt");
+        FileUtils.writeByteArrayToFile(source, logLines(100 * 1024));
+
+        FileSender fileSender = new FileSender(null);
+        FileInputStream inputStream = new FileInputStream(source);
+        OutgoingFile outgoingFile = fileSender.open(inputStream.getChannel(), inputStream, source.length());
+        fileSender.setEncoding(outgoingFile.getHandleId(), TransferCodec.DEFLATE);
+        try {
+            fileSender.readChunk(outgoingFile.getHandleId(), 10, 100);
+            fail();
+        } catch (IOException expected) {
+        }
+        fileSender.closeAll();
+    }
+
+    @Test(expected = IOException.class)
+    public void detectsTruncatedStreams() throws IOException {
+        byte[] data = logLines(64 * 1024);
+        TransferCodec codec = TransferCodec.create(TransferCodec.DEFLATE);
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        IOUtils.copy(codec.encode(new ByteArrayInputStream(data)), encoded);
+        byte[] bytes = encoded.toByteArray();
+
+        OutputStream decoder = codec.decode(new ByteArrayOutputStream());
+        decoder.write(bytes, 0, bytes.length / 2);
+        decoder.close();
+    }
+}
@@ -0,0 +1,76 @@
+package io.rousan.datash;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import static org.junit.Assert.*;
+
+public class TransferDigestTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void formatsKnownVectors() {
+        byte[] data = "abc".getBytes(StandardCharsets.US_ASCII);
+
+        TransferDigest sha256 = TransferDigest.create("SHA-256");
+        sha256.update(data, 0, 1);
+        sha256.update(data, 1, 2);
+        assertEquals("sha-256:ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", sha256.finish());
+
+        TransferDigest crc32 = TransferDigest.create(TransferDigest.CRC32);
+        crc32.update(data, 0, data.length);
+        assertEquals("crc32:352441c2", crc32.finish());
+    }
+
+    @Test
+    public void parsesAlgorithm() {
+        assertEquals("sha-256", TransferDigest.algorithmOf("SHA-256:abcd"));
+        assertNull(TransferDigest.algorithmOf("abcd"));
+        assertFalse(TransferDigest.isSupported("md4"));
+    }
+
+    @Test
+    public void negotiate_fallsBackToSupportedAlgorithm() {
+        assertEquals(TransferDigest.SHA_256, TransferDigest.negotiate("md4"));
+        assertEquals(TransferDigest.CRC32, TransferDigest.negotiate(TransferDigest.CRC32));
+        assertNull(TransferDigest.negotiate(null));
+        // Before API 26 there's no CRC32C class, crc32 takes its place.
+        assertTrue(TransferDigest.negotiate(TransferDigest.CRC32C).startsWith("crc32"));
+
+        assertEquals(TransferDigest.SHA_256, new FileSender("md4").getDigestAlgorithm());
+    }
+
+    @Test
+    public void receiverRejectsMismatchingDigest() throws IOException {
+        FileReceiver fileReceiver = new FileReceiver(null, TransferDigest.SHA_256);
+        String chunk = Base64.getEncoder().encodeToString("abc".getBytes(StandardCharsets.US_ASCII));
+
+        open(fileReceiver, "good");
+        fileReceiver.writeChunk("good", 0, chunk);
+        fileReceiver.finish("good", "sha-256:ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad");
+
+        // A different algorithm than the one computed on the fly is checked with a second pass.
+        open(fileReceiver, "other");
+        fileReceiver.writeChunk("other", 0, chunk);
+        fileReceiver.finish("other", "crc32:352441c2");
+
+        open(fileReceiver, "bad");
+        fileReceiver.writeChunk("bad", 0, chunk);
+        try {
+            fileReceiver.finish("bad", "sha-256:00");
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    private void open(FileReceiver fileReceiver, String refId) throws IOException {
+        fileReceiver.open(new TransferJournal.Entry(refId, "peer", 3, refId, null, new File(folder.getRoot(), refId), 0));
+    }
+}
@@ -0,0 +1,78 @@
+package io.rousan.datash;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+public class TransferJournalTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replaysEntriesAfterReload() throws IOException {
+        File journalFile = new File(folder.getRoot(), "transfers.journal");
+        File partFile = new File(folder.getRoot(), "a b\tc.txt.part");
+
+        TransferJournal journal = new TransferJournal(journalFile);
+        journal.begin(new TransferJournal.Entry("ref1", "peer", 100, "a b\tc.txt", "text/plain", partFile, 1234));
+        journal.begin(new TransferJournal.Entry("ref2", "peer", 5, "done.txt", "text/plain", partFile, 1234));
+        journal.commit("ref1", 40, 99);
+        journal.end("ref2");
+        journal.close();
+
+        TransferJournal reloaded = new TransferJournal(journalFile);
+        assertNull(reloaded.get("ref2"));
+
+        TransferJournal.Entry entry = reloaded.get("ref1");
+        assertEquals("a b\tc.txt", entry.fileName);
+        assertEquals(partFile, entry.partFile);
+        assertEquals(40, entry.getCommittedOffset());
+        assertEquals(99, entry.getChecksum());
+    }
+
+    @Test
+    public void ignoresTornLastLine() throws IOException {
+        File journalFile = new File(folder.getRoot(), "transfers.journal");
+        TransferJournal journal = new TransferJournal(journalFile);
+        journal.begin(new TransferJournal.Entry("ref1", "peer", 100, "a.txt", "text/plain", new File("a.part"), 1));
+        journal.close();
+        FileUtils.writeStringToFile(journalFile, "C\tref1\t4", StandardCharsets.UTF_8, true);
+
+        assertEquals(0, new TransferJournal(journalFile).get("ref1").getCommittedOffset());
+    }
+
+    @Test
+    public void resumesOnlyWhenChecksumMatches() throws IOException {
+        File partFile = new File(folder.getRoot(), "a.part");
+        byte[] data = "hello world".getBytes(StandardCharsets.UTF_8);
+        FileUtils.writeByteArrayToFile(partFile, data);
+
+        CRC32 checksum = new CRC32();
+        checksum.update(data, 0, 5);
+
+        TransferJournal journal = new TransferJournal(new File(folder.getRoot(), "transfers.journal"));
+        TransferJournal.Entry entry = new TransferJournal.Entry("ref1", "peer", 100, "a.txt", "text/plain", partFile, 1);
+        journal.begin(entry);
+        journal.commit("ref1", 5, checksum.getValue() + 1);
+
+        FileReceiver fileReceiver = new FileReceiver(journal, null);
+        assertNull(fileReceiver.resume(entry));
+
+        journal.commit("ref1", 5, checksum.getValue());
+        IncomingFile incomingFile = fileReceiver.resume(entry);
+        assertEquals(5, incomingFile.getBytesWritten());
+
+        fileReceiver.writeChunk("ref1", 0, Base64.getEncoder().encodeToString("!".getBytes(StandardCharsets.UTF_8)));
+        fileReceiver.finish("ref1", null);
+        assertEquals("hello!", FileUtils.readFileToString(partFile, StandardCharsets.UTF_8));
+    }
+}
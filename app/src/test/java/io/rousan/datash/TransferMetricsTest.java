@@ -0,0 +1,48 @@
+package io.rousan.datash;
+
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TransferMetricsTest {
+    @Test
+    public void bucketsDurationsByPowerOfTwo() {
+        TransferMetrics metrics = new TransferMetrics();
+        metrics.recordNanos(TransferMetrics.Stage.DISK_WRITE, 1, 10);
+        metrics.recordNanos(TransferMetrics.Stage.DISK_WRITE, 5, 10);
+        metrics.recordNanos(TransferMetrics.Stage.DISK_WRITE, 7, 10);
+
+        assertEquals(3, metrics.getCount(TransferMetrics.Stage.DISK_WRITE));
+        assertEquals(30, metrics.getTotalBytes(TransferMetrics.Stage.DISK_WRITE));
+        assertEquals((long) (30 * 1e9 / 13), metrics.getBytesPerSecond(TransferMetrics.Stage.DISK_WRITE));
+
+        String json = metrics.toJson(null);
+        assertTrue(json, json.contains("\"disk_write\":{\"count\":3,\"totalNanos\":13,\"maxNanos\":7,\"bytes\":30,"));
+        assertTrue(json, json.contains("\"log2NanosHistogram\":[1,0,2]"));
+    }
+
+    @Test
+    public void exportsHeapSnapshotsAndGauges() {
+        TransferMetrics metrics = new TransferMetrics();
+        metrics.snapshotHeap("receive-start \"big\"");
+
+        Map<String, Object> gauges = new LinkedHashMap<>();
+        gauges.put("io.queued", 2);
+        gauges.put("gc", "n/a");
+        String json = metrics.toJson(gauges);
+
+        assertTrue(json, json.contains("\"label\":\"receive-start \\\"big\\\"\""));
+        assertTrue(json, json.endsWith("\"gauges\":{\"io.queued\":2,\"gc\":\"n/a\"}}"));
+        assertTrue(metrics.getHeapHighWaterMark() > 0);
+    }
+
+    @Test
+    public void disabledMetricsRecordNothing() {
+        TransferMetrics.DISABLED.recordNanos(TransferMetrics.Stage.DIGEST, 100, 100);
+        assertEquals(0, TransferMetrics.DISABLED.getCount(TransferMetrics.Stage.DIGEST));
+        assertEquals(0, TransferMetrics.DISABLED.start());
+    }
+}
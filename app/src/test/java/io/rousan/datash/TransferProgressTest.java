@@ -0,0 +1,80 @@
+package io.rousan.datash;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TransferProgressTest {
+    private final static long MB = 1024 * 1024;
+
+    @Test
+    public void firstSample_hasNoRate() {
+        TransferProgress progress = new TransferProgress();
+        progress.update(0, 1000);
+        assertEquals(0, progress.getBytesPerSecond(), 0);
+        assertEquals(-1, progress.getEtaSeconds(10 * MB));
+    }
+
+    @Test
+    public void smoothsRate() {
+        TransferProgress progress = new TransferProgress();
+        progress.update(0, 0);
+        progress.update(MB, 1000);
+        assertEquals(MB, progress.getBytesPerSecond(), 0.001);
+
+        // 3MB/s for one second only moves the rate 30% of the way.
+        progress.update(4 * MB, 2000);
+        assertEquals(1.6 * MB, progress.getBytesPerSecond(), 0.001);
+    }
+
+    @Test
+    public void estimatesTimeLeft() {
+        TransferProgress progress = new TransferProgress();
+        progress.update(0, 0);
+        progress.update(2 * MB, 1000);
+        assertEquals(4, progress.getEtaSeconds(10 * MB));
+        assertEquals(-1, progress.getEtaSeconds(-1));
+    }
+
+    @Test
+    public void stall_decaysRateToZero() {
+        TransferProgress progress = new TransferProgress();
+        progress.update(0, 0);
+        progress.update(MB, 1000);
+
+        long now = 1000;
+        double last = progress.getBytesPerSecond();
+        for (int i = 0; i < 5; i++) {
+            now += 250;
+            progress.update(MB, now);
+            assertTrue(progress.getBytesPerSecond() < last);
+            last = progress.getBytesPerSecond();
+        }
+        for (int i = 0; i < 100; i++) {
+            now += 250;
+            progress.update(MB, now);
+        }
+        assertEquals(0, progress.getBytesPerSecond(), 0);
+        assertEquals(-1, progress.getEtaSeconds(10 * MB));
+    }
+
+    @Test
+    public void formatsStatus() {
+        TransferProgress progress = new TransferProgress();
+        progress.update(0, 0);
+        progress.update(2 * MB, 1000);
+        assertEquals("2.0 MB of 10.0 MB, 2.0 MB/s, 4 s left", ProgressNotifier.formatStatus(2 * MB, 10 * MB, progress));
+
+        TransferProgress unknown = new TransferProgress();
+        assertEquals("512 B", ProgressNotifier.formatStatus(512, -1, unknown));
+    }
+
+    @Test
+    public void formatsBytesAndDurations() {
+        assertEquals("1.5 KB", ProgressNotifier.formatBytes(1536));
+        assertEquals("2.00 GB", ProgressNotifier.formatBytes(2L * 1024 * MB));
+        assertEquals("59 s", ProgressNotifier.formatDuration(59));
+        assertEquals("2 min", ProgressNotifier.formatDuration(61));
+        assertEquals("1 h 1 min", ProgressNotifier.formatDuration(3660));
+    }
+}
@@ -0,0 +1,48 @@
+package io.rousan.datash;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TransferRegistryTest {
+    @Test
+    public void evictsOldestFinishedRecordsOverTheLimit() {
+        TransferRegistry registry = new TransferRegistry(2, Long.MAX_VALUE);
+        for (int i = 0; i < 4; i++) {
+            registry.register(new TransferRecord("r" + i, "from", "file" + i, 10, "text/plain"));
+        }
+
+        registry.moveTo("r0", TransferState.COMPLETED);
+        registry.moveTo("r1", TransferState.FAILED);
+        registry.moveTo("r2", TransferState.COMPLETED);
+
+        assertNull(registry.get("r0"));
+        assertNotNull(registry.get("r1"));
+        assertNotNull(registry.get("r2"));
+        assertEquals(TransferState.QUEUED, registry.get("r3").getState());
+    }
+
+    @Test
+    public void evictsFinishedRecordsOlderThanMaxAge() {
+        TransferRegistry registry = new TransferRegistry(100, 1000);
+        registry.register(new TransferRecord("r0", "from", "file", 10, "text/plain"));
+        registry.moveTo("r0", TransferState.COMPLETED);
+        long finishedAt = registry.get("r0").getFinishedAt();
+
+        registry.evictFinished(finishedAt + 999);
+        assertNotNull(registry.get("r0"));
+
+        registry.evictFinished(finishedAt + 1000);
+        assertNull(registry.get("r0"));
+    }
+
+    @Test
+    public void finalStateIsNotOverwritten() {
+        TransferRegistry registry = new TransferRegistry(100, Long.MAX_VALUE);
+        registry.register(new TransferRecord("r0", "from", "file", 10, "text/plain"));
+
+        assertTrue(registry.moveTo("r0", TransferState.CANCELLED));
+        assertFalse(registry.moveTo("r0", TransferState.COMPLETED));
+        assertEquals(TransferState.CANCELLED, registry.get("r0").getState());
+    }
+}
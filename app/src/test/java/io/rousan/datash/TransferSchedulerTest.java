@@ -0,0 +1,246 @@
+package io.rousan.datash;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class TransferSchedulerTest {
+    private TransferScheduler scheduler;
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void startsSmallestQueuedTransferFirst() throws InterruptedException {
+        scheduler = new TransferScheduler(1, 1, Long.MAX_VALUE);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(3);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+        scheduler.submit("blocker", TransferScheduler.Pool.IO, 0, new TransferScheduler.Task() {
+            @Override
+            public void run(Transfer transfer) throws Exception {
+                release.await();
+            }
+        });
+        for (final long size : new long[]{300, 100, 200}) {
+            scheduler.submit("t" + size, TransferScheduler.Pool.IO, size, new TransferScheduler.Task() {
+                @Override
+                public void run(Transfer transfer) {
+                    order.add(transfer.getRefId());
+                    done.countDown();
+                }
+            });
+        }
+
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("t100", "t200", "t300"), order);
+    }
+
+    @Test
+    public void holdsBackTransfersOverTheByteBudget() throws InterruptedException {
+        scheduler = new TransferScheduler(4, 4, 100);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+
+        scheduler.submit("a", TransferScheduler.Pool.IO, 80, new TransferScheduler.Task() {
+            @Override
+            public void run(Transfer transfer) throws Exception {
+                started.countDown();
+                release.await();
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        Transfer second = scheduler.submit("b", TransferScheduler.Pool.IO, 80, new TransferScheduler.Task() {
+            @Override
+            public void run(Transfer transfer) {
+            }
+        });
+        Thread.sleep(50);
+        assertEquals(TransferState.QUEUED, second.getState());
+        assertEquals(80, scheduler.getInFlightBytes());
+
+        release.countDown();
+        waitForState(second, TransferState.COMPLETED);
+    }
+
+    @Test
+    public void largeTransfer_waitsWhileSmallOnesRun() throws InterruptedException {
+        scheduler = new TransferScheduler(4, 4, 100);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+        scheduler.submit("small1", TransferScheduler.Pool.IO, 30, new TransferScheduler.Task() {
+            @Override
+            public void run(Transfer transfer) throws Exception {
+                started.countDown();
+                release.await();
+                order.add(transfer.getRefId());
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        TransferScheduler.Task record = new TransferScheduler.Task() {
+            @Override
+            public void run(Transfer transfer) {
+                order.add(transfer.getRefId());
+            }
+        };
+        Transfer large = scheduler.submit("large", TransferScheduler.Pool.IO, 150, record);
+        Transfer small = scheduler.submit("small2", TransferScheduler.Pool.IO, 30, record);
+        waitForState(small, TransferState.COMPLETED);
+        assertEquals(TransferState.QUEUED, large.getState());
+
+        // Larger than the whole budget, it only starts once nothing else holds any of it.
+        release.countDown();
+        waitForState(large, TransferState.COMPLETED);
+        assertEquals(Arrays.asList("small2", "small1", "large"), order);
+        assertEquals(0, scheduler.getInFlightBytes());
+    }
+
+    @Test
+    public void acquire_waitsForBudget() throws Exception {
+        scheduler = new TransferScheduler(1, 1, 100);
+        Transfer first = scheduler.acquire(80, 80);
+        assertEquals(80, scheduler.getInFlightBytes());
+
+        final AtomicReference<Transfer> second = new AtomicReference<>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    second.set(scheduler.acquire(50, 50));
+                } catch (InterruptedIOException exp) {
+                    // Left unset, the assertions below fail.
+                }
+            }
+        });
+        thread.start();
+        waitForCondition(new Condition() {
+            @Override
+            public boolean isMet() {
+                return scheduler.getAcquiringCount() == 1;
+            }
+        });
+        assertNull(second.get());
+
+        scheduler.release(first);
+        thread.join(5000);
+        assertNotNull(second.get());
+        assertEquals(50, scheduler.getInFlightBytes());
+
+        scheduler.release(second.get());
+        assertEquals(0, scheduler.getInFlightBytes());
+    }
+
+    @Test
+    public void acquire_failsOnShutdown() throws Exception {
+        scheduler = new TransferScheduler(1, 1, 100);
+        Transfer first = scheduler.acquire(80, 80);
+
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    scheduler.acquire(50, 50);
+                } catch (InterruptedIOException exp) {
+                    error.set(exp);
+                }
+            }
+        });
+        thread.start();
+        waitForCondition(new Condition() {
+            @Override
+            public boolean isMet() {
+                return scheduler.getAcquiringCount() == 1;
+            }
+        });
+
+        scheduler.shutdown();
+        thread.join(5000);
+        assertTrue(error.get() instanceof InterruptedIOException);
+        assertEquals(0, scheduler.getAcquiringCount());
+        scheduler.release(first);
+    }
+
+    @Test
+    public void loweredBudget_holdsBackNewWork() throws Exception {
+        scheduler = new TransferScheduler(1, 1, 100);
+        Transfer running = scheduler.acquire(60, 60);
+        scheduler.setMaxInFlightBytes(50);
+
+        // Running work isn't stopped, but nothing new starts until it fits the lower budget.
+        Transfer queued = scheduler.submit("small", TransferScheduler.Pool.CPU, 10, new TransferScheduler.Task() {
+            @Override
+            public void run(Transfer transfer) {
+            }
+        });
+        Thread.sleep(50);
+        assertEquals(TransferState.QUEUED, queued.getState());
+        assertEquals(60, scheduler.getInFlightBytes());
+
+        scheduler.release(running);
+        waitForState(queued, TransferState.COMPLETED);
+    }
+
+    @Test
+    public void cancelInterruptsRunningTransfer() throws InterruptedException {
+        scheduler = new TransferScheduler(1, 1, Long.MAX_VALUE);
+        final CountDownLatch started = new CountDownLatch(1);
+
+        Transfer transfer = scheduler.submit("slow", TransferScheduler.Pool.CPU, 10, new TransferScheduler.Task() {
+            @Override
+            public void run(Transfer transfer) throws Exception {
+                started.countDown();
+                Thread.sleep(10000);
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        assertTrue(scheduler.cancel("slow"));
+        assertEquals(TransferState.CANCELLED, transfer.getState());
+        waitForCondition(new Condition() {
+            @Override
+            public boolean isMet() {
+                return scheduler.getRunningCount(TransferScheduler.Pool.CPU) == 0;
+            }
+        });
+    }
+
+    private interface Condition {
+        boolean isMet();
+    }
+
+    private static void waitForState(final Transfer transfer, final TransferState state) throws InterruptedException {
+        waitForCondition(new Condition() {
+            @Override
+            public boolean isMet() {
+                return transfer.getState() == state;
+            }
+        });
+    }
+
+    private static void waitForCondition(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.isMet()) {
+            assertTrue("Timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package io.rousan.datash.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import io.rousan.datash.Base64Codec;
+
+/**
+ * {@link Base64Codec} against the JDK encoder in MIME mode, which like
+ * {@code android.util.Base64.DEFAULT} wraps lines and allocates fresh arrays on every call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Base64Benchmark {
+    @Param({"1024", "65536", "1048576", "4194304"})
+    public int size;
+
+    private byte[] data;
+    private char[] encoded;
+    private String encodedString;
+    private String mimeEncodedString;
+    private byte[] decoded;
+
+    @Setup
+    public void setUp() {
+        data = new byte[size];
+        new Random(42).nextBytes(data);
+        encoded = new char[Base64Codec.encodedLength(size)];
+        encodedString = Base64.getEncoder().encodeToString(data);
+        mimeEncodedString = Base64.getMimeEncoder().encodeToString(data);
+        decoded = new byte[Base64Codec.maxDecodedLength(encodedString.length())];
+    }
+
+    @Benchmark
+    public String encodeCodec() {
+        int length = Base64Codec.encode(data, 0, data.length, encoded);
+        return new String(encoded, 0, length);
+    }
+
+    @Benchmark
+    public String encodeMime() {
+        return Base64.getMimeEncoder().encodeToString(data);
+    }
+
+    @Benchmark
+    public int decodeCodec() {
+        return Base64Codec.decode(encodedString, decoded);
+    }
+
+    @Benchmark
+    public byte[] decodeMime() {
+        return Base64.getMimeDecoder().decode(mimeEncodedString);
+    }
+}
@@ -0,0 +1,174 @@
+package io.rousan.datash.benchmark;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import io.rousan.datash.BundleExtractor;
+import io.rousan.datash.BundleSource;
+import io.rousan.datash.Constants;
+import io.rousan.datash.FileNameAllocator;
+import io.rousan.datash.FileReceiver;
+import io.rousan.datash.FileSender;
+import io.rousan.datash.OutgoingFile;
+import io.rousan.datash.TransferJournal;
+
+/**
+ * Many small files sent one by one, each with its own handle, part file, digest check and
+ * name allocation, against the same files streamed as one bundle and unpacked on arrival.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BundleBenchmark {
+    private final static int CHUNK_SIZE = 1024 * 1024;
+
+    @Param({"1000"})
+    public int files;
+
+    @Param({"4096", "65536"})
+    public int fileSize;
+
+    private File folder;
+    private File sourceFolder;
+    private File downloadsFolder;
+    private List<File> sourceFiles;
+    private FileSender fileSender;
+    private FileReceiver fileReceiver;
+    private FileNameAllocator fileNameAllocator;
+    private int nextRefId = 0;
+
+    @Setup
+    public void setUp() throws IOException {
+        folder = Files.createTempDirectory("datash-bundle").toFile();
+        sourceFolder = new File(folder, "source");
+        downloadsFolder = new File(folder, "downloads");
+        FileUtils.forceMkdir(downloadsFolder);
+
+        Random random = new Random(42);
+        sourceFiles = new ArrayList<>(files);
+        for (int i = 0; i < files; i++) {
+            byte[] data = new byte[fileSize];
+            random.nextBytes(data);
+            File file = new File(sourceFolder, String.format("IMG_%04d.jpg", i));
+            FileUtils.writeByteArrayToFile(file, data);
+            sourceFiles.add(file);
+        }
+
+        fileSender = new FileSender(Constants.TRANSFER_DIGEST_ALGORITHM);
+        fileReceiver = new FileReceiver(null, Constants.TRANSFER_DIGEST_ALGORITHM);
+        fileNameAllocator = new FileNameAllocator(Constants.FILE_NAME_CACHE_SIZE);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(folder);
+    }
+
+    @Benchmark
+    public long perFile() throws IOException {
+        long received = 0;
+        for (File sourceFile : sourceFiles) {
+            String refId = "r" + nextRefId++;
+            RandomAccessFile source = new RandomAccessFile(sourceFile, "r");
+            OutgoingFile outgoingFile = fileSender.open(source.getChannel(), source, sourceFile.length());
+            File partFile = new File(downloadsFolder, refId + ".part");
+            fileReceiver.open(new TransferJournal.Entry(refId, "benchmark", sourceFile.length(), sourceFile.getName(), "image/jpeg", partFile, 0));
+
+            pump(outgoingFile.getHandleId(), refId);
+            String digest = fileSender.getDigest(outgoingFile.getHandleId());
+            fileSender.close(outgoingFile.getHandleId());
+            received += fileReceiver.finish(refId, digest).getBytesWritten();
+
+            File outputFile = fileNameAllocator.allocate(downloadsFolder, sourceFile.getName());
+            if (!partFile.renameTo(outputFile)) {
+                throw new IOException("Failed to rename " + partFile);
+            }
+        }
+        FileUtils.cleanDirectory(downloadsFolder);
+        return received;
+    }
+
+    @Benchmark
+    public long bundle() throws IOException {
+        List<BundleSource.Entry> entries = new ArrayList<>(sourceFiles.size());
+        for (final File sourceFile : sourceFiles) {
+            entries.add(new BundleSource.Entry() {
+                @Override
+                public String getPath() {
+                    return sourceFile.getName();
+                }
+
+                @Override
+                public String getMimeType() {
+                    return "image/jpeg";
+                }
+
+                @Override
+                public long getLastModified() {
+                    return sourceFile.lastModified();
+                }
+
+                @Override
+                public InputStream open() throws IOException {
+                    return new FileInputStream(sourceFile);
+                }
+            });
+        }
+
+        String refId = "r" + nextRefId++;
+        OutgoingFile outgoingFile = fileSender.openStream(new BundleSource(entries.iterator()), -1);
+        File partFile = new File(downloadsFolder, refId + ".part");
+        fileReceiver.open(new TransferJournal.Entry(refId, "benchmark", -1, "bundle.zip", Constants.BUNDLE_MIME_TYPE, partFile, 0));
+        BundleExtractor extractor = new BundleExtractor(new File(downloadsFolder, refId + ".part.d"), Constants.BUNDLE_QUEUE_CHUNKS);
+        fileReceiver.setExtractor(refId, extractor);
+
+        pump(outgoingFile.getHandleId(), refId);
+        String digest = fileSender.getDigest(outgoingFile.getHandleId());
+        fileSender.close(outgoingFile.getHandleId());
+        fileReceiver.finish(refId, digest);
+        if (extractor.getFileCount() != files) {
+            throw new IOException(String.format("Unpacked %d of %d files", extractor.getFileCount(), files));
+        }
+        FileUtils.cleanDirectory(downloadsFolder);
+        return extractor.getFileCount();
+    }
+
+    /**
+     * Moves a file across in chunks until the sender runs dry, like the page does.
+     */
+    private void pump(String handleId, String refId) throws IOException {
+        long offset = 0;
+        for (long seq = 0; ; seq++) {
+            String chunk = fileSender.readChunk(handleId, offset, CHUNK_SIZE);
+            if (chunk.isEmpty()) {
+                return;
+            }
+            offset = fileReceiver.writeChunk(refId, seq, chunk);
+        }
+    }
+}
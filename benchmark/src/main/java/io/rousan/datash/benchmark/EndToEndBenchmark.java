@@ -0,0 +1,142 @@
+package io.rousan.datash.benchmark;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import io.rousan.datash.Constants;
+import io.rousan.datash.FileReceiver;
+import io.rousan.datash.FileSender;
+import io.rousan.datash.OutgoingFile;
+import io.rousan.datash.TransferCodec;
+import io.rousan.datash.TransferJournal;
+
+/**
+ * Sends a file through {@link FileSender} and straight back into {@link FileReceiver}, the
+ * way a loopback transfer goes through the page: base64 chunks out, base64 chunks in, then
+ * digest verification. The fake bridge copies every chunk once in each direction, as the
+ * WebView does when strings cross into and out of JavaScript.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EndToEndBenchmark {
+    @Param({"1048576", "16777216"})
+    public int size;
+
+    @Param({"262144", "1048576"})
+    public int chunkSize;
+
+    @Param({"text", "random"})
+    public String content;
+
+    @Param({"identity", TransferCodec.DEFLATE})
+    public String encoding;
+
+    private File folder;
+    private File sourceFile;
+    private FileSender fileSender;
+    private FileReceiver fileReceiver;
+    private int nextRefId = 0;
+
+    @Setup
+    public void setUp() throws IOException {
+        folder = Files.createTempDirectory("datash-e2e").toFile();
+        sourceFile = new File(folder, "source.bin");
+        FileUtils.writeByteArrayToFile(sourceFile, content.equals("text") ? text(size) : random(size));
+        fileSender = new FileSender(Constants.TRANSFER_DIGEST_ALGORITHM);
+        fileReceiver = new FileReceiver(null, Constants.TRANSFER_DIGEST_ALGORITHM);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        fileSender.closeAll();
+        fileReceiver.closeAll();
+        FileUtils.deleteDirectory(folder);
+    }
+
+    @Benchmark
+    public long transfer() throws IOException {
+        String refId = "r" + nextRefId++;
+        File partFile = new File(folder, refId + ".part");
+
+        RandomAccessFile source = new RandomAccessFile(sourceFile, "r");
+        OutgoingFile outgoingFile = fileSender.open(source.getChannel(), source, size);
+        String handleId = outgoingFile.getHandleId();
+        fileReceiver.open(new TransferJournal.Entry(refId, "benchmark", size, "received.bin", "application/octet-stream", partFile, System.currentTimeMillis()));
+        if (!encoding.equals("identity")) {
+            fileSender.setEncoding(handleId, encoding);
+            fileReceiver.setEncoding(refId, encoding);
+        }
+
+        long offset = 0;
+        long seq = 0;
+        while (true) {
+            String chunk = crossBridge(fileSender.readChunk(handleId, offset, chunkSize));
+            int length = decodedLength(chunk);
+            if (length > 0) {
+                fileReceiver.writeChunk(refId, seq++, crossBridge(chunk));
+                offset += length;
+            }
+            if (length < chunkSize) {
+                break;
+            }
+        }
+
+        String digest = fileSender.getDigest(handleId);
+        fileSender.close(handleId);
+        long received = fileReceiver.finish(refId, digest).getBytesWritten();
+        if (received != size || !partFile.delete()) {
+            throw new IOException(String.format("Received %d of %d bytes", received, size));
+        }
+        return received;
+    }
+
+    private static String crossBridge(String value) {
+        return new String(value.toCharArray());
+    }
+
+    private static int decodedLength(String base64) {
+        int length = base64.length() / 4 * 3;
+        if (base64.endsWith("==")) {
+            return length - 2;
+        }
+        return base64.endsWith("=") ? length - 1 : length;
+    }
+
+    private static byte[] text(int size) {
+        StringBuilder builder = new StringBuilder(size);
+        Random random = new Random(42);
+        for (int i = 0; builder.length() < size; i++) {
+            builder.append(i).append(",device-").append(random.nextInt(64)).append(",ok,").append(random.nextInt(1000)).append('\n');
+        }
+        return builder.substring(0, size).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] random(int size) {
+        byte[] bytes = new byte[size];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,109 @@
+package io.rousan.datash.benchmark;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import io.rousan.datash.FileNameAllocator;
+
+/**
+ * Picking a free download name when the folder already holds {@code existing} copies of it.
+ * Each operation creates the file and deletes it again, so the folder stays the same size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileNameBenchmark {
+    private final static String FILE_NAME = "IMG_20200101.jpg";
+
+    @Param({"10", "1000", "10000"})
+    public int existing;
+
+    private File folder;
+    private FileNameAllocator allocator;
+
+    @Setup
+    public void setUp() throws IOException {
+        folder = Files.createTempDirectory("datash-names").toFile();
+        for (int i = 0; i < existing; i++) {
+            String name = i == 0 ? FILE_NAME : String.format("IMG_20200101%d.jpg", i);
+            if (!new File(folder, name).createNewFile()) {
+                throw new IOException("Can't create " + name);
+            }
+        }
+        allocator = new FileNameAllocator(16);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(folder);
+    }
+
+    @Benchmark
+    public File allocator() throws IOException {
+        File file = allocator.allocate(folder, FILE_NAME);
+        file.delete();
+        return file;
+    }
+
+    @Benchmark
+    public File probeLoop() throws IOException {
+        File file = legacyUniqueFile(folder, FILE_NAME);
+        file.createNewFile();
+        file.delete();
+        return file;
+    }
+
+    /**
+     * The loop the app used before {@link FileNameAllocator}: one {@code exists()} per copy.
+     */
+    private static File legacyUniqueFile(File folder, String fileName) {
+        String fileExt = FilenameUtils.getExtension(fileName);
+        String fileNameWithoutExt;
+        if (fileExt.isEmpty()) {
+            fileNameWithoutExt = fileName;
+        } else {
+            fileNameWithoutExt = fileName.replace("." + fileExt, "");
+        }
+
+        int counter = 0;
+        String newFileName;
+        while (true) {
+            if (counter == 0) {
+                newFileName = fileName;
+            } else {
+                if (fileExt.isEmpty()) {
+                    newFileName = String.format("%s%s", fileNameWithoutExt, counter + "");
+                } else {
+                    newFileName = String.format("%s%s.%s", fileNameWithoutExt, counter + "", fileExt);
+                }
+            }
+
+            File file = new File(folder, newFileName);
+            if (file.exists()) {
+                counter += 1;
+            } else {
+                return file;
+            }
+        }
+    }
+}
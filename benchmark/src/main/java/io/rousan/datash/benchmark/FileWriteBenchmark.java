@@ -0,0 +1,77 @@
+package io.rousan.datash.benchmark;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing a received file in one go with {@link FileUtils#writeByteArrayToFile}, as the app
+ * used to, against appending chunks through a {@link FileChannel} like {@code IncomingFile}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileWriteBenchmark {
+    @Param({"65536", "4194304", "33554432"})
+    public int size;
+
+    @Param({"65536", "1048576"})
+    public int chunkSize;
+
+    private byte[] data;
+    private File file;
+
+    @Setup
+    public void setUp() throws IOException {
+        data = new byte[size];
+        new Random(42).nextBytes(data);
+        file = File.createTempFile("datash-write", ".bin");
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public long writeByteArrayToFile() throws IOException {
+        FileUtils.writeByteArrayToFile(file, data);
+        return file.length();
+    }
+
+    @Benchmark
+    public long channelWrite() throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            FileChannel channel = randomAccessFile.getChannel();
+            channel.truncate(0);
+            for (int offset = 0; offset < data.length; offset += chunkSize) {
+                ByteBuffer byteBuffer = ByteBuffer.wrap(data, offset, Math.min(chunkSize, data.length - offset));
+                while (byteBuffer.hasRemaining()) {
+                    channel.write(byteBuffer);
+                }
+            }
+            return channel.size();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package io.rousan.datash.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import io.rousan.datash.JsPayload;
+
+/**
+ * Building the scripts passed to {@code evaluateJavascript}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsPayloadBenchmark {
+    @State(Scope.Thread)
+    public static class Text {
+        @Param({"64", "65536", "1048576"})
+        public int length;
+
+        String text;
+
+        @Setup
+        public void setUp() {
+            StringBuilder builder = new StringBuilder(length);
+            for (int i = 0; builder.length() < length; i++) {
+                builder.append("Shared line ").append(i).append(" \u00e9\n");
+            }
+            text = builder.substring(0, length);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Manifest {
+        @Param({"1", "10", "100"})
+        public int files;
+    }
+
+    @Benchmark
+    public String textShare(Text state) {
+        return JsPayload.textShare(state.text);
+    }
+
+    /**
+     * How the text share used to be built, for comparison.
+     */
+    @Benchmark
+    public String textShareFormat(Text state) {
+        return String.format("(function() { window.onReceiveTextFromAndroidShare(`%s`); })();",
+                Base64.getMimeEncoder().encodeToString(state.text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Benchmark
+    public String shareManifest(Manifest state) {
+        JsPayload.ShareManifest manifest = new JsPayload.ShareManifest();
+        for (int i = 0; i < state.files; i++) {
+            manifest.add("h" + i, "IMG_2020" + i + ".jpg", "image/jpeg", 3_500_000L + i, null);
+        }
+        return manifest.toScript();
+    }
+}
@@ -0,0 +1,147 @@
+package io.rousan.datash.benchmark;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import io.rousan.datash.Constants;
+import io.rousan.datash.FileReceiver;
+import io.rousan.datash.FileSender;
+import io.rousan.datash.OutgoingFile;
+import io.rousan.datash.TransferJournal;
+
+/**
+ * A large file through the bridge in order, one chunk after the other, against the same
+ * file as ranges spread over {@code threads} workers. Compare {@code threads} 4 and 8 with
+ * the core count of the device or machine the numbers come from; {@code sequential} doesn't
+ * use the workers and only needs running once.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RangeBenchmark {
+    @Param({"67108864"})
+    public int size;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    private File folder;
+    private File sourceFile;
+    private FileSender fileSender;
+    private FileReceiver fileReceiver;
+    private ExecutorService executor;
+    private int nextRefId = 0;
+
+    @Setup
+    public void setUp() throws IOException {
+        folder = Files.createTempDirectory("datash-range").toFile();
+        sourceFile = new File(folder, "source.bin");
+        byte[] data = new byte[size];
+        new Random(42).nextBytes(data);
+        FileUtils.writeByteArrayToFile(sourceFile, data);
+        fileSender = new FileSender(Constants.TRANSFER_DIGEST_ALGORITHM);
+        fileReceiver = new FileReceiver(null, Constants.TRANSFER_DIGEST_ALGORITHM);
+        executor = Executors.newFixedThreadPool(threads);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        fileSender.closeAll();
+        fileReceiver.closeAll();
+        FileUtils.deleteDirectory(folder);
+    }
+
+    @Benchmark
+    public long sequential() throws IOException {
+        String refId = start();
+        String handleId = open();
+        long seq = 0;
+        for (long offset = 0; offset < size; offset += Constants.TRANSFER_RANGE_SIZE) {
+            String chunk = crossBridge(fileSender.readChunk(handleId, offset, Constants.TRANSFER_RANGE_SIZE));
+            fileReceiver.writeChunk(refId, seq++, crossBridge(chunk));
+        }
+        return finish(refId, handleId);
+    }
+
+    @Benchmark
+    public long ranges() throws Exception {
+        final String refId = start();
+        final String handleId = open();
+        int rangeCount = (size + Constants.TRANSFER_RANGE_SIZE - 1) / Constants.TRANSFER_RANGE_SIZE;
+        List<Future<Long>> futures = new ArrayList<>(rangeCount);
+        for (int i = 0; i < rangeCount; i++) {
+            final int index = i;
+            futures.add(executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws IOException {
+                    String range = crossBridge(fileSender.readRange(handleId, index));
+                    return fileReceiver.writeRange(refId, index, crossBridge(range));
+                }
+            }));
+        }
+        try {
+            for (Future<Long> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException exp) {
+            throw (Exception) exp.getCause();
+        }
+        return finish(refId, handleId);
+    }
+
+    private String start() throws IOException {
+        String refId = "r" + nextRefId++;
+        fileReceiver.open(new TransferJournal.Entry(refId, "benchmark", size, "received.bin", "application/octet-stream", new File(folder, refId + ".part"), System.currentTimeMillis()));
+        return refId;
+    }
+
+    private String open() throws IOException {
+        RandomAccessFile source = new RandomAccessFile(sourceFile, "r");
+        OutgoingFile outgoingFile = fileSender.open(source.getChannel(), source, size);
+        return outgoingFile.getHandleId();
+    }
+
+    private long finish(String refId, String handleId) throws IOException {
+        String digest = fileSender.getDigest(handleId);
+        fileSender.close(handleId);
+        File partFile = fileReceiver.get(refId).getFile();
+        long received = fileReceiver.finish(refId, digest).getBytesWritten();
+        if (received != size || !partFile.delete()) {
+            throw new IOException(String.format("Received %d of %d bytes", received, size));
+        }
+        return received;
+    }
+
+    private static String crossBridge(String value) {
+        return new String(value.toCharArray());
+    }
+}
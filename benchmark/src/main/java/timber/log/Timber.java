@@ -0,0 +1,15 @@
+package timber.log;
+
+/**
+ * Stand-in for Timber, which only ships as an Android library. Benchmarks don't log.
+ */
+public final class Timber {
+    private Timber() {
+    }
+
+    public static void d(String message, Object... args) {
+    }
+
+    public static void d(Throwable t) {
+    }
+}